@@ -148,9 +148,16 @@ public final class Atom implements Formula, FormulaComponent, Comparable<Atom> {
 		return v;
 	}
 	
+	/**
+	 * Grounds this Atom. If every Variable has a Constant in groundings
+	 * and the grounded Atom was interned, the interned instance is
+	 * returned, see {@link #intern()}.
+	 */
 	@Override
 	public Atom ground(Map<Variable, Constant> groundings) {
 		if (this.grounded) return this;
+		Atom interned = this.predicate.getAtomTable().ground(this, groundings);
+		if (interned != null) return interned;
 		int length = this.terms.length;
 		boolean modified = false;
 		boolean grounded = true;
@@ -175,6 +182,18 @@ public final class Atom implements Formula, FormulaComponent, Comparable<Atom> {
 		return modified ? new Atom(this.predicate, groundedTerms, grounded) : this;
 	}
 	
+	/**
+	 * @return the canonical instance of this grounded Atom, there is only
+	 * one interned Atom for each grounding of a Predicate. Returns this if
+	 * the Atom is not grounded or some Constant is not in the Predicate
+	 * Domains.
+	 * @see AtomTable
+	 */
+	public Atom intern() {
+		if (!this.grounded || this.predicate == EMPTY) return this;
+		return this.predicate.getAtomTable().intern(this);
+	}
+	
 	@Override
 	public int hashCode() {
 		if (this.hashCode != -1) return this.hashCode;
@@ -0,0 +1,408 @@
+package fol;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Integer identity for the grounded Atoms of a {@link Predicate}. Each
+ * Predicate has one AtomTable ({@link Predicate#getAtomTable()}).</p>
+ *
+ * <p>A grounded Atom is identified by the ids of its constants, where the
+ * id of a Constant is its position in the argument Domain
+ * ({@link Domain#indexOf(Constant)}). The table interns grounded Atoms,
+ * so that the same instance is returned for the same ids, and resolves
+ * ids to Atoms without allocating once the Atom has been interned.</p>
+ *
+ * <p>The table is never cleared, so only the Atoms that need a stable
+ * instance are interned: the evidence ({@link Atom#intern()}) and the
+ * Atoms listed by id or position ({@link #atom(int...)}). Lookups by
+ * value ({@link #find(int...)}) and groundings of formulas
+ * ({@link Atom#ground(Map)}) return the interned Atom if there is one,
+ * a new Atom otherwise.</p>
+ *
+ * <p>The ids can also be packed in a single <code>long</code>, the atom
+ * index, by a {@link Layout}. The index is the mixed-radix number formed
+ * by the constant ids, with each radix rounded up to a power of two.
+ * Indexes are stable while no Domain grows beyond its radix, if it does
+ * {@link #layout()} returns a new Layout and stores that keep values by
+ * index must move them.</p>
+ *
+ * <p>Lookups are thread-safe and lock-free, interning a new Atom locks
+ * the table.</p>
+ */
+public final class AtomTable {
+
+	/**
+	 * Index returned for Atoms with a Constant that is not in the
+	 * argument Domain.
+	 */
+	public static final long NONE = -1L;
+
+	/**
+	 * Index returned for Atoms that does not fit in the Layout, the
+	 * Domains have grown since the Layout was created.
+	 */
+	public static final long OUTSIDE = -2L;
+
+	private static final int MAX_BITS = 62;
+	private static final int MIN_CAPACITY = 16;
+
+	private final Predicate predicate;
+	private final Domain[] domains;
+
+	private volatile Layout layout;
+	private volatile Atom[] atoms;
+	private int size;
+
+	AtomTable(Predicate predicate, List<Domain> domains) {
+		this.predicate = predicate;
+		this.domains = domains.toArray(new Domain[domains.size()]);
+		this.layout = null;
+		this.atoms = new Atom[MIN_CAPACITY];
+		this.size = 0;
+	}
+
+	public Predicate getPredicate() {
+		return this.predicate;
+	}
+
+	public int arity() {
+		return this.domains.length;
+	}
+
+	/**
+	 * @return the Layout for the current Domains sizes. The same instance
+	 * is returned while the Domains fit in it.
+	 */
+	public Layout layout() {
+		Layout current = this.layout;
+		if (current != null && current.fits()) return current;
+		synchronized (this) {
+			if (this.layout == null || !this.layout.fits()) {
+				this.layout = new Layout();
+			}
+			return this.layout;
+		}
+	}
+
+	private static int mix(int hash, int id) {
+		return 31*hash + id;
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @param constants the ids of the constants, one for each argument
+	 * @return the interned Atom with those constants
+	 * @throws IndexOutOfBoundsException if some id is not in its Domain
+	 */
+	public Atom atom(int ... constants) {
+		int hash = hash(constants);
+		Atom atom = this.probe(hash, constants);
+		return atom != null ? atom : this.insert(hash, this.terms(constants));
+	}
+
+	/**
+	 * @param constants the ids of the constants, one for each argument
+	 * @return the interned Atom with those constants, or a new Atom that
+	 * is not interned if there is none
+	 * @throws IndexOutOfBoundsException if some id is not in its Domain
+	 */
+	public Atom find(int ... constants) {
+		Atom atom = this.probe(hash(constants), constants);
+		return atom != null ? atom : new Atom(this.predicate, this.terms(constants), true);
+	}
+
+	private static int hash(int[] constants) {
+		int hash = 1;
+		for (int i = 0; i < constants.length; i++) {
+			hash = mix(hash, constants[i]);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the interned Atom with the constants, or null
+	 */
+	private Atom probe(int hash, int[] constants) {
+		Atom[] table = this.atoms;
+		int mask = table.length -1;
+		probe: for (int i = spread(hash) & mask; table[i] != null; i = (i+1) & mask) {
+			Term[] terms = table[i].terms;
+			for (int j = 0; j < terms.length; j++) {
+				if (terms[j] != this.domains[j].getConstant(constants[j])) continue probe;
+			}
+			return table[i];
+		}
+		return null;
+	}
+
+	private Term[] terms(int[] constants) {
+		Term[] terms = new Term[constants.length];
+		for (int i = 0; i < terms.length; i++) {
+			terms[i] = this.domains[i].getConstant(constants[i]);
+		}
+		return terms;
+	}
+
+	/**
+	 * @param index an atom index in <code>layout</code>
+	 * @return the interned Atom in position <code>index</code>.
+	 */
+	public Atom atom(Layout layout, long index) {
+		int hash = 1;
+		for (int i = 0; i < this.domains.length; i++) {
+			hash = mix(hash, layout.constant(index, i));
+		}
+		Atom[] table = this.atoms;
+		int mask = table.length -1;
+		probe: for (int i = spread(hash) & mask; table[i] != null; i = (i+1) & mask) {
+			Term[] terms = table[i].terms;
+			for (int j = 0; j < terms.length; j++) {
+				if (terms[j] != this.domains[j].getConstant(layout.constant(index, j))) continue probe;
+			}
+			return table[i];
+		}
+		Term[] terms = new Term[this.domains.length];
+		for (int i = 0; i < terms.length; i++) {
+			terms[i] = this.domains[i].getConstant(layout.constant(index, i));
+		}
+		return this.insert(hash, terms);
+	}
+
+	/**
+	 * Grounds the Atom <code>atom</code> of this table Predicate.
+	 * @return the interned grounded Atom, a new grounded Atom that is not
+	 * interned if there is none, or null if some Variable in
+	 * <code>atom</code> has no Constant in <code>groundings</code>.
+	 */
+	Atom ground(Atom atom, Map<Variable, Constant> groundings) {
+		Term[] pattern = atom.terms;
+		int hash = 1;
+		for (int i = 0; i < pattern.length; i++) {
+			Constant c = constant(pattern[i], groundings);
+			if (c == null) return null;
+			int id = this.domains[i].indexOf(c);
+			if (id < 0) return null;
+			hash = mix(hash, id);
+		}
+		Atom[] table = this.atoms;
+		int mask = table.length -1;
+		probe: for (int i = spread(hash) & mask; table[i] != null; i = (i+1) & mask) {
+			Term[] terms = table[i].terms;
+			for (int j = 0; j < terms.length; j++) {
+				if (terms[j] != constant(pattern[j], groundings)) continue probe;
+			}
+			return table[i];
+		}
+		Term[] terms = new Term[pattern.length];
+		for (int i = 0; i < terms.length; i++) {
+			terms[i] = constant(pattern[i], groundings);
+		}
+		return new Atom(this.predicate, terms, true);
+	}
+
+	private static Constant constant(Term t, Map<Variable, Constant> groundings) {
+		return (t instanceof Constant) ? (Constant) t : groundings.get(t);
+	}
+
+	/**
+	 * @param atom a grounded Atom of this table Predicate
+	 * @return the interned instance equals to atom
+	 */
+	public Atom intern(Atom atom) {
+		int hash = 1;
+		for (int i = 0; i < this.domains.length; i++) {
+			int id = this.domains[i].indexOf((Constant) atom.terms[i]);
+			if (id < 0) return atom; // not typed, can not be interned
+			hash = mix(hash, id);
+		}
+		Atom[] table = this.atoms;
+		int mask = table.length -1;
+		for (int i = spread(hash) & mask; table[i] != null; i = (i+1) & mask) {
+			if (table[i].equals(atom)) return table[i];
+		}
+		return this.insert(hash, atom.terms);
+	}
+
+	private synchronized Atom insert(int hash, Term[] terms) {
+		Atom[] table = this.atoms;
+		int mask = table.length -1;
+		int i = spread(hash) & mask;
+		probe: for (; table[i] != null; i = (i+1) & mask) {
+			Term[] other = table[i].terms;
+			for (int j = 0; j < other.length; j++) {
+				if (other[j] != terms[j]) continue probe;
+			}
+			return table[i]; // interned by another thread
+		}
+		Atom atom = new Atom(this.predicate, terms, true);
+		table[i] = atom;
+		this.size++;
+		if (2*this.size > table.length) {
+			this.rehash(table.length << 1);
+		}
+		return atom;
+	}
+
+	private void rehash(int capacity) {
+		Atom[] old = this.atoms;
+		Atom[] table = new Atom[capacity];
+		int mask = capacity -1;
+		for (Atom atom : old) {
+			if (atom == null) continue;
+			int hash = 1;
+			for (int j = 0; j < this.domains.length; j++) {
+				hash = mix(hash, this.domains[j].indexOf((Constant) atom.terms[j]));
+			}
+			int i = spread(hash) & mask;
+			while (table[i] != null) i = (i+1) & mask;
+			table[i] = atom;
+		}
+		this.atoms = table;
+	}
+
+	/**
+	 * @return the number of interned Atoms
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	private static int width(int size) {
+		return size < 2 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Packs the constant ids of an Atom in a <code>long</code> index.
+	 * Immutable, see {@link AtomTable#layout()}.
+	 */
+	public final class Layout {
+
+		private final int[] shifts;
+		private final long[] masks;
+		private final int bits;
+
+		private Layout() {
+			int arity = domains.length;
+			this.shifts = new int[arity];
+			this.masks = new long[arity];
+			int shift = 0;
+			for (int i = arity -1; i >= 0; i--) {
+				int width = width(domains[i].size());
+				this.shifts[i] = shift;
+				this.masks[i] = (1L << width) - 1;
+				shift += width;
+			}
+			if (shift > MAX_BITS) {
+				throw new IllegalStateException(String.format(
+						"Too many groundings to index %s: %s bits", predicate, shift));
+			}
+			this.bits = shift;
+		}
+
+		private boolean fits() {
+			for (int i = 0; i < domains.length; i++) {
+				if (domains[i].size() -1 > this.masks[i]) return false;
+			}
+			return true;
+		}
+
+		public AtomTable getTable() {
+			return AtomTable.this;
+		}
+
+		/**
+		 * @return the number of bits of an index
+		 */
+		public int bits() {
+			return this.bits;
+		}
+
+		/**
+		 * @return the number of possible indexes, <code>2^bits()</code>
+		 */
+		public long capacity() {
+			return 1L << this.bits;
+		}
+
+		/**
+		 * @param constants the ids of the constants, one for each argument
+		 * @return the index, {@link AtomTable#NONE} if some id is negative
+		 * or {@link AtomTable#OUTSIDE} if some id does not fit in this layout
+		 */
+		public long index(int ... constants) {
+			long index = 0;
+			for (int i = 0; i < this.shifts.length; i++) {
+				long id = constants[i];
+				if (id < 0) return NONE;
+				if (id > this.masks[i]) return OUTSIDE;
+				index |= id << this.shifts[i];
+			}
+			return index;
+		}
+
+		/**
+		 * @param atom a grounded Atom of this layout Predicate
+		 * @return the index, {@link AtomTable#NONE} if some constant
+		 * is not in the argument Domain or {@link AtomTable#OUTSIDE}
+		 * if it does not fit in this layout
+		 */
+		public long index(Atom atom) {
+			long index = 0;
+			for (int i = 0; i < this.shifts.length; i++) {
+				long id = domains[i].indexOf((Constant) atom.terms[i]);
+				if (id < 0) return NONE;
+				if (id > this.masks[i]) return OUTSIDE;
+				index |= id << this.shifts[i];
+			}
+			return index;
+		}
+
+		/**
+		 * @return the id of the Constant in argument <code>i</code> of
+		 * the Atom in position <code>index</code>
+		 */
+		public int constant(long index, int i) {
+			return (int) ((index >>> this.shifts[i]) & this.masks[i]);
+		}
+
+		/**
+		 * Unpacks the constant ids of <code>index</code> in
+		 * <code>constants</code>.
+		 */
+		public void constants(long index, int[] constants) {
+			for (int i = 0; i < this.shifts.length; i++) {
+				constants[i] = (int) ((index >>> this.shifts[i]) & this.masks[i]);
+			}
+		}
+
+		/**
+		 * @return true if every id of index is a Constant in the Domains.
+		 * Positions past the end of a Domain are padding of the radix.
+		 */
+		public boolean isValid(long index) {
+			for (int i = 0; i < this.shifts.length; i++) {
+				if (this.constant(index, i) >= domains[i].size()) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the index of <code>index</code> moved to the layout
+		 * <code>other</code>, of the same table.
+		 */
+		public long move(long index, Layout other) {
+			long moved = 0;
+			for (int i = 0; i < this.shifts.length; i++) {
+				moved |= ((long) this.constant(index, i)) << other.shifts[i];
+			}
+			return moved;
+		}
+
+	}
+
+}
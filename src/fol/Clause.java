@@ -112,6 +112,11 @@ public class Clause implements Formula, Comparable<Clause> {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return this.literals.hashCode();
+	}
+
 	@Override
 	public List<Atom> getAtoms() {
 		List<Atom> atoms = new ArrayList<Atom>(this.literals.size());
@@ -0,0 +1,483 @@
+package fol;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fol.database.BinaryDB;
+import fol.database.RealDB;
+import fol.operator.Biconditional;
+import fol.operator.Conjunction;
+import fol.operator.Disjunction;
+import fol.operator.Negation;
+
+/**
+ * <p>A {@link Formula} compiled to a flat program of ints, evaluated
+ * against the bindings of its Variables given as the ids of the
+ * Constants ({@link Domain#indexOf(Constant)} in the Variable Domain).
+ * The i-th binding is the Constant of the i-th Variable in
+ * {@link #getVariables()}.</p>
+ *
+ * <p>Evaluation short-circuits and does not allocate. The values are the
+ * same (bit for bit in a {@link RealDB}) of the {@link Formula} getValue
+ * methods.</p>
+ *
+ * <p>Not thread-safe, each instance keeps scratch buffers for the atom
+ * arguments. Use {@link #copy()} to get an instance for another
+ * thread, copies share the compiled program. A formula without
+ * Variables does not use the buffers, its instance can be shared.</p>
+ */
+public final class CompiledFormula {
+
+	// operation codes, a node is the operation followed by its operands
+	private static final int LITERAL = 0; // LITERAL literal
+	private static final int NOT = 1; // NOT child
+	private static final int AND = 2; // AND n children... (CNF)
+	private static final int OR = 3; // OR n children... (Clause)
+	private static final int AND2 = 4; // AND2 left right (Conjunction)
+	private static final int OR2 = 5; // OR2 left right (Disjunction)
+	private static final int IFF = 6; // IFF left right (Biconditional)
+
+	private final Program program;
+	private final int[][] arguments;
+	private final int[] bindings;
+
+	/**
+	 * Compiles the formula, the Variables are ordered by their first
+	 * occurrence in <code>formula.getAtoms()</code>.
+	 */
+	public CompiledFormula(Formula formula) {
+		this(formula, variables(formula));
+	}
+
+	/**
+	 * @param variables the order of the bindings, must contain every
+	 * Variable of formula
+	 */
+	public CompiledFormula(Formula formula, List<Variable> variables) {
+		this(new Program(formula, variables));
+	}
+
+	private CompiledFormula(Program program) {
+		this.program = program;
+		int literals = program.predicates.length;
+		this.arguments = new int[literals][];
+		for (int i = 0; i < literals; i++) {
+			int[] spec = program.args[i];
+			this.arguments[i] = spec == null ? null : spec.clone();
+		}
+		this.bindings = new int[program.variables.size()];
+	}
+
+	private static List<Variable> variables(Formula formula) {
+		Set<Variable> variables = new LinkedHashSet<Variable>();
+		for (Atom a : formula.getAtoms()) {
+			for (Term t : a.terms) {
+				if (t instanceof Variable) variables.add((Variable) t);
+			}
+		}
+		return new ArrayList<Variable>(variables);
+	}
+
+	/**
+	 * @return a new instance, with its own scratch buffers, that shares
+	 * this compiled program.
+	 */
+	public CompiledFormula copy() {
+		return new CompiledFormula(this.program);
+	}
+
+	/**
+	 * @return the Variables in the order of the bindings
+	 */
+	public List<Variable> getVariables() {
+		return this.program.variables;
+	}
+
+	public boolean getValue(BinaryDB db, int[] bindings) {
+		return this.evaluate(db, bindings, 0);
+	}
+
+	public double getValue(RealDB db, int[] bindings) {
+		return this.evaluate(db, bindings, 0);
+	}
+
+	public boolean getValue(BinaryDB db, Map<Variable, Constant> groundings) {
+		return this.evaluate(db, this.bind(groundings), 0);
+	}
+
+	public double getValue(RealDB db, Map<Variable, Constant> groundings) {
+		return this.evaluate(db, this.bind(groundings), 0);
+	}
+
+	private int[] bind(Map<Variable, Constant> groundings) {
+		List<Variable> variables = this.program.variables;
+		for (int i = 0; i < this.bindings.length; i++) {
+			Variable v = variables.get(i);
+			Constant c = groundings.get(v);
+			if (c == null) {
+				throw new RuntimeException("getValue of non-grounded Variable " + v);
+			}
+			int id = v.getDomain().indexOf(c);
+			if (id < 0) {
+				throw new IllegalArgumentException(String.format(
+						"Constant %s is not in the Domain of %s", c, v));
+			}
+			this.bindings[i] = id;
+		}
+		return this.bindings;
+	}
+
+	private boolean evaluate(BinaryDB db, int[] bindings, int pc) {
+		int[] code = this.program.code;
+		int[] next = this.program.next;
+		switch (code[pc]) {
+		case LITERAL:
+			return this.literal(db, bindings, code[pc+1]);
+		case NOT:
+			return !this.evaluate(db, bindings, pc+1);
+		case AND: {
+			int child = pc+2;
+			for (int i = code[pc+1]; i > 0; i--) {
+				if (!this.evaluate(db, bindings, child)) return false;
+				child = next[child];
+			}
+			return true;
+		}
+		case OR: {
+			int child = pc+2;
+			for (int i = code[pc+1]; i > 0; i--) {
+				if (this.evaluate(db, bindings, child)) return true;
+				child = next[child];
+			}
+			return false;
+		}
+		case AND2:
+			return this.evaluate(db, bindings, pc+1) && this.evaluate(db, bindings, next[pc+1]);
+		case OR2:
+			return this.evaluate(db, bindings, pc+1) || this.evaluate(db, bindings, next[pc+1]);
+		case IFF:
+			return this.evaluate(db, bindings, pc+1) == this.evaluate(db, bindings, next[pc+1]);
+		default:
+			throw new IllegalStateException("Unknown operation " + code[pc]);
+		}
+	}
+
+	private double evaluate(RealDB db, int[] bindings, int pc) {
+		int[] code = this.program.code;
+		int[] next = this.program.next;
+		switch (code[pc]) {
+		case LITERAL:
+			return this.literal(db, bindings, code[pc+1]);
+		case NOT:
+			return 1.0d - this.evaluate(db, bindings, pc+1);
+		case AND: { // same as CNF.getValue
+			double value = 1.0d;
+			int child = pc+2;
+			for (int i = code[pc+1]; i > 0; i--) {
+				double clause = this.evaluate(db, bindings, child);
+				if (clause == 0.0d) {
+					return 0.0d;
+				} else if (clause != 1.0d) {
+					value *= clause;
+				}
+				child = next[child];
+			}
+			return value;
+		}
+		case OR: { // same as Clause.getValue
+			double value = 0.0d;
+			int child = pc+2;
+			for (int i = code[pc+1]; i > 0; i--) {
+				double literal = this.evaluate(db, bindings, child);
+				if (literal == 1.0d) {
+					return 1.0d;
+				} else if (literal != 0.0d) {
+					value += literal - (value*literal);
+				}
+				child = next[child];
+			}
+			return value;
+		}
+		case AND2: {
+			double left = this.evaluate(db, bindings, pc+1);
+			if (left == 0.0d) return 0.0d;
+			return this.evaluate(db, bindings, next[pc+1]) * left;
+		}
+		case OR2: {
+			double left = this.evaluate(db, bindings, pc+1);
+			double right = this.evaluate(db, bindings, next[pc+1]);
+			return right + left - right*left;
+		}
+		case IFF: {
+			double left = this.evaluate(db, bindings, pc+1);
+			double right = this.evaluate(db, bindings, next[pc+1]);
+			double f0 = right*left;
+			double f1 = (1.0d-right)*(1.0d-left);
+			return f0 + f1 - f0*f1;
+		}
+		default:
+			throw new IllegalStateException("Unknown operation " + code[pc]);
+		}
+	}
+
+	private boolean literal(BinaryDB db, int[] bindings, int literal) {
+		Program p = this.program;
+		boolean value;
+		if (p.atoms[literal] != null) {
+			value = db.valueOf(p.atoms[literal]);
+		} else {
+			int[] arguments = this.arguments(bindings, literal);
+			value = arguments == null
+					? db.valueOf(this.ground(bindings, literal))
+					: db.valueOf(p.predicates[literal], arguments);
+		}
+		return value == p.signals[literal];
+	}
+
+	private double literal(RealDB db, int[] bindings, int literal) {
+		Program p = this.program;
+		double value;
+		if (p.atoms[literal] != null) {
+			value = db.valueOf(p.atoms[literal]);
+		} else {
+			int[] arguments = this.arguments(bindings, literal);
+			value = arguments == null
+					? db.valueOf(this.ground(bindings, literal))
+					: db.valueOf(p.predicates[literal], arguments);
+		}
+		return p.signals[literal] ? value : 1.0d - value;
+	}
+
+	/**
+	 * @return the ids of the literal constants in the argument Domains,
+	 * or null if some constant is not in its argument Domain.
+	 */
+	private int[] arguments(int[] bindings, int literal) {
+		int[] spec = this.program.args[literal];
+		Domain[] convert = this.program.convert[literal];
+		int[] arguments = this.arguments[literal];
+		for (int i = 0; i < spec.length; i++) {
+			int s = spec[i];
+			if (s >= 0) continue; // constants were copied with the spec
+			int variable = -s-1;
+			int id = bindings[variable];
+			if (convert != null && convert[i] != null) {
+				Domain from = this.program.variables.get(variable).getDomain();
+				id = convert[i].indexOf(from.getConstant(id));
+				if (id < 0) return null;
+			}
+			arguments[i] = id;
+		}
+		return arguments;
+	}
+
+	/**
+	 * Slow path for literals that are not typed by their Predicate.
+	 */
+	private Atom ground(int[] bindings, int literal) {
+		Program p = this.program;
+		int[] spec = p.args[literal];
+		Term[] terms = new Term[spec.length];
+		for (int i = 0; i < spec.length; i++) {
+			int s = spec[i];
+			if (s >= 0) {
+				terms[i] = p.predicates[literal].getDomains().get(i).getConstant(s);
+			} else {
+				terms[i] = p.variables.get(-s-1).getDomain().getConstant(bindings[-s-1]);
+			}
+		}
+		return new Atom(p.predicates[literal], terms);
+	}
+
+	@Override
+	public String toString() {
+		return this.program.formula.toString();
+	}
+
+	/**
+	 * The immutable part of a compiled formula.
+	 */
+	private static final class Program {
+
+		private final Formula formula;
+		private final List<Variable> variables;
+
+		private final int[] code;
+		private final int[] next; // next[pc] is the position after the node at pc
+
+		// literal tables, atoms[i] is not null if literal i is grounded
+		private final Atom[] atoms;
+		private final Predicate[] predicates;
+		private final boolean[] signals;
+		// constant ids (>= 0) or -(variable+1)
+		private final int[][] args;
+		// not null where the Variable Domain is not the argument Domain
+		private final Domain[][] convert;
+
+		private final List<Literal> literals;
+
+		Program(Formula formula, List<Variable> variables) {
+			this.formula = formula;
+			this.variables = new ArrayList<Variable>(variables);
+			this.literals = new ArrayList<Literal>();
+			List<Integer> code = new ArrayList<Integer>();
+			this.compile(formula, code);
+
+			this.code = new int[code.size()];
+			for (int i = 0; i < this.code.length; i++) {
+				this.code[i] = code.get(i).intValue();
+			}
+			this.next = new int[this.code.length];
+			this.link(0);
+
+			int size = this.literals.size();
+			this.atoms = new Atom[size];
+			this.predicates = new Predicate[size];
+			this.signals = new boolean[size];
+			this.args = new int[size][];
+			this.convert = new Domain[size][];
+			for (int i = 0; i < size; i++) {
+				this.literal(i, this.literals.get(i));
+			}
+		}
+
+		private void literal(int i, Literal literal) {
+			Atom atom = literal.atom;
+			this.predicates[i] = atom.predicate;
+			this.signals[i] = literal.signal;
+			if (atom.isGrounded()) {
+				this.atoms[i] = atom.intern();
+				return;
+			}
+			List<Domain> domains = atom.predicate.getDomains();
+			int[] spec = new int[atom.terms.length];
+			for (int j = 0; j < spec.length; j++) {
+				Term t = atom.terms[j];
+				Domain domain = domains.get(j);
+				if (t instanceof Constant) {
+					spec[j] = domain.indexOf((Constant) t);
+					if (spec[j] < 0) {
+						throw new IllegalArgumentException(String.format(
+								"Constant %s is not in the Domain of %s", t, atom));
+					}
+				} else if (t instanceof Variable) {
+					int variable = this.variables.indexOf(t);
+					if (variable < 0) {
+						throw new IllegalArgumentException(String.format(
+								"Variable %s is not in the bindings %s", t, this.variables));
+					}
+					spec[j] = -variable-1;
+					if (t.getDomain() != domain) {
+						if (this.convert[i] == null) this.convert[i] = new Domain[spec.length];
+						this.convert[i][j] = domain;
+					}
+				} else {
+					String message = String.format("Don't know how to handle %s", t);
+					throw new UnsupportedOperationException(message);
+				}
+			}
+			this.args[i] = spec;
+		}
+
+		private void literal(Literal literal, List<Integer> code) {
+			code.add(Integer.valueOf(LITERAL));
+			code.add(Integer.valueOf(this.literals.size()));
+			this.literals.add(literal);
+		}
+
+		private void compile(Formula formula, List<Integer> code) {
+			if (formula instanceof Atom) {
+				this.literal(new Literal((Atom) formula, true), code);
+
+			} else if (formula instanceof Literal) {
+				this.literal((Literal) formula, code);
+
+			} else if (formula instanceof Clause) {
+				List<Literal> literals = ((Clause) formula).getLiterals();
+				code.add(Integer.valueOf(OR));
+				code.add(Integer.valueOf(literals.size()));
+				for (Literal l : literals) this.literal(l, code);
+
+			} else if (formula instanceof CNF) {
+				List<Clause> clauses = ((CNF) formula).getClauses();
+				code.add(Integer.valueOf(AND));
+				code.add(Integer.valueOf(clauses.size()));
+				for (Clause c : clauses) this.compile(c, code);
+
+			} else {
+				this.compile(formula.getComponents(), code);
+			}
+		}
+
+		/**
+		 * Converts the postfix components of a GeneralFormula to the
+		 * prefix program.
+		 */
+		private void compile(List<FormulaComponent> components, List<Integer> code) {
+			Deque<List<Integer>> stack = new LinkedList<List<Integer>>();
+			for (FormulaComponent component : components) {
+				List<Integer> node = new ArrayList<Integer>();
+				if (component instanceof Atom) {
+					this.literal(new Literal((Atom) component, true), node);
+				} else if (component instanceof Literal) {
+					this.literal((Literal) component, node);
+				} else if (component == Negation.OPERATOR) {
+					node.add(Integer.valueOf(NOT));
+					node.addAll(stack.pop());
+				} else {
+					int op;
+					if (component == Conjunction.OPERATOR) op = AND2;
+					else if (component == Disjunction.OPERATOR) op = OR2;
+					else if (component == Biconditional.OPERATOR) op = IFF;
+					else {
+						String message = String.format("Don't know how to handle %s", component);
+						throw new UnsupportedOperationException(message);
+					}
+					List<Integer> right = stack.pop();
+					List<Integer> left = stack.pop();
+					node.add(Integer.valueOf(op));
+					node.addAll(left);
+					node.addAll(right);
+				}
+				stack.push(node);
+			}
+			if (stack.size() != 1) {
+				String message = String.format("Malformed Formula: %s", components);
+				throw new RuntimeException(message);
+			}
+			code.addAll(stack.pop());
+		}
+
+		/**
+		 * Fills <code>next</code> for the node at pc and its children.
+		 * @return the position after the node
+		 */
+		private int link(int pc) {
+			int end;
+			switch (this.code[pc]) {
+			case LITERAL:
+				end = pc+2;
+				break;
+			case NOT:
+				end = this.link(pc+1);
+				break;
+			case AND:
+			case OR:
+				end = pc+2;
+				for (int i = this.code[pc+1]; i > 0; i--) end = this.link(end);
+				break;
+			default:
+				end = this.link(this.link(pc+1));
+			}
+			this.next[pc] = end;
+			return end;
+		}
+
+	}
+
+}
@@ -1,6 +1,8 @@
 package fol;
 
 public class Constant extends Term {
+	
+	private final int id;
 
 	/**
 	 * @param name
@@ -8,6 +10,16 @@ public class Constant extends Term {
 	 */
 	public Constant(String name, Domain domain) {
 		super(name, domain);
+		// setDomain has just appended this constant to its domain
+		this.id = domain.size() - 1;
+	}
+	
+	/**
+	 * @return the position of this Constant in its Domain, 
+	 * see {@link Domain#indexOf(Constant)}
+	 */
+	public int getId() {
+		return this.id;
 	}
 
 	/* (non-Javadoc)
@@ -1,8 +1,11 @@
 package fol;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents the domain for <code>Terms</code>. eg. the constants Ana and Bob
@@ -13,33 +16,62 @@ import java.util.List;
 public class Domain extends HashSet<Constant> {
 	
 	private static final long serialVersionUID = -6910763430777620405L;
+	private static final AtomicInteger count = new AtomicInteger();
 	
+	private final int id;
 	private final String name;
+	private final List<Constant> constants;
 	private final List<Function> functions;
 	private final List<Variable> variables;
 	private final Domain parent;
 	private int varcount;
 	
+	// positions of the constants of sub-domains, lazy instantiated
+	private volatile Map<Constant, Integer> foreign;
+	
 	public static final Domain UNIVERSE = new Domain("universe", null);
 
 	public Domain(String name) {
 		this.name = name;
+		this.constants = new ArrayList<Constant>();
 		this.functions = new ArrayList<Function>();
 		this.variables = new ArrayList<Variable>();
 		this.parent = UNIVERSE;
 		this.varcount = 0;
+		this.id = count.getAndIncrement();
 	}
 	
 	public Domain(String name, Domain parent) {
 		this.name = name;
+		this.constants = new ArrayList<Constant>();
 		this.functions = new ArrayList<Function>();
 		this.variables = new ArrayList<Variable>();
 		this.parent = parent;
 		this.varcount = 0;
+		this.id = count.getAndIncrement();
+	}
+	
+	/**
+	 * Adds the Constant c to this domain. Constants are numbered in the
+	 * order they are added, see {@link #indexOf(Constant)}.
+	 */
+	@Override
+	public boolean add(Constant c) {
+		if (super.add(c)) {
+			Map<Constant, Integer> foreign = this.foreign;
+			if (foreign != null && c.getDomain() != this) {
+				foreign.put(c, Integer.valueOf(this.constants.size()));
+			}
+			this.constants.add(c);
+			return true;
+		}
+		return false;
 	}
 	
 	@Override
 	public void clear() {
+		this.constants.clear();
+		this.foreign = null;
 		this.functions.clear();
 		this.variables.clear();
 		super.clear();
@@ -54,6 +86,49 @@ public class Domain extends HashSet<Constant> {
 		return new Constant("c" + this.name + this.size(), this);
 	}
 
+	/**
+	 * @param id a number between 0 and <code>size()-1</code>
+	 * @return the Constant numbered <code>id</code> in this domain
+	 */
+	public Constant getConstant(int id) {
+		return this.constants.get(id);
+	}
+	
+	/**
+	 * <p>Gets the position of Constant c in this domain. Constants are 
+	 * numbered densely (0 to <code>size()-1</code>) in the order they 
+	 * were added. For a Constant that belongs directly to this domain 
+	 * the position is {@link Constant#getId()}.</p>
+	 * 
+	 * @return the position of c, or -1 if c is not in this domain
+	 */
+	public int indexOf(Constant c) {
+		if (c.getDomain() == this) return c.getId();
+		Map<Constant, Integer> foreign = this.foreign;
+		if (foreign == null) foreign = this.indexForeign();
+		Integer index = foreign.get(c);
+		return index == null ? -1 : index.intValue();
+	}
+	
+	private synchronized Map<Constant, Integer> indexForeign() {
+		if (this.foreign != null) return this.foreign;
+		Map<Constant, Integer> foreign = new HashMap<Constant, Integer>();
+		for (int i = 0; i < this.constants.size(); i++) {
+			Constant c = this.constants.get(i);
+			if (c.getDomain() != this) foreign.put(c, Integer.valueOf(i));
+		}
+		this.foreign = foreign;
+		return foreign;
+	}
+	
+	/**
+	 * @return a number that identifies this Domain. Domains are 
+	 * numbered densely in the order they are created.
+	 */
+	public int getId() {
+		return this.id;
+	}
+
 	/**
 	 * @return the functions
 	 */
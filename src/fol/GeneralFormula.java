@@ -19,7 +19,10 @@ import fol.operator.Negation;
 
 public class GeneralFormula implements Formula {
 	
+	private static final int[] NO_BINDINGS = new int[0];
+	
 	private List<Atom> atoms; // lazy instantiated
+	private volatile CompiledFormula compiled; // lazy instantiated
 	
 	private final List<FormulaComponent> components;
 	
@@ -72,64 +75,54 @@ public class GeneralFormula implements Formula {
 		return new ArrayList<FormulaComponent>(this.components);
 	}
 
+	/**
+	 * @return the CompiledFormula of this formula, compiled once. Its 
+	 * scratch buffers are used only for Variables, so a grounded formula 
+	 * is evaluated by many threads on the same instance.
+	 */
+	private CompiledFormula compiled() {
+		CompiledFormula compiled = this.compiled;
+		if (compiled == null) {
+			compiled = new CompiledFormula(this);
+			this.compiled = compiled;
+		}
+		return compiled;
+	}
+
+	private CompiledFormula grounded() {
+		CompiledFormula compiled = this.compiled();
+		if (!compiled.getVariables().isEmpty()) {
+			throw new RuntimeException("getValue of non-grounded Formula " + this.toString());
+		}
+		return compiled;
+	}
+
 	@Override
 	public boolean getValue(BinaryDB db) {
-		Deque<Boolean> stack = new LinkedList<Boolean>();
-		for (FormulaComponent component : this.components) {
-			component.evaluate(stack, db);
-		}
-		return stack.pop().booleanValue();
+		return this.grounded().getValue(db, NO_BINDINGS);
 	}
 
 	@Override
 	public double getValue(RealDB db) {
-		Deque<Double> stack = new LinkedList<Double>();
-		for (FormulaComponent component : this.components) {
-			component.evaluate(stack, db);
-		}
-		return stack.pop().doubleValue();
+		return this.grounded().getValue(db, NO_BINDINGS);
 	}
 
+	/**
+	 * Evaluates a copy of the compiled formula, with its own scratch 
+	 * buffers. Callers evaluating many groundings keep their own 
+	 * {@link CompiledFormula} instead.
+	 */
 	@Override
 	public boolean getValue(BinaryDB db, Map<Variable, Constant> groundings) {
-		Deque<Boolean> stack = new LinkedList<Boolean>();
-		
-		for (FormulaComponent component : this.components) {
-			if (component instanceof Atom) {
-				Atom atom = (Atom) component;
-				component = atom.ground(groundings);
-				
-			} else if (component instanceof Literal) {
-				Literal literal = (Literal) component;
-				component = literal.ground(groundings);
-				
-			}
-			
-			component.evaluate(stack, db);
-		}
-		
-		return stack.pop().booleanValue();
+		return this.compiled().copy().getValue(db, groundings);
 	}
 
+	/**
+	 * @see #getValue(BinaryDB, Map)
+	 */
 	@Override
 	public double getValue(RealDB db, Map<Variable, Constant> groundings) {
-		Deque<Double> stack = new LinkedList<Double>();
-		
-		for (FormulaComponent component : this.components) {
-			if (component instanceof Atom) {
-				Atom atom = (Atom) component;
-				component = atom.ground(groundings);
-				
-			} else if (component instanceof Literal) {
-				Literal literal = (Literal) component;
-				component = literal.ground(groundings);
-				
-			}
-			
-			component.evaluate(stack, db);
-		}
-		
-		return stack.pop().doubleValue();
+		return this.compiled().copy().getValue(db, groundings);
 	}
 
 	@Override
@@ -141,7 +141,7 @@ public class Literal implements Formula, FormulaComponent, Comparable<Literal> {
 	@Override
 	public Literal replace(Atom original, Literal replacement) {
 		if (this.atom.equals(original)) {
-			boolean signal = this.signal != replacement.signal;
+			boolean signal = this.signal == replacement.signal;
 			return new Literal(replacement.atom, signal);
 		}
 		return this;
@@ -2,11 +2,16 @@ package fol;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Predicate implements Comparable<Predicate> {
 	
+	private static final AtomicInteger count = new AtomicInteger();
+	
+	private final int id;
 	private final String name;
 	private final List<Domain> argDomains;
+	private final AtomTable atoms;
 	private boolean closedWorld;
 	
 	public static final Predicate EQUALS = new Predicate("equals", Domain.UNIVERSE, Domain.UNIVERSE);
@@ -15,6 +20,8 @@ public class Predicate implements Comparable<Predicate> {
 		this.name = name;
 		this.argDomains = Arrays.asList(domains);
 		this.closedWorld = true;
+		this.id = count.getAndIncrement();
+		this.atoms = new AtomTable(this, this.argDomains);
 	}
 
 	@Override
@@ -22,6 +29,21 @@ public class Predicate implements Comparable<Predicate> {
 		return this.name.compareTo(o.name);
 	}
 
+	/**
+	 * @return a number that identifies this Predicate. Predicates are 
+	 * numbered densely in the order they are created.
+	 */
+	public int getId() {
+		return this.id;
+	}
+	
+	/**
+	 * @return the table of the grounded Atoms of this Predicate
+	 */
+	public AtomTable getAtomTable() {
+		return this.atoms;
+	}
+
 	/**
 	 * @return a List of each argument Domain
 	 */
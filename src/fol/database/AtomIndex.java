@@ -0,0 +1,338 @@
+package fol.database;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import fol.Atom;
+import fol.Constant;
+import fol.Domain;
+import fol.Predicate;
+
+/**
+ * <p>Secondary indexes over the true Atoms of a database. Each true Atom
+ * of a Predicate has a row, a small <code>int</code>, and for each
+ * argument position and Constant the index keeps the sorted list of the
+ * rows with that Constant in that position (a posting list). Lookups
+ * like "the true atoms of <code>movie(film, X)</code> with Constant c in
+ * position 1" are then answered without looking at other groundings,
+ * and patterns with several bound arguments by intersecting the posting
+ * lists.</p>
+ *
+ * <p>Constants are identified by their id in the argument Domain
+ * ({@link Domain#indexOf(Constant)}). Atoms with a Constant that is not in
+ * the argument Domain are not indexed.</p>
+ *
+ * <p>Rows of removed Atoms are reused. Not thread-safe for writes.</p>
+ *
+ * @see IndexedBinaryDB
+ */
+public final class AtomIndex {
+
+	private final BinaryDB source;
+	private Table[] tables; // indexed by Predicate id
+
+	/**
+	 * @param source the index of a Predicate is built from the true atoms
+	 * in source the first time it is used. Changes to a Predicate
+	 * not yet indexed are ignored.
+	 */
+	AtomIndex(BinaryDB source) {
+		this.source = source;
+		this.tables = new Table[0];
+	}
+
+	private Table table(Predicate p) {
+		int id = p.getId();
+		Table[] tables = this.tables;
+		if (id < tables.length && tables[id] != null) return tables[id];
+		return this.build(p);
+	}
+
+	private synchronized Table build(Predicate p) {
+		int id = p.getId();
+		if (id >= this.tables.length) {
+			this.tables = Arrays.copyOf(this.tables, id + 1);
+		}
+		Table table = this.tables[id];
+		if (table == null) {
+			table = new Table(p);
+			for (Atom a : this.source.getTrueAtoms(p)) table.add(a);
+			this.tables[id] = table;
+		}
+		return table;
+	}
+
+	private boolean isIndexed(Predicate p) {
+		int id = p.getId();
+		return id < this.tables.length && this.tables[id] != null;
+	}
+
+	/**
+	 * Indexes atom, if not already indexed.
+	 */
+	void add(Atom atom) {
+		if (!this.isIndexed(atom.predicate)) return;
+		this.table(atom.predicate).add(atom);
+	}
+
+	/**
+	 * Removes atom from the index, if it is indexed.
+	 */
+	void remove(Atom atom) {
+		if (!this.isIndexed(atom.predicate)) return;
+		this.table(atom.predicate).remove(atom);
+	}
+
+	/**
+	 * @return the number of indexed Atoms of Predicate p
+	 */
+	public int size(Predicate p) {
+		return this.table(p).size;
+	}
+
+	/**
+	 * @return one more than the greatest row of Predicate p
+	 */
+	public int rows(Predicate p) {
+		return this.table(p).rows;
+	}
+
+	/**
+	 * @return the Atom in row, or null if the row is free
+	 */
+	public Atom getAtom(Predicate p, int row) {
+		return this.table(p).atoms[row];
+	}
+
+	/**
+	 * @return the id of the Constant in position argument of the Atom
+	 * in row
+	 */
+	public int getConstant(Predicate p, int row, int argument) {
+		Table table = this.table(p);
+		return table.constants[row * table.arity + argument];
+	}
+
+	/**
+	 * @return the row of atom, or -1 if it is not indexed
+	 */
+	public int getRow(Atom atom) {
+		Integer row = this.table(atom.predicate).row(atom);
+		return row == null ? -1 : row.intValue();
+	}
+
+	/**
+	 * @return the number of indexed Atoms of p with the Constant
+	 * identified by constant in position argument
+	 */
+	public int count(Predicate p, int argument, int constant) {
+		Posting posting = this.table(p).posting(argument, constant);
+		return posting == null ? 0 : posting.size;
+	}
+
+	/**
+	 * @return all the rows of Predicate p
+	 */
+	public RowIterator iterator(Predicate p) {
+		final Table table = this.table(p);
+		return new RowIterator() {
+
+			private int row = -1;
+
+			@Override
+			public int current() {
+				return this.row;
+			}
+
+			@Override
+			public int next() {
+				return this.advance(this.row + 1);
+			}
+
+			@Override
+			public int advance(int target) {
+				if (this.row >= target) return this.row;
+				int row = Math.max(target, 0);
+				while (row < table.rows && table.atoms[row] == null) row++;
+				this.row = row < table.rows ? row : END;
+				return this.row;
+			}
+
+		};
+	}
+
+	/**
+	 * @return the rows of Predicate p with the Constant identified by
+	 * constant in position argument
+	 */
+	public RowIterator iterator(Predicate p, int argument, int constant) {
+		Posting posting = this.table(p).posting(argument, constant);
+		if (posting == null) return RowIterator.EMPTY;
+		return new RowIterator.Sorted(posting.rows, posting.size);
+	}
+
+	/**
+	 * @param constants the id of the Constant in each position, or -1
+	 * for any Constant
+	 * @return the rows of Predicate p that match constants, the
+	 * intersection of the posting lists of the bound positions
+	 */
+	public RowIterator iterator(Predicate p, int[] constants) {
+		int bound = 0;
+		for (int c : constants) if (c >= 0) bound++;
+		if (bound == 0) return this.iterator(p);
+		Table table = this.table(p);
+		Posting[] postings = new Posting[bound];
+		bound = 0;
+		for (int i = 0; i < constants.length; i++) {
+			if (constants[i] < 0) continue;
+			Posting posting = table.posting(i, constants[i]);
+			if (posting == null || posting.size == 0) return RowIterator.EMPTY;
+			postings[bound++] = posting;
+		}
+		if (bound == 1) {
+			return new RowIterator.Sorted(postings[0].rows, postings[0].size);
+		}
+		// shortest posting list leads the intersection
+		Arrays.sort(postings, 0, bound, Posting.BY_SIZE);
+		RowIterator[] iterators = new RowIterator[bound];
+		for (int i = 0; i < bound; i++) {
+			iterators[i] = new RowIterator.Sorted(postings[i].rows, postings[i].size);
+		}
+		return new RowIterator.Intersection(iterators);
+	}
+
+	/**
+	 * A sorted list of rows.
+	 */
+	private static final class Posting {
+
+		static final Comparator<Posting> BY_SIZE = new Comparator<Posting>() {
+			@Override
+			public int compare(Posting o1, Posting o2) {
+				return o1.size < o2.size ? -1 : (o1.size == o2.size ? 0 : 1);
+			}
+		};
+
+		int[] rows = new int[4];
+		int size = 0;
+
+		void add(int row) {
+			int i = this.search(row);
+			if (this.size == this.rows.length) {
+				this.rows = Arrays.copyOf(this.rows, this.size << 1);
+			}
+			System.arraycopy(this.rows, i, this.rows, i + 1, this.size - i);
+			this.rows[i] = row;
+			this.size++;
+		}
+
+		void remove(int row) {
+			int i = this.search(row);
+			System.arraycopy(this.rows, i + 1, this.rows, i, this.size - i - 1);
+			this.size--;
+		}
+
+		private int search(int row) {
+			// rows are mostly appended, checks the end first
+			if (this.size == 0 || this.rows[this.size - 1] < row) return this.size;
+			int i = Arrays.binarySearch(this.rows, 0, this.size, row);
+			return i < 0 ? -i - 1 : i;
+		}
+
+	}
+
+	/**
+	 * The index of a single Predicate.
+	 */
+	private static final class Table {
+
+		final int arity;
+		final Domain[] domains;
+		final HashMap<Atom, Integer> rowOf;
+		Atom[] atoms; // by row
+		int[] constants; // arity ids for each row
+		Posting[][] postings; // by argument and constant
+		int[] free; // rows to be reused
+		int freeSize;
+		int rows;
+		int size;
+
+		Table(Predicate p) {
+			List<Domain> domains = p.getDomains();
+			this.arity = domains.size();
+			this.domains = domains.toArray(new Domain[this.arity]);
+			this.rowOf = new HashMap<Atom, Integer>();
+			this.atoms = new Atom[16];
+			this.constants = new int[16 * this.arity];
+			this.postings = new Posting[this.arity][];
+			for (int i = 0; i < this.arity; i++) this.postings[i] = new Posting[0];
+			this.free = new int[4];
+			this.freeSize = 0;
+			this.rows = 0;
+			this.size = 0;
+		}
+
+		Integer row(Atom atom) {
+			return this.rowOf.get(atom);
+		}
+
+		Posting posting(int argument, int constant) {
+			Posting[] postings = this.postings[argument];
+			return constant < postings.length ? postings[constant] : null;
+		}
+
+		void add(Atom atom) {
+			if (this.rowOf.containsKey(atom)) return;
+			int[] ids = new int[this.arity];
+			for (int i = 0; i < this.arity; i++) {
+				ids[i] = this.domains[i].indexOf((Constant) atom.terms[i]);
+				if (ids[i] < 0) return; // not typed, not indexed
+			}
+			int row;
+			if (this.freeSize > 0) {
+				row = this.free[--this.freeSize];
+			} else {
+				row = this.rows++;
+				if (row == this.atoms.length) {
+					this.atoms = Arrays.copyOf(this.atoms, row << 1);
+					this.constants = Arrays.copyOf(this.constants, (row << 1) * this.arity);
+				}
+			}
+			Atom interned = atom.intern();
+			this.atoms[row] = interned;
+			this.rowOf.put(interned, Integer.valueOf(row));
+			System.arraycopy(ids, 0, this.constants, row * this.arity, this.arity);
+			for (int i = 0; i < this.arity; i++) {
+				Posting[] postings = this.postings[i];
+				if (ids[i] >= postings.length) {
+					int length = Math.max(ids[i] + 1, postings.length << 1);
+					postings = Arrays.copyOf(postings, length);
+					this.postings[i] = postings;
+				}
+				if (postings[ids[i]] == null) postings[ids[i]] = new Posting();
+				postings[ids[i]].add(row);
+			}
+			this.size++;
+		}
+
+		void remove(Atom atom) {
+			Integer r = this.rowOf.remove(atom);
+			if (r == null) return;
+			int row = r.intValue();
+			for (int i = 0; i < this.arity; i++) {
+				this.postings[i][this.constants[row * this.arity + i]].remove(row);
+			}
+			this.atoms[row] = null;
+			if (this.freeSize == this.free.length) {
+				this.free = Arrays.copyOf(this.free, this.freeSize << 1);
+			}
+			this.free[this.freeSize++] = row;
+			this.size--;
+		}
+
+	}
+
+}
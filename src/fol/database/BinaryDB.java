@@ -1,11 +1,23 @@
 package fol.database;
 
+import java.util.List;
+
 import fol.Atom;
+import fol.Predicate;
 
 public interface BinaryDB {
 	
 	public boolean valueOf(Atom a);
 	
+	/**
+	 * Gets the value of the grounding of Predicate p with the Constants
+	 * identified by <code>constants</code>, see {@link fol.AtomTable}.
+	 * 
+	 * @param p Predicate
+	 * @param constants the position of each Constant in its argument Domain
+	 */
+	public boolean valueOf(Predicate p, int[] constants);
+	
 	/**
 	 * Invert the value of Atom a in the database.
 	 * 
@@ -14,6 +26,13 @@ public interface BinaryDB {
 	 */
 	public boolean flip(Atom a);
 	public void set(Atom a, boolean value);
+	
+	/**
+	 * @return a new List with the grounded Atoms of Predicate p that are 
+	 * true in this database, in no particular order.
+	 */
+	public List<Atom> getTrueAtoms(Predicate p);
+	
 	/**
 	 * Allows one to set values without modifying the original Database.
 	 * 
@@ -1,20 +1,58 @@
 package fol.database;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import fol.Atom;
+import fol.Predicate;
 
+/**
+ * <p>A {@link BinaryDB} that keeps the Atoms set in a map.</p>
+ *
+ * <p>Optionally, each {@link Predicate} has a Bloom filter of its true
+ * Atoms, filled as the Atoms are set. An Atom that is not in the filter is
+ * false and is not looked up in the map, which is most of the lookups of a
+ * sparse closed-world Predicate. The filter keeps the Atoms of its
+ * Predicate in the map; when it is full it is rebuilt from them, and the
+ * Atoms set to false since are removed from the map. Lookups do not write
+ * anything, so the database can be read by several threads.</p>
+ */
 public class BinaryDatabase implements BinaryDB {
 	
+	private static final int MIN_FILTER_ATOMS = 64;
+
 	private final HashMap<Atom, Boolean> db;
+	private final int filterBits;
+	private Filter[] filters; // indexed by Predicate id
 	
 	public BinaryDatabase() {
+		this(0);
+	}
+
+	/**
+	 * @param filterBits bits of the Bloom filter per true Atom, 0 for no
+	 * filter. 10 bits give about 1% false positives.
+	 */
+	public BinaryDatabase(int filterBits) {
+		if (filterBits < 0) {
+			throw new IllegalArgumentException("filterBits: " + filterBits);
+		}
 		this.db = new HashMap<Atom, Boolean>();
+		this.filterBits = filterBits;
+		this.filters = new Filter[0];
 	}
 
 	@Override
 	public boolean valueOf(Atom key) {
 		if (Atom.TRUE == key) return true;
+		if (this.filterBits != 0) {
+			Filter filter = this.filter(key.predicate);
+			// no Atom of the predicate was ever true
+			if (filter == null || !filter.mightContain(key)) return false;
+		}
 		Boolean value = this.db.get(key);
 		return value != null && value.booleanValue();
 	}
@@ -25,6 +63,7 @@ public class BinaryDatabase implements BinaryDB {
 		Boolean value = this.db.get(key);
 		if (value == null || !value.booleanValue()) { 
 			this.db.put(key, Boolean.TRUE);
+			if (value == null) this.addToFilter(key);
 			return true;
 		} else if (value != null) {
 			this.db.put(key, Boolean.FALSE);
@@ -32,6 +71,11 @@ public class BinaryDatabase implements BinaryDB {
 		return false;
 	}
 
+	@Override
+	public boolean valueOf(Predicate p, int[] constants) {
+		return this.valueOf(p.getAtomTable().find(constants));
+	}
+
 	@Override
 	public void set(Atom key, boolean value) {
 		if (Atom.TRUE == key) return;
@@ -39,15 +83,101 @@ public class BinaryDatabase implements BinaryDB {
 		if (current == null) {
 			if (value) {
 				this.db.put(key, Boolean.TRUE);
+				this.addToFilter(key);
 			}
 		} else if (value != current.booleanValue()) {
+			// an Atom in the map is in the filter already
 			this.db.put(key, Boolean.valueOf(value));
 		}
 	}
 
+	@Override
+	public List<Atom> getTrueAtoms(Predicate p) {
+		List<Atom> atoms = new ArrayList<Atom>();
+		if (this.filterBits != 0) {
+			Filter filter = this.filter(p);
+			if (filter == null) return atoms;
+			for (Atom a : filter.atoms) {
+				if (this.db.get(a).booleanValue()) atoms.add(a);
+			}
+			return atoms;
+		}
+		for (Map.Entry<Atom, Boolean> entry : this.db.entrySet()) {
+			Atom a = entry.getKey();
+			if (a.predicate == p && entry.getValue().booleanValue()) {
+				atoms.add(a);
+			}
+		}
+		return atoms;
+	}
+
 	@Override
 	public BinaryDB getLocalCopy() {
 		return new BinaryLocalDB(this);
 	}
+
+	private Filter filter(Predicate p) {
+		int id = p.getId();
+		return id < this.filters.length ? this.filters[id] : null;
+	}
+
+	/**
+	 * Adds an Atom just put in the map to the filter of its Predicate.
+	 */
+	private void addToFilter(Atom key) {
+		if (this.filterBits == 0) return;
+		int id = key.predicate.getId();
+		Filter filter = this.filter(key.predicate);
+		if (filter == null) {
+			filter = new Filter(MIN_FILTER_ATOMS, this.filterBits);
+			if (id >= this.filters.length) {
+				this.filters = Arrays.copyOf(this.filters, id + 1);
+			}
+			this.filters[id] = filter;
+		} else if (filter.isFull()) {
+			// rebuilt without the atoms set to false since
+			List<Atom> atoms = new ArrayList<Atom>();
+			for (Atom a : filter.atoms) {
+				if (this.db.get(a).booleanValue()) {
+					atoms.add(a);
+				} else {
+					this.db.remove(a);
+				}
+			}
+			filter = new Filter(Math.max(MIN_FILTER_ATOMS, 2*(atoms.size() + 1)), this.filterBits);
+			for (Atom a : atoms) filter.add(a);
+			this.filters[id] = filter;
+		}
+		filter.add(key);
+	}
+
+	/**
+	 * A {@link LongBloomFilter} of the Atoms of a single Predicate in the
+	 * map, by their hash code, with the list of those Atoms.
+	 */
+	private static final class Filter {
+
+		private final LongBloomFilter bits;
+		private final List<Atom> atoms; // in the map
+
+		Filter(int capacity, int bitsPerAtom) {
+			this.bits = new LongBloomFilter(capacity, bitsPerAtom);
+			this.atoms = new ArrayList<Atom>();
+		}
+
+		boolean isFull() {
+			return this.bits.isFull();
+		}
+
+		void add(Atom a) {
+			this.bits.add(a.hashCode());
+			this.atoms.add(a);
+		}
+
+		boolean mightContain(Atom a) {
+			return this.bits.mightContain(a.hashCode());
+		}
+
+	}
 	
 }
@@ -1,15 +1,19 @@
 package fol.database;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import fol.Atom;
+import fol.Predicate;
 
-public class BinaryLocalDB extends BinaryDatabase {
+public class BinaryLocalDB extends BinaryDatabase implements LocalDB {
 
-	private final BinaryDatabase db;
+	private final BinaryDB db;
 	private final HashMap<Atom, Boolean> local;
 	
-	public BinaryLocalDB(BinaryDatabase db) {
+	public BinaryLocalDB(BinaryDB db) {
 		this.db = db; 
 		this.local = new HashMap<Atom, Boolean>();
 	}
@@ -51,6 +55,33 @@ public class BinaryLocalDB extends BinaryDatabase {
 		}
 	}
 	
+	@Override
+	public List<Atom> getTrueAtoms(Predicate p) {
+		List<Atom> atoms = new ArrayList<Atom>();
+		for (Atom a : this.db.getTrueAtoms(p)) {
+			if (!this.local.containsKey(a)) atoms.add(a);
+		}
+		atoms.addAll(this.getLocalTrueAtoms(p));
+		return atoms;
+	}
+	
+	@Override
+	public List<Atom> getLocalTrueAtoms(Predicate p) {
+		List<Atom> atoms = new ArrayList<Atom>();
+		for (Map.Entry<Atom, Boolean> entry : this.local.entrySet()) {
+			Atom a = entry.getKey();
+			if (a.predicate == p && entry.getValue().booleanValue()) {
+				atoms.add(a);
+			}
+		}
+		return atoms;
+	}
+	
+	@Override
+	public BinaryDB getDatabase() {
+		return this.db;
+	}
+	
 	@Override
 	public BinaryDB getLocalCopy() {
 		return new BinaryLocalDB(this);
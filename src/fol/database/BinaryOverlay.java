@@ -0,0 +1,190 @@
+package fol.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fol.Atom;
+import fol.AtomTable;
+import fol.Predicate;
+
+/**
+ * <p>A scratch world over a {@link BinaryDB}: the Atoms set or flipped
+ * here have their own value, the others the value in the database, that
+ * is not changed. For "what-if" evaluations, e.g. a formula with one Atom
+ * flipped: flip the Atom, evaluate and {@link #reset()}.</p>
+ *
+ * <p>The Atoms whose value differs from the database are kept by their
+ * position in the {@link AtomTable.Layout} of the Predicate, in a set of
+ * <code>long</code>s, the Atoms that have no position in a map. Nothing is
+ * allocated once the sets have grown, and a reset takes time proportional
+ * to the changes since the last one.</p>
+ *
+ * <p>Can be used as a local copy of the database by
+ * {@link ClauseCounter}. Not thread-safe.</p>
+ */
+public class BinaryOverlay implements LocalDB {
+
+	private final BinaryDB db;
+	private Slots[] slots; // indexed by Predicate id
+	private final Map<Atom, Boolean> atoms; // the atoms without a position
+
+	// the positions added to the slots since the last reset
+	private int[] changedPredicates;
+	private long[] changedIndexes;
+	private int changes;
+
+	public BinaryOverlay(BinaryDB db) {
+		this.db = db;
+		this.slots = new Slots[0];
+		this.atoms = new HashMap<Atom, Boolean>();
+		this.changedPredicates = new int[16];
+		this.changedIndexes = new long[16];
+		this.changes = 0;
+	}
+
+	private Slots slots(Predicate p, boolean create) {
+		int id = p.getId();
+		Slots slots = id < this.slots.length ? this.slots[id] : null;
+		if (slots == null && create) {
+			slots = new Slots(p.getAtomTable().layout());
+			if (id >= this.slots.length) {
+				this.slots = Arrays.copyOf(this.slots, id + 1);
+			}
+			this.slots[id] = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * @return true if the value of key differs from the database
+	 */
+	private boolean isFlipped(Atom key) {
+		Slots slots = this.slots(key.predicate, false);
+		if (slots != null) {
+			long index = slots.layout.index(key);
+			if (index >= 0) return slots.flipped.contains(index);
+		}
+		if (this.atoms.isEmpty()) return false;
+		Boolean value = this.atoms.get(key);
+		return value != null && value.booleanValue() != this.db.valueOf(key);
+	}
+
+	@Override
+	public boolean valueOf(Atom key) {
+		if (Atom.TRUE == key) return true;
+		return this.db.valueOf(key) != this.isFlipped(key);
+	}
+
+	@Override
+	public boolean valueOf(Predicate p, int[] constants) {
+		boolean value = this.db.valueOf(p, constants);
+		Slots slots = this.slots(p, false);
+		if (slots != null) {
+			long index = slots.layout.index(constants);
+			if (index >= 0) return value != slots.flipped.contains(index);
+		}
+		if (this.atoms.isEmpty()) return value;
+		return this.valueOf(p.getAtomTable().find(constants));
+	}
+
+	@Override
+	public boolean flip(Atom key) {
+		if (Atom.TRUE == key) return true;
+		boolean value = !this.valueOf(key);
+		this.set(key, value);
+		return value;
+	}
+
+	@Override
+	public void set(Atom key, boolean value) {
+		if (Atom.TRUE == key) return;
+		boolean flipped = this.db.valueOf(key) != value;
+		Slots slots = this.slots(key.predicate, flipped);
+		long index = slots == null ? AtomTable.NONE : slots.layout.index(key);
+		if (index < 0) {
+			if (flipped || !this.atoms.isEmpty()) this.atoms.put(key, Boolean.valueOf(value));
+		} else if (!flipped) {
+			slots.flipped.remove(index);
+		} else if (slots.flipped.add(index)) {
+			this.logChange(key.predicate.getId(), index);
+		}
+	}
+
+	private void logChange(int predicate, long index) {
+		if (this.changes == this.changedIndexes.length) {
+			this.changedPredicates = Arrays.copyOf(this.changedPredicates, this.changes << 1);
+			this.changedIndexes = Arrays.copyOf(this.changedIndexes, this.changes << 1);
+		}
+		this.changedPredicates[this.changes] = predicate;
+		this.changedIndexes[this.changes] = index;
+		this.changes++;
+	}
+
+	/**
+	 * Discards all the changes, the values are again those of the
+	 * database.
+	 */
+	public void reset() {
+		for (int i = 0; i < this.changes; i++) {
+			this.slots[this.changedPredicates[i]].flipped.remove(this.changedIndexes[i]);
+		}
+		this.changes = 0;
+		if (!this.atoms.isEmpty()) this.atoms.clear();
+	}
+
+	@Override
+	public BinaryDB getDatabase() {
+		return this.db;
+	}
+
+	@Override
+	public List<Atom> getLocalTrueAtoms(Predicate p) {
+		List<Atom> atoms = new ArrayList<Atom>();
+		Slots slots = this.slots(p, false);
+		if (slots != null) {
+			for (long index : slots.flipped.toArray()) {
+				Atom a = p.getAtomTable().atom(slots.layout, index);
+				if (!this.db.valueOf(a)) atoms.add(a);
+			}
+		}
+		for (Map.Entry<Atom, Boolean> e : this.atoms.entrySet()) {
+			if (e.getKey().predicate == p && e.getValue().booleanValue()) atoms.add(e.getKey());
+		}
+		return atoms;
+	}
+
+	@Override
+	public List<Atom> getTrueAtoms(Predicate p) {
+		List<Atom> atoms = new ArrayList<Atom>();
+		for (Atom a : this.db.getTrueAtoms(p)) {
+			if (!this.isFlipped(a)) atoms.add(a);
+		}
+		atoms.addAll(this.getLocalTrueAtoms(p));
+		return atoms;
+	}
+
+	@Override
+	public BinaryDB getLocalCopy() {
+		return new BinaryLocalDB(this);
+	}
+
+	/**
+	 * The positions of the Atoms of a single Predicate whose value
+	 * differs from the database.
+	 */
+	private static final class Slots {
+
+		final AtomTable.Layout layout;
+		final LongHashSet flipped;
+
+		Slots(AtomTable.Layout layout) {
+			this.layout = layout;
+			this.flipped = new LongHashSet();
+		}
+
+	}
+
+}
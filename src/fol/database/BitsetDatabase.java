@@ -0,0 +1,336 @@
+package fol.database;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fol.Atom;
+import fol.AtomTable;
+import fol.Predicate;
+
+/**
+ * <p>A {@link BinaryDB} that stores the values of each {@link Predicate} in
+ * a bitset. The position of a grounded Atom in the bitset is its index in
+ * the {@link AtomTable.Layout} of the Predicate, the mixed-radix number
+ * formed by the ids of its constants. Each radix is rounded up to a power
+ * of two, so that the position is computed with shifts only.</p>
+ *
+ * <p>Predicates with more than <code>denseLimit</code> possible positions
+ * keep only the positions of the true Atoms, in a hash set of longs,
+ * behind a {@link LongBloomFilter} of the positions: most lookups of
+ * false Atoms of a sparse Predicate are answered by the filter, without
+ * probing the set. The filters can be measured, see
+ * {@link #setFilterMetrics(boolean)}.</p>
+ *
+ * <p>Atoms with a Constant that does not belong to the argument Domain
+ * of the Predicate are stored in a {@link BinaryDatabase}, with a Bloom
+ * filter per Predicate as well.</p>
+ */
+public class BitsetDatabase implements BinaryDB {
+
+	/**
+	 * Default maximum number of bits in a dense Predicate table (8MB).
+	 */
+	public static final long DEFAULT_DENSE_LIMIT = 1L << 26;
+	
+	/**
+	 * Default bits of the Bloom filters per true Atom (about 1% false 
+	 * positives).
+	 */
+	public static final int DEFAULT_FILTER_BITS = 10;
+
+	private Table[] tables; // indexed by Predicate id
+	private final BinaryDatabase fallback;
+	private final long denseLimit;
+	private final int filterBits;
+	private boolean metrics;
+
+	public BitsetDatabase() {
+		this(DEFAULT_DENSE_LIMIT);
+	}
+
+	/**
+	 * @param denseLimit maximum number of bits of a dense Predicate table.
+	 * Predicates with more groundings than this are stored sparsely.
+	 */
+	public BitsetDatabase(long denseLimit) {
+		this(denseLimit, DEFAULT_FILTER_BITS);
+	}
+
+	/**
+	 * @param filterBits bits of the Bloom filters per true Atom, 0 for no
+	 * filter
+	 */
+	public BitsetDatabase(long denseLimit, int filterBits) {
+		if (filterBits < 0) {
+			throw new IllegalArgumentException("filterBits: " + filterBits);
+		}
+		this.tables = new Table[0];
+		this.fallback = new BinaryDatabase(filterBits);
+		this.denseLimit = denseLimit;
+		this.filterBits = filterBits;
+		this.metrics = false;
+	}
+
+	private Table table(Predicate p) {
+		int id = p.getId();
+		return id < this.tables.length ? this.tables[id] : null;
+	}
+
+	@Override
+	public boolean valueOf(Atom key) {
+		if (Atom.TRUE == key) return true;
+		Table table = this.table(key.predicate);
+		if (table == null) return this.fallback.valueOf(key);
+		long index = table.layout.index(key);
+		if (index == AtomTable.NONE) return this.fallback.valueOf(key);
+		return index != AtomTable.OUTSIDE && table.get(index);
+	}
+
+	@Override
+	public boolean valueOf(Predicate p, int[] constants) {
+		Table table = this.table(p);
+		if (table == null) return false;
+		long index = table.layout.index(constants);
+		return index >= 0 && table.get(index);
+	}
+
+	@Override
+	public boolean flip(Atom key) {
+		if (Atom.TRUE == key) return true;
+		boolean value = !this.valueOf(key);
+		this.set(key, value);
+		return value;
+	}
+
+	@Override
+	public void set(Atom key, boolean value) {
+		if (Atom.TRUE == key) return;
+		Table table = this.table(key.predicate);
+		if (table == null) {
+			if (!value) {
+				// absent atoms are false already
+				if (!this.fallback.valueOf(key)) return;
+				this.fallback.set(key, value);
+				return;
+			}
+			table = new Table(key.predicate.getAtomTable().layout(), this.denseLimit, this.filterBits);
+			if (this.metrics) table.metrics = new FilterMetrics();
+			int id = key.predicate.getId();
+			if (id >= this.tables.length) {
+				this.tables = Arrays.copyOf(this.tables, id + 1);
+			}
+			this.tables[id] = table;
+		}
+		long index = table.layout.index(key);
+		if (index == AtomTable.NONE) {
+			this.fallback.set(key, value);
+			return;
+		}
+		if (index == AtomTable.OUTSIDE) {
+			if (!value) return;
+			table.relayout(key.predicate.getAtomTable().layout(), this.denseLimit);
+			index = table.layout.index(key);
+		}
+		table.set(index, value);
+	}
+
+	@Override
+	public List<Atom> getTrueAtoms(Predicate p) {
+		List<Atom> atoms = this.fallback.getTrueAtoms(p);
+		Table table = this.table(p);
+		if (table != null) {
+			AtomTable.Layout layout = table.layout;
+			for (long index : table.trueIndexes()) {
+				atoms.add(p.getAtomTable().atom(layout, index));
+			}
+		}
+		return atoms;
+	}
+
+	@Override
+	public BinaryDB getLocalCopy() {
+		return new BinaryLocalDB(this);
+	}
+
+	/**
+	 * Starts or stops measuring the Bloom filters of the sparse 
+	 * Predicates, from 0. The counts are atomic, so each lookup of a 
+	 * sparse Predicate costs an increment or two while measuring, and 
+	 * nothing otherwise.
+	 */
+	public void setFilterMetrics(boolean enabled) {
+		this.metrics = enabled;
+		for (Table table : this.tables) {
+			if (table != null) table.metrics = enabled ? new FilterMetrics() : null;
+		}
+	}
+
+	private FilterMetrics metrics(Predicate p) {
+		Table table = this.table(p);
+		return table == null || table.filter == null ? null : table.metrics;
+	}
+
+	/**
+	 * @return the number of lookups of Atoms of p that went through its
+	 * filter since the metrics were enabled
+	 */
+	public long getFilterLookups(Predicate p) {
+		FilterMetrics metrics = this.metrics(p);
+		return metrics == null ? 0 : metrics.lookups.get();
+	}
+
+	/**
+	 * @return the fraction of the lookups of Atoms of p answered by its
+	 * filter, without probing the set
+	 */
+	public double getFilterHitRate(Predicate p) {
+		FilterMetrics metrics = this.metrics(p);
+		if (metrics == null) return 0.0d;
+		long lookups = metrics.lookups.get();
+		return lookups == 0 ? 0.0d : ((double) metrics.negatives.get()) / lookups;
+	}
+
+	/**
+	 * @return the fraction of the lookups of false Atoms of p that the
+	 * filter did not answer
+	 */
+	public double getFilterFalsePositiveRate(Predicate p) {
+		FilterMetrics metrics = this.metrics(p);
+		if (metrics == null) return 0.0d;
+		long falsePositives = metrics.falsePositives.get();
+		long falses = metrics.negatives.get() + falsePositives;
+		return falses == 0 ? 0.0d : ((double) falsePositives) / falses;
+	}
+
+	/**
+	 * The outcomes of the lookups through the filter of a Predicate.
+	 */
+	private static final class FilterMetrics {
+
+		final AtomicLong lookups = new AtomicLong();
+		final AtomicLong negatives = new AtomicLong();      // answered by the filter
+		final AtomicLong falsePositives = new AtomicLong(); // passed, but not in the set
+
+		void count(boolean passed, boolean value) {
+			this.lookups.incrementAndGet();
+			if (!passed) {
+				this.negatives.incrementAndGet();
+			} else if (!value) {
+				this.falsePositives.incrementAndGet();
+			}
+		}
+
+	}
+
+	/**
+	 * The values of a single Predicate.
+	 */
+	private static final class Table {
+
+		private static final int MIN_FILTER_VALUES = 64;
+
+		private AtomTable.Layout layout;
+		private final int filterBits;
+
+		// exactly one of those is not null
+		private long[] bits;
+		private LongHashSet sparse;
+		
+		private LongBloomFilter filter; // of sparse, null without filter
+		private FilterMetrics metrics;  // null unless measured
+
+		Table(AtomTable.Layout layout, long denseLimit, int filterBits) {
+			this.filterBits = filterBits;
+			this.allocate(layout, denseLimit);
+		}
+
+		/**
+		 * Allocates an empty storage for layout.
+		 */
+		private void allocate(AtomTable.Layout layout, long denseLimit) {
+			this.layout = layout;
+			long capacity = layout.capacity();
+			if (capacity > denseLimit) {
+				this.bits = null;
+				this.sparse = new LongHashSet();
+				this.filter = this.filterBits == 0 ? null : new LongBloomFilter(MIN_FILTER_VALUES, this.filterBits);
+			} else {
+				this.bits = new long[(int) ((capacity + 63) >>> 6)];
+				this.sparse = null;
+				this.filter = null;
+			}
+		}
+
+		/**
+		 * The domains have grown beyond the current layout, moves all
+		 * true values to their positions in the new layout.
+		 */
+		void relayout(AtomTable.Layout layout, long denseLimit) {
+			long[] old = this.trueIndexes();
+			AtomTable.Layout oldLayout = this.layout;
+			this.allocate(layout, denseLimit);
+			for (long index : old) {
+				this.set(oldLayout.move(index, layout), true);
+			}
+		}
+
+		private long[] trueIndexes() {
+			if (this.sparse != null) return this.sparse.toArray();
+			int count = 0;
+			for (long word : this.bits) count += Long.bitCount(word);
+			long[] out = new long[count];
+			int j = 0;
+			for (int w = 0; w < this.bits.length; w++) {
+				long word = this.bits[w];
+				while (word != 0) {
+					int bit = Long.numberOfTrailingZeros(word);
+					out[j++] = ((long) w << 6) | bit;
+					word &= word - 1;
+				}
+			}
+			return out;
+		}
+
+		boolean get(long index) {
+			if (this.bits != null) {
+				return (this.bits[(int) (index >>> 6)] & (1L << index)) != 0;
+			}
+			LongBloomFilter filter = this.filter;
+			if (filter == null) return this.sparse.contains(index);
+			boolean passed = filter.mightContain(index);
+			boolean value = passed && this.sparse.contains(index);
+			FilterMetrics metrics = this.metrics;
+			if (metrics != null) metrics.count(passed, value);
+			return value;
+		}
+
+		void set(long index, boolean value) {
+			if (this.bits != null) {
+				int word = (int) (index >>> 6);
+				if (value) {
+					this.bits[word] |= 1L << index;
+				} else {
+					this.bits[word] &= ~(1L << index);
+				}
+			} else if (value) {
+				if (this.sparse.add(index) && this.filter != null) this.addToFilter(index);
+			} else {
+				this.sparse.remove(index);
+			}
+		}
+
+		private void addToFilter(long index) {
+			if (!this.filter.isFull()) {
+				this.filter.add(index);
+				return;
+			}
+			// rebuilt from the set, without the positions removed since
+			LongBloomFilter filter = new LongBloomFilter(Math.max(MIN_FILTER_VALUES, 2*this.sparse.size()), this.filterBits);
+			for (long i : this.sparse.toArray()) filter.add(i);
+			this.filter = filter;
+		}
+
+	}
+
+}
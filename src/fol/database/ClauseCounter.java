@@ -0,0 +1,549 @@
+package fol.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fol.Atom;
+import fol.Clause;
+import fol.Constant;
+import fol.Domain;
+import fol.Literal;
+import fol.Predicate;
+import fol.Term;
+import fol.Variable;
+
+/**
+ * <p>Exact counts of the true groundings of a {@link Clause} in a
+ * {@link BinaryDB}.</p>
+ *
+ * <p>A grounding of a Clause is false when the atom of every negative
+ * literal is true and the atom of every positive literal is false. The
+ * false groundings are then the answers of the conjunctive query over the
+ * negative literals, a join of the true tuples of their Predicates, where
+ * no positive literal atom is true. Positive literals whose variables are
+ * bound by the join are looked up in the database, the others are
+ * counted by inclusion-exclusion (closed-world complement): the
+ * groundings where none of them is true are all the groundings minus the
+ * ones where some of them is true, each of those a join too. The time is
+ * proportional to the tuples joined, not to the number of groundings.</p>
+ *
+ * <p>The true tuples of each Predicate are read once from the database
+ * ({@link BinaryDB#getTrueAtoms(Predicate)}) and kept sorted by the bound
+ * arguments of each lookup. Counts can be made against the database or a
+ * local copy of it ({@link BinaryDB#getLocalCopy()}), whose changes are
+ * applied on the fly. The database must not change while the counter is
+ * in use.</p>
+ *
+ * <p>Thread-safe.</p>
+ */
+public class ClauseCounter {
+
+	private final BinaryDB db;
+	private final ConcurrentHashMap<Predicate, Relation> relations;
+
+	public ClauseCounter(BinaryDB db) {
+		this.db = db;
+		this.relations = new ConcurrentHashMap<Predicate, Relation>();
+	}
+
+	/**
+	 * @return the number of true groundings of clause in the database
+	 */
+	public double trueCount(Clause clause) {
+		return this.trueCount(clause, this.db);
+	}
+
+	/**
+	 * @param db the database of this counter or a local copy of it
+	 * @return the number of true groundings of clause in db
+	 */
+	public double trueCount(Clause clause, BinaryDB db) {
+		Query query = new Query(clause, db);
+		return query.total() - query.falseCount();
+	}
+
+	/**
+	 * @return the number of false groundings of clause in the database
+	 */
+	public double falseCount(Clause clause) {
+		return this.falseCount(clause, this.db);
+	}
+
+	/**
+	 * @param db the database of this counter or a local copy of it
+	 * @return the number of false groundings of clause in db
+	 */
+	public double falseCount(Clause clause, BinaryDB db) {
+		return new Query(clause, db).falseCount();
+	}
+
+	private Relation relation(Predicate p) {
+		Relation relation = this.relations.get(p);
+		if (relation == null) {
+			relation = new Relation(p, this.db.getTrueAtoms(p));
+			Relation previous = this.relations.putIfAbsent(p, relation);
+			if (previous != null) relation = previous;
+		}
+		return relation;
+	}
+
+	/**
+	 * @return the ids of the atom constants in the argument Domains, or
+	 * null if some constant is not in its argument Domain.
+	 */
+	private static int[] ids(Atom atom) {
+		List<Domain> domains = atom.predicate.getDomains();
+		int[] ids = new int[atom.terms.length];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = domains.get(i).indexOf((Constant) atom.terms[i]);
+			if (ids[i] < 0) return null;
+		}
+		return ids;
+	}
+
+	/**
+	 * The true tuples of a Predicate, as constant ids in the argument
+	 * Domains.
+	 */
+	private static final class Relation {
+
+		private final int arity;
+		private final int[] tuples; // arity ids for each tuple
+		private final int size;
+		// tuple numbers sorted by the arguments in the key mask
+		private final ConcurrentHashMap<Integer, int[]> orders;
+
+		Relation(Predicate p, List<Atom> atoms) {
+			this.arity = p.getDomains().size();
+			int[] tuples = new int[atoms.size() * this.arity];
+			int size = 0;
+			for (Atom a : atoms) {
+				int[] ids = ids(a);
+				if (ids == null) continue; // can not be joined by id
+				System.arraycopy(ids, 0, tuples, size * this.arity, this.arity);
+				size++;
+			}
+			this.tuples = tuples;
+			this.size = size;
+			this.orders = new ConcurrentHashMap<Integer, int[]>();
+		}
+
+		int get(int tuple, int argument) {
+			return this.tuples[tuple * this.arity + argument];
+		}
+
+		int[] order(final int mask) {
+			Integer key = Integer.valueOf(mask);
+			int[] order = this.orders.get(key);
+			if (order != null) return order;
+			Integer[] sorted = new Integer[this.size];
+			for (int i = 0; i < this.size; i++) sorted[i] = Integer.valueOf(i);
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return Relation.this.compare(o1.intValue(), mask, o2.intValue());
+				}
+			});
+			order = new int[this.size];
+			for (int i = 0; i < this.size; i++) order[i] = sorted[i].intValue();
+			this.orders.putIfAbsent(key, order);
+			return order;
+		}
+
+		private int compare(int tuple, int mask, int other) {
+			for (int i = 0; i < this.arity; i++) {
+				if ((mask & (1 << i)) == 0) continue;
+				int a = this.get(tuple, i);
+				int b = this.get(other, i);
+				if (a != b) return a < b ? -1 : 1;
+			}
+			return 0;
+		}
+
+		private int compare(int tuple, int mask, int[] key) {
+			for (int i = 0; i < this.arity; i++) {
+				if ((mask & (1 << i)) == 0) continue;
+				int a = this.get(tuple, i);
+				if (a != key[i]) return a < key[i] ? -1 : 1;
+			}
+			return 0;
+		}
+
+		/**
+		 * @return the first position in order of a tuple not less than
+		 * key (if upper is false) or greater than key (if upper is true)
+		 */
+		int search(int[] order, int mask, int[] key, boolean upper) {
+			int low = 0;
+			int high = order.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				int c = this.compare(order[middle], mask, key);
+				if (c < 0 || (upper && c == 0)) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+	}
+
+	/**
+	 * A literal atom of the query.
+	 */
+	private static final class Pattern {
+
+		final Atom atom;
+		final int[] constants; // argument id of constants, or -1
+		final int[] variables; // variable of each argument, or -1
+		final Domain[] domains; // argument domains
+		final boolean convert; // some variable domain is not its argument domain
+		Relation relation; // lazy instantiated
+
+		Pattern(Atom atom, List<Variable> variables) {
+			this.atom = atom;
+			int arity = atom.terms.length;
+			this.constants = new int[arity];
+			this.variables = new int[arity];
+			this.domains = atom.predicate.getDomains().toArray(new Domain[arity]);
+			boolean convert = false;
+			for (int i = 0; i < arity; i++) {
+				Term t = atom.terms[i];
+				if (t instanceof Variable) {
+					this.constants[i] = -1;
+					this.variables[i] = variables.indexOf(t);
+					convert = convert || t.getDomain() != this.domains[i];
+				} else {
+					this.constants[i] = this.domains[i].indexOf((Constant) t);
+					this.variables[i] = -1;
+				}
+			}
+			this.convert = convert;
+		}
+
+	}
+
+	/**
+	 * The state of a single count.
+	 */
+	private final class Query {
+
+		private final BinaryDB db;
+		private final boolean local;
+		private final List<LocalDB> chain;
+		private final Map<Predicate, int[][]> additions;
+
+		private final List<Variable> variables;
+		private final Domain[] domains; // variable domains
+		private final int[] bindings; // -1 if not bound
+
+		private final boolean satisfied; // some grounded literal is true
+		private final Pattern[] negatives; // join order
+		private final Pattern[] bound; // positives bound by the join
+		private final Pattern[] free; // the other positives
+		private final Pattern[][] subsets; // join order of each subset of free
+		private final int[][] multipliers; // variables not bound by each subset
+
+		Query(Clause clause, BinaryDB db) {
+			this.db = db;
+			this.chain = new ArrayList<LocalDB>();
+			BinaryDB current = db;
+			while (current != ClauseCounter.this.db) {
+				if (!(current instanceof LocalDB)) {
+					throw new IllegalArgumentException("Not a local copy of the counter database.");
+				}
+				LocalDB copy = (LocalDB) current;
+				this.chain.add(copy);
+				current = copy.getDatabase();
+			}
+			this.local = !this.chain.isEmpty();
+			this.additions = new HashMap<Predicate, int[][]>();
+
+			Set<Variable> variables = new HashSet<Variable>();
+			List<Atom> negatives = new ArrayList<Atom>();
+			List<Atom> positives = new ArrayList<Atom>();
+			boolean satisfied = false;
+			for (Literal l : clause.getLiterals()) {
+				if (l.atom.isGrounded()) {
+					// the literal has the same value in every grounding
+					satisfied = satisfied || l.getValue(db);
+					continue;
+				}
+				variables.addAll(l.atom.getVariables());
+				if (l.signal) {
+					positives.add(l.atom);
+				} else {
+					negatives.add(l.atom);
+				}
+			}
+			this.satisfied = satisfied;
+			this.variables = new ArrayList<Variable>(variables);
+			int n = this.variables.size();
+			this.domains = new Domain[n];
+			this.bindings = new int[n];
+			for (int i = 0; i < n; i++) {
+				this.domains[i] = this.variables.get(i).getDomain();
+				this.bindings[i] = -1;
+			}
+
+			boolean[] bound = new boolean[n];
+			this.negatives = this.order(this.patterns(negatives), bound);
+			List<Pattern> boundPositives = new ArrayList<Pattern>();
+			List<Pattern> freePositives = new ArrayList<Pattern>();
+			for (Pattern p : this.patterns(positives)) {
+				boolean b = true;
+				for (int v : p.variables) b = b && (v < 0 || bound[v]);
+				(b ? boundPositives : freePositives).add(p);
+			}
+			this.bound = boundPositives.toArray(new Pattern[boundPositives.size()]);
+			this.free = freePositives.toArray(new Pattern[freePositives.size()]);
+			if (this.free.length > 30) {
+				throw new UnsupportedOperationException("Too many literals to count: " + clause);
+			}
+
+			int subsets = 1 << this.free.length;
+			this.subsets = new Pattern[subsets][];
+			this.multipliers = new int[subsets][];
+			for (int s = 0; s < subsets; s++) {
+				List<Pattern> subset = new ArrayList<Pattern>();
+				for (int i = 0; i < this.free.length; i++) {
+					if ((s & (1 << i)) != 0) subset.add(this.free[i]);
+				}
+				boolean[] b = bound.clone();
+				this.subsets[s] = this.order(subset, b);
+				int count = 0;
+				for (int v = 0; v < n; v++) if (!b[v]) count++;
+				this.multipliers[s] = new int[count];
+				count = 0;
+				for (int v = 0; v < n; v++) if (!b[v]) this.multipliers[s][count++] = v;
+			}
+		}
+
+		private List<Pattern> patterns(List<Atom> atoms) {
+			List<Pattern> patterns = new ArrayList<Pattern>(atoms.size());
+			for (Atom a : atoms) patterns.add(new Pattern(a, this.variables));
+			return patterns;
+		}
+
+		/**
+		 * Greedy join order: the pattern with most bound arguments first,
+		 * ties broken by the smallest relation. Marks the variables of
+		 * the patterns in bound.
+		 */
+		private Pattern[] order(List<Pattern> patterns, boolean[] bound) {
+			List<Pattern> left = new ArrayList<Pattern>(patterns);
+			Pattern[] order = new Pattern[left.size()];
+			for (int k = 0; k < order.length; k++) {
+				Pattern best = null;
+				int bestBound = -1;
+				int bestSize = Integer.MAX_VALUE;
+				for (Pattern p : left) {
+					int b = 0;
+					for (int i = 0; i < p.variables.length; i++) {
+						if (p.variables[i] < 0 || bound[p.variables[i]]) b++;
+					}
+					int size = this.relation(p).size;
+					if (b > bestBound || (b == bestBound && size < bestSize)) {
+						best = p;
+						bestBound = b;
+						bestSize = size;
+					}
+				}
+				left.remove(best);
+				order[k] = best;
+				for (int v : best.variables) if (v >= 0) bound[v] = true;
+			}
+			return order;
+		}
+
+		private Relation relation(Pattern p) {
+			if (p.relation == null) p.relation = ClauseCounter.this.relation(p.atom.predicate);
+			return p.relation;
+		}
+
+		/**
+		 * @return the total number of groundings
+		 */
+		double total() {
+			double total = 1.0d;
+			for (Domain d : this.domains) total *= d.size();
+			return total;
+		}
+
+		double falseCount() {
+			if (this.satisfied) return 0.0d;
+			return this.join(this.negatives, 0, true);
+		}
+
+		/**
+		 * Counts the bindings of the variables of patterns[depth..] such
+		 * that all those atoms are true. If outer is true each binding is
+		 * weighted by the number of extensions to the free variables where
+		 * every positive literal is false.
+		 */
+		private double join(Pattern[] patterns, int depth, boolean outer) {
+			if (depth == patterns.length) {
+				return outer ? this.extensions() : 1.0d;
+			}
+			Pattern p = patterns[depth];
+			Relation relation = this.relation(p);
+			int arity = p.variables.length;
+			int[] key = new int[arity];
+			int mask = 0;
+			for (int i = 0; i < arity; i++) {
+				int id = this.argument(p, i);
+				if (id == -2) return 0.0d; // binding not in the argument domain
+				if (id >= 0) {
+					key[i] = id;
+					mask |= 1 << i;
+				}
+			}
+			if (mask == (1 << arity) - 1) {
+				// fully bound, a lookup
+				if (!this.db.valueOf(p.atom.predicate, key)) return 0.0d;
+				return this.join(patterns, depth+1, outer);
+			}
+
+			double count = 0.0d;
+			int[] tuple = new int[arity];
+			int[] order = relation.order(mask);
+			int start = relation.search(order, mask, key, false);
+			int end = relation.search(order, mask, key, true);
+			for (int k = start; k < end; k++) {
+				for (int i = 0; i < arity; i++) tuple[i] = relation.get(order[k], i);
+				if (this.local && !this.db.valueOf(p.atom.predicate, tuple)) continue;
+				count += this.extend(patterns, depth, outer, p, tuple);
+			}
+			if (this.local) {
+				for (int[] added : this.additions(p.atom.predicate)) {
+					boolean match = true;
+					for (int i = 0; i < arity && match; i++) {
+						match = (mask & (1 << i)) == 0 || added[i] == key[i];
+					}
+					if (!match) continue;
+					count += this.extend(patterns, depth, outer, p, added);
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Binds the free variables of p to tuple and joins the next
+		 * patterns.
+		 */
+		private double extend(Pattern[] patterns, int depth, boolean outer, Pattern p, int[] tuple) {
+			int arity = p.variables.length;
+			int bound = 0; // arguments bound here
+			double count = 0.0d;
+			boolean match = true;
+			for (int i = 0; i < arity && match; i++) {
+				int v = p.variables[i];
+				if (v < 0) {
+					match = tuple[i] == p.constants[i];
+					continue;
+				}
+				int id = tuple[i];
+				if (p.convert && this.domains[v] != p.domains[i]) {
+					id = this.domains[v].indexOf(p.domains[i].getConstant(id));
+					if (id < 0) {
+						match = false;
+						continue;
+					}
+				}
+				if (this.bindings[v] < 0) {
+					this.bindings[v] = id;
+					bound |= 1 << i;
+				} else {
+					match = this.bindings[v] == id;
+				}
+			}
+			if (match) count = this.join(patterns, depth+1, outer);
+			for (int i = 0; i < arity; i++) {
+				if ((bound & (1 << i)) != 0) this.bindings[p.variables[i]] = -1;
+			}
+			return count;
+		}
+
+		/**
+		 * @return the id of argument i of p in its argument domain, -1 if
+		 * it is not bound or -2 if it is bound to a Constant that is not
+		 * in the argument domain
+		 */
+		private int argument(Pattern p, int i) {
+			int v = p.variables[i];
+			if (v < 0) return p.constants[i] < 0 ? -2 : p.constants[i];
+			int id = this.bindings[v];
+			if (id < 0) return -1;
+			if (p.convert && this.domains[v] != p.domains[i]) {
+				id = p.domains[i].indexOf(this.domains[v].getConstant(id));
+				if (id < 0) return -2;
+			}
+			return id;
+		}
+
+		/**
+		 * @return true if the atom of p, with all its variables bound, is
+		 * true in the database
+		 */
+		private boolean isTrue(Pattern p) {
+			int[] key = new int[p.variables.length];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = this.argument(p, i);
+				if (key[i] < 0) return false;
+			}
+			return this.db.valueOf(p.atom.predicate, key);
+		}
+
+		/**
+		 * @return the number of bindings of the variables not bound by the
+		 * negative literals where every positive literal is false
+		 */
+		private double extensions() {
+			for (Pattern p : this.bound) {
+				if (this.isTrue(p)) return 0.0d;
+			}
+			double count = 0.0d;
+			for (int s = 0; s < this.subsets.length; s++) {
+				double joined = this.join(this.subsets[s], 0, false);
+				if (joined == 0.0d) continue;
+				for (int v : this.multipliers[s]) joined *= this.domains[v].size();
+				count += (Integer.bitCount(s) % 2 == 0) ? joined : -joined;
+			}
+			return count;
+		}
+
+		/**
+		 * @return the tuples of p that are true in the local copy and false
+		 * in the counter database
+		 */
+		private int[][] additions(Predicate p) {
+			int[][] tuples = this.additions.get(p);
+			if (tuples != null) return tuples;
+			Set<Atom> atoms = new HashSet<Atom>();
+			for (LocalDB copy : this.chain) {
+				for (Atom a : copy.getLocalTrueAtoms(p)) {
+					if (this.db.valueOf(a) && !ClauseCounter.this.db.valueOf(a)) atoms.add(a);
+				}
+			}
+			List<int[]> list = new ArrayList<int[]>(atoms.size());
+			for (Atom a : atoms) {
+				int[] ids = ids(a);
+				if (ids != null) list.add(ids);
+			}
+			tuples = list.toArray(new int[list.size()][]);
+			this.additions.put(p, tuples);
+			return tuples;
+		}
+
+	}
+
+}
@@ -0,0 +1,247 @@
+package fol.database;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fol.Atom;
+import fol.AtomTable;
+import fol.Predicate;
+
+/**
+ * <p>A {@link RealDB} that stores the values of each {@link Predicate} in
+ * a primitive array, indexed as in {@link BitsetDatabase} by the position
+ * of the grounded Atom in the {@link AtomTable.Layout} of the
+ * Predicate.</p>
+ *
+ * <p>The values are kept as <code>float</code>s or, for probabilities,
+ * quantized in 16 or 8 bits: a value <code>v</code> in <code>[0,1]</code>
+ * is stored as <code>round(v*max)</code>, <code>max</code> 65534 or 254,
+ * so 0.0 and 1.0 are exact and the error is at most
+ * {@link #error(int)}. The largest code is <code>NaN</code>, the value
+ * of unknown Atoms.</p>
+ *
+ * <p>Predicates with more than <code>denseLimit</code> possible positions,
+ * and Atoms with a Constant that does not belong to the argument Domain
+ * of the Predicate, are stored in a {@link RealDatabase}.</p>
+ */
+public class FloatArrayDatabase implements RealDB {
+
+	/**
+	 * Bits of each value.
+	 */
+	public static final int FLOAT = 32, SHORT = 16, BYTE = 8;
+
+	/**
+	 * Default maximum number of values in a dense Predicate table.
+	 */
+	public static final long DEFAULT_DENSE_LIMIT = 1L << 24;
+
+	private Table[] tables; // indexed by Predicate id
+	private final RealDatabase fallback;
+	private final int bits;
+	private final long denseLimit;
+
+	public FloatArrayDatabase() {
+		this(FLOAT, DEFAULT_DENSE_LIMIT);
+	}
+
+	/**
+	 * @param bits of each value, {@link #FLOAT}, {@link #SHORT} or
+	 * {@link #BYTE}
+	 */
+	public FloatArrayDatabase(int bits) {
+		this(bits, DEFAULT_DENSE_LIMIT);
+	}
+
+	/**
+	 * @param bits of each value, {@link #FLOAT}, {@link #SHORT} or
+	 * {@link #BYTE}
+	 * @param denseLimit maximum number of values of a dense Predicate
+	 * table. Predicates with more groundings than this are stored in a
+	 * {@link RealDatabase}.
+	 */
+	public FloatArrayDatabase(int bits, long denseLimit) {
+		if (bits != FLOAT && bits != SHORT && bits != BYTE) {
+			throw new IllegalArgumentException("bits: " + bits);
+		}
+		this.tables = new Table[0];
+		this.fallback = new RealDatabase();
+		this.bits = bits;
+		this.denseLimit = Math.min(denseLimit, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the largest difference between a value in <code>[0,1]</code>
+	 * and the value stored with <code>bits</code>
+	 */
+	public static double error(int bits) {
+		switch (bits) {
+		case SHORT: return 0.5d / 65534;
+		case BYTE: return 0.5d / 254;
+		default: return Math.ulp(1.0f) / 2;
+		}
+	}
+
+	public int getBits() {
+		return this.bits;
+	}
+
+	private Table table(Predicate p) {
+		int id = p.getId();
+		return id < this.tables.length ? this.tables[id] : null;
+	}
+
+	@Override
+	public double valueOf(Atom key) {
+		if (Atom.TRUE == key) return 1.0d;
+		Table table = this.table(key.predicate);
+		if (table == null) return this.fallback.valueOf(key);
+		long index = table.layout.index(key);
+		if (index == AtomTable.NONE) return this.fallback.valueOf(key);
+		return index == AtomTable.OUTSIDE ? 0.0d : table.get((int) index);
+	}
+
+	@Override
+	public double valueOf(Predicate p, int[] constants) {
+		Table table = this.table(p);
+		if (table == null) return this.fallback.valueOf(p, constants);
+		long index = table.layout.index(constants);
+		return index < 0 ? 0.0d : table.get((int) index);
+	}
+
+	@Override
+	public void set(Atom key, double value) {
+		if (Atom.TRUE == key) return;
+		if (this.bits != FLOAT && (value < 0.0d || value > 1.0d)) {
+			throw new IllegalArgumentException("Value outside [0,1]: " + key + " " + value);
+		}
+		Table table = this.table(key.predicate);
+		if (table == null) {
+			AtomTable.Layout layout = key.predicate.getAtomTable().layout();
+			if (value == 0.0d || layout.capacity() > this.denseLimit) {
+				this.fallback.set(key, value);
+				return;
+			}
+			table = new Table(layout, this.bits);
+			int id = key.predicate.getId();
+			if (id >= this.tables.length) {
+				this.tables = Arrays.copyOf(this.tables, id + 1);
+			}
+			this.tables[id] = table;
+		}
+		long index = table.layout.index(key);
+		if (index == AtomTable.NONE) {
+			this.fallback.set(key, value);
+			return;
+		}
+		if (index == AtomTable.OUTSIDE) {
+			if (value == 0.0d) return;
+			table = this.relayout(key.predicate, table);
+			if (table == null) {
+				this.fallback.set(key, value);
+				return;
+			}
+			index = table.layout.index(key);
+		}
+		table.set((int) index, value);
+	}
+
+	/**
+	 * The domains of p have grown beyond the layout of its table, moves
+	 * the values to a table with the new layout, or to the fallback
+	 * database if it is too large.
+	 * @return the new table, or null
+	 */
+	private Table relayout(Predicate p, Table table) {
+		AtomTable.Layout layout = p.getAtomTable().layout();
+		Table moved = layout.capacity() > this.denseLimit ? null : new Table(layout, this.bits);
+		for (int i = 0; i < table.length(); i++) {
+			double value = table.get(i);
+			if (value == 0.0d) continue;
+			if (moved != null) {
+				moved.set((int) table.layout.move(i, layout), value);
+			} else {
+				this.fallback.set(p.getAtomTable().atom(table.layout, i), value);
+			}
+		}
+		this.tables[p.getId()] = moved;
+		return moved;
+	}
+
+	/**
+	 * @return the values other than 0.0 by Atom, unmodifiable, as 
+	 * {@link RealDatabase#getValues()}
+	 */
+	public Map<Atom, Double> getValues() {
+		Map<Atom, Double> values = new HashMap<Atom, Double>();
+		for (Map.Entry<Atom, Double> e : this.fallback.getValues().entrySet()) {
+			if (e.getValue().doubleValue() != 0.0d) values.put(e.getKey(), e.getValue());
+		}
+		for (Table table : this.tables) {
+			if (table == null) continue;
+			AtomTable atoms = table.layout.getTable();
+			for (int i = 0; i < table.length(); i++) {
+				double value = table.get(i);
+				if (value != 0.0d) values.put(atoms.atom(table.layout, i), Double.valueOf(value));
+			}
+		}
+		return Collections.unmodifiableMap(values);
+	}
+
+	@Override
+	public RealDB getLocalCopy() {
+		return new RealOverlay(this);
+	}
+
+	/**
+	 * The values of a single Predicate.
+	 */
+	private static final class Table {
+
+		private static final int SHORT_MAX = 65534;
+		private static final int BYTE_MAX = 254;
+
+		final AtomTable.Layout layout;
+
+		// exactly one of those is not null
+		private final float[] floats;
+		private final short[] shorts;
+		private final byte[] bytes;
+
+		Table(AtomTable.Layout layout, int bits) {
+			this.layout = layout;
+			int capacity = (int) layout.capacity();
+			this.floats = bits == FLOAT ? new float[capacity] : null;
+			this.shorts = bits == SHORT ? new short[capacity] : null;
+			this.bytes = bits == BYTE ? new byte[capacity] : null;
+		}
+
+		int length() {
+			return (int) this.layout.capacity();
+		}
+
+		double get(int index) {
+			if (this.floats != null) return this.floats[index];
+			if (this.shorts != null) {
+				int code = this.shorts[index] & 0xFFFF;
+				return code > SHORT_MAX ? Double.NaN : ((double) code) / SHORT_MAX;
+			}
+			int code = this.bytes[index] & 0xFF;
+			return code > BYTE_MAX ? Double.NaN : ((double) code) / BYTE_MAX;
+		}
+
+		void set(int index, double value) {
+			if (this.floats != null) {
+				this.floats[index] = (float) value;
+			} else if (this.shorts != null) {
+				this.shorts[index] = (short) (Double.isNaN(value) ? SHORT_MAX + 1 : Math.round(value*SHORT_MAX));
+			} else {
+				this.bytes[index] = (byte) (Double.isNaN(value) ? BYTE_MAX + 1 : Math.round(value*BYTE_MAX));
+			}
+		}
+
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import stat.convergence.SequentialConvergenceTester;
@@ -13,9 +14,13 @@ import stat.convergence.SequentialTester;
 import stat.sampling.CrossJoinSampler;
 import stat.sampling.Sampler;
 import fol.Atom;
+import fol.CNF;
+import fol.Clause;
+import fol.CompiledFormula;
 import fol.Constant;
 import fol.Formula;
 import fol.FormulaFactory;
+import fol.Literal;
 import fol.Predicate;
 import fol.Term;
 import fol.Variable;
@@ -79,6 +84,13 @@ public class Groundings<T extends Formula> implements Iterator<T> {
 		return this.size;
 	}
 
+	/**
+	 * @return true if every grounding is returned exactly once
+	 */
+	public boolean isExact() {
+		return this.exact;
+	}
+
 	@Override
 	public boolean hasNext() {
 		return this.counter < size;
@@ -130,16 +142,29 @@ public class Groundings<T extends Formula> implements Iterator<T> {
 		return (int) Math.min(l, Integer.MAX_VALUE);
 	}
 	
+	/**
+	 * Counts the groundings of filter with the given value. Clauses (and
+	 * Atoms, Literals and single clause CNFs) are counted exactly by a
+	 * {@link ClauseCounter}, other formulas are estimated from random 
+	 * groundings.
+	 */
 	public static double count(Formula filter, boolean value, BinaryDB db) {
 		if (filter.isGrounded()) return filter.getValue(db) == value ? 1.0 : 0.0;
 		
-		Groundings<Formula> formulas = new Groundings<Formula>(filter);
-		int total = formulas.size();
+		Clause clause = asClause(filter);
+		if (clause != null) {
+			ClauseCounter counter = new ClauseCounter(db);
+			return value ? counter.trueCount(clause) : counter.falseCount(clause);
+		}
+		
+		CompiledFormula formula = new CompiledFormula(filter);
+		Bindings bindings = new Bindings(formula.getVariables());
+		int total = bindings.size();
 		
 		SequentialTester tester = new SequentialConvergenceTester(.99, 0.05);
 		tester.setSampleLimit(total);
 		while (!tester.hasConverged()) {
-			double next = formulas.next().getValue(db) ? 1.0d : 0.0d;
+			double next = formula.getValue(db, bindings.next()) ? 1.0d : 0.0d;
 			tester.increment(next);
 		}
 		
@@ -147,22 +172,99 @@ public class Groundings<T extends Formula> implements Iterator<T> {
 		return ratio * total;
 	}
 	
+	/**
+	 * @return the Clause equivalent to filter, or null if filter is not
+	 * a single Clause
+	 */
+	private static Clause asClause(Formula filter) {
+		if (filter instanceof Clause) return (Clause) filter;
+		if (filter instanceof Atom || filter instanceof Literal) {
+			return filter.toCNF().getClauses().get(0);
+		}
+		if (filter instanceof CNF) {
+			List<Clause> clauses = ((CNF) filter).getClauses();
+			if (clauses.size() == 1) return clauses.get(0);
+		}
+		return null;
+	}
+	
 	public static double count(Formula filter, boolean value, RealDB db) {
 		if (filter.isGrounded()) 
 			return value ? filter.getValue(db) : 1.0d - filter.getValue(db);
 		
-		Groundings<Formula> formulas = new Groundings<Formula>(filter);
-		int total = formulas.size();
+		CompiledFormula formula = new CompiledFormula(filter);
+		Bindings bindings = new Bindings(formula.getVariables());
+		int total = bindings.size();
 		
 		SequentialTester tester = new SequentialConvergenceTester(.99, 0.05);
 		tester.setSampleLimit(total);
 		while (!tester.hasConverged()) {
-			double next = formulas.next().getValue(db);
+			double next = formula.getValue(db, bindings.next());
 			tester.increment(next);
 		}
 		
 		double ratio = value ? tester.mean() : 1.0d - tester.mean();
 		return ratio * total;
 	}
+	
+	/**
+	 * Samples the bindings of a {@link CompiledFormula} the same way 
+	 * Groundings samples the Constants of the Variables: every grounding 
+	 * in random order if there are less than EXACT_THRESHOLD of them, 
+	 * uniformly with replacement otherwise.
+	 */
+	private static final class Bindings {
+		
+		private final int[] sizes;
+		private final int[] bindings;
+		private final int[] order; // null unless exact
+		private final Random random;
+		private final int size;
+		private int counter;
+		
+		Bindings(List<Variable> variables) {
+			int n = variables.size();
+			this.sizes = new int[n];
+			this.bindings = new int[n];
+			this.random = new Random();
+			long l = 1;
+			for (int i = 0; i < n; i++) {
+				this.sizes[i] = variables.get(i).getDomain().size();
+				l = l * this.sizes[i];
+			}
+			this.size = (int) Math.min(l, Integer.MAX_VALUE);
+			this.counter = 0;
+			if (this.size < EXACT_THRESHOLD) {
+				this.order = new int[this.size];
+				for (int i = 0; i < this.size; i++) {
+					int j = this.random.nextInt(i+1);
+					this.order[i] = this.order[j];
+					this.order[j] = i;
+				}
+			} else {
+				this.order = null;
+			}
+		}
+		
+		int size() {
+			return this.size;
+		}
+		
+		int[] next() {
+			if (this.order != null) {
+				int grounding = this.order[this.counter++ % this.size];
+				for (int i = 0; i < this.sizes.length; i++) {
+					this.bindings[i] = grounding % this.sizes[i];
+					grounding = grounding / this.sizes[i];
+				}
+			} else {
+				for (int i = 0; i < this.sizes.length; i++) {
+					this.bindings[i] = this.random.nextInt(this.sizes[i]);
+				}
+			}
+			return this.bindings;
+		}
+		
+	}
 
 }
@@ -0,0 +1,78 @@
+package fol.database;
+
+import java.util.List;
+
+import fol.Atom;
+import fol.Predicate;
+
+/**
+ * <p>A {@link BinaryDB} that keeps an {@link AtomIndex} of the true Atoms
+ * of another BinaryDB. The index of each Predicate is built the first
+ * time it is used and maintained as <code>set</code> and <code>flip</code>
+ * calls arrive.</p>
+ *
+ * <p>The wrapped database must only be changed through this one. Changes
+ * in a local copy ({@link #getLocalCopy()}) are not indexed.</p>
+ */
+public class IndexedBinaryDB implements BinaryDB {
+
+	private final BinaryDB db;
+	private final AtomIndex index;
+
+	public IndexedBinaryDB(BinaryDB db) {
+		this.db = db;
+		this.index = new AtomIndex(db);
+	}
+
+	/**
+	 * @return the index of the true Atoms
+	 */
+	public AtomIndex getIndex() {
+		return this.index;
+	}
+
+	@Override
+	public boolean valueOf(Atom a) {
+		return this.db.valueOf(a);
+	}
+
+	@Override
+	public boolean valueOf(Predicate p, int[] constants) {
+		return this.db.valueOf(p, constants);
+	}
+
+	@Override
+	public boolean flip(Atom a) {
+		boolean value = this.db.flip(a);
+		if (Atom.TRUE == a) return value;
+		if (value) {
+			this.index.add(a);
+		} else {
+			this.index.remove(a);
+		}
+		return value;
+	}
+
+	@Override
+	public void set(Atom a, boolean value) {
+		if (Atom.TRUE == a) return;
+		if (this.db.valueOf(a) == value) return;
+		this.db.set(a, value);
+		if (value) {
+			this.index.add(a);
+		} else {
+			this.index.remove(a);
+		}
+	}
+
+	@Override
+	public List<Atom> getTrueAtoms(Predicate p) {
+		return this.db.getTrueAtoms(p);
+	}
+
+	@Override
+	public BinaryDB getLocalCopy() {
+		return new BinaryLocalDB(this);
+	}
+
+}
@@ -0,0 +1,24 @@
+package fol.database;
+
+import java.util.List;
+
+import fol.Atom;
+import fol.Predicate;
+
+/**
+ * A {@link BinaryDB} that keeps the changes made over another one, see
+ * {@link ClauseCounter}.
+ */
+interface LocalDB extends BinaryDB {
+
+	/**
+	 * @return the database this is a local copy of
+	 */
+	BinaryDB getDatabase();
+
+	/**
+	 * @return the Atoms of Predicate p set to true in this local copy
+	 */
+	List<Atom> getLocalTrueAtoms(Predicate p);
+
+}
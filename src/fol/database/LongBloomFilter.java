@@ -0,0 +1,70 @@
+package fol.database;
+
+/**
+ * <p>A blocked Bloom filter of <code>long</code> values: the bits of a
+ * value are all in the same 64 bit word, so a lookup reads a single
+ * word. The filter is much smaller than the set it stands for and stays
+ * in cache, the lookups of values not in the set seldom reach it.</p>
+ *
+ * <p>Values can not be removed. The filter counts the values added and
+ * is full when they reach its capacity, then the owner builds a larger
+ * one from its set, without the values removed since.</p>
+ *
+ * <p>Lookups do not write anything, not thread-safe for writes.</p>
+ */
+final class LongBloomFilter {
+
+	private final long[] words;
+	private final int mask;
+	private final int k;
+	private final int capacity;
+	private int size;
+
+	/**
+	 * @param capacity the number of values added before the filter is full
+	 * @param bitsPerValue bits of the filter per value, 10 give about 1%
+	 * false positives
+	 */
+	LongBloomFilter(int capacity, int bitsPerValue) {
+		int length = 1;
+		while ((long) length << 6 < (long) capacity * bitsPerValue && length < (1 << 26)) length <<= 1;
+		this.words = new long[length];
+		this.mask = length - 1;
+		this.k = Math.min(10, Math.max(1, (int) Math.round(bitsPerValue * Math.log(2))));
+		this.capacity = capacity;
+		this.size = 0;
+	}
+
+	boolean isFull() {
+		return this.size >= this.capacity;
+	}
+
+	void add(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		this.words[(int) (h >>> 32) & this.mask] |= this.bits(h);
+		this.size++;
+	}
+
+	/**
+	 * @return false if value was never added
+	 */
+	boolean mightContain(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		long bits = this.bits(h);
+		return (this.words[(int) (h >>> 32) & this.mask] & bits) == bits;
+	}
+
+	/**
+	 * @return the k bits of a value in its word, from 6 bits each of a
+	 * second hash
+	 */
+	private long bits(long h) {
+		long g = (h ^ (h >>> 31)) * 0xC2B2AE3D27D4EB4FL;
+		long bits = 0;
+		for (int i = 0; i < this.k; i++) {
+			bits |= 1L << (g >>> (6*i));
+		}
+		return bits;
+	}
+
+}
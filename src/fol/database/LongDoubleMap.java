@@ -0,0 +1,108 @@
+package fol.database;
+
+import java.util.Arrays;
+
+/**
+ * <p>A map from non negative <code>long</code> keys to <code>double</code>
+ * values, using open addressing with linear probing. Avoids boxing the
+ * keys and values as a <code>HashMap&lt;Long, Double&gt;</code> would.</p>
+ */
+final class LongDoubleMap {
+
+	private static final long FREE = -1L;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private double[] values;
+	private int size;
+	private int mask;
+
+	public LongDoubleMap() {
+		this.allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new double[capacity];
+		Arrays.fill(this.keys, FREE);
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int slot(long key) {
+		int i = hash(key) & this.mask;
+		while (this.keys[i] != FREE && this.keys[i] != key) {
+			i = (i + 1) & this.mask;
+		}
+		return i;
+	}
+
+	public boolean containsKey(long key) {
+		return this.keys[this.slot(key)] == key;
+	}
+
+	/**
+	 * @return the value of key, or <code>missing</code> if there is none
+	 */
+	public double get(long key, double missing) {
+		int i = this.slot(key);
+		return this.keys[i] == key ? this.values[i] : missing;
+	}
+
+	public void put(long key, double value) {
+		int i = this.slot(key);
+		this.values[i] = value;
+		if (this.keys[i] == key) return;
+		this.keys[i] = key;
+		this.size++;
+		if (this.size * 2 > this.keys.length) this.rehash(this.keys.length << 1);
+	}
+
+	/**
+	 * @return true if the map contained key
+	 */
+	public boolean remove(long key) {
+		int i = this.slot(key);
+		if (this.keys[i] != key) return false;
+		this.size--;
+		// backward shift deletion, keeps probe sequences unbroken
+		int j = i;
+		while (true) {
+			j = (j + 1) & this.mask;
+			long k = this.keys[j];
+			if (k == FREE) break;
+			int home = hash(k) & this.mask;
+			if (((j - home) & this.mask) >= ((j - i) & this.mask)) {
+				this.keys[i] = k;
+				this.values[i] = this.values[j];
+				i = j;
+			}
+		}
+		this.keys[i] = FREE;
+		return true;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		double[] oldValues = this.values;
+		this.allocate(capacity);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != FREE) {
+				int i = this.slot(oldKeys[j]);
+				this.keys[i] = oldKeys[j];
+				this.values[i] = oldValues[j];
+				this.size++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package fol.database;
+
+import java.util.Arrays;
+
+/**
+ * <p>A set of non negative <code>long</code> values, using open addressing
+ * with linear probing. Avoids boxing the values as a
+ * <code>HashSet&lt;Long&gt;</code> would.</p>
+ */
+final class LongHashSet {
+
+	private static final long FREE = -1L;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private int size;
+	private int mask;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongHashSet(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected * 2) capacity <<= 1;
+		this.allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		Arrays.fill(this.keys, FREE);
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int slot(long key) {
+		int i = hash(key) & this.mask;
+		while (this.keys[i] != FREE && this.keys[i] != key) {
+			i = (i + 1) & this.mask;
+		}
+		return i;
+	}
+
+	public boolean contains(long key) {
+		return this.keys[this.slot(key)] == key;
+	}
+
+	/**
+	 * @return true if the set did not already contain key
+	 */
+	public boolean add(long key) {
+		int i = this.slot(key);
+		if (this.keys[i] == key) return false;
+		this.keys[i] = key;
+		this.size++;
+		if (this.size * 2 > this.keys.length) this.rehash(this.keys.length << 1);
+		return true;
+	}
+
+	/**
+	 * @return true if the set contained key
+	 */
+	public boolean remove(long key) {
+		int i = this.slot(key);
+		if (this.keys[i] != key) return false;
+		this.size--;
+		// backward shift deletion, keeps probe sequences unbroken
+		int j = i;
+		while (true) {
+			j = (j + 1) & this.mask;
+			long k = this.keys[j];
+			if (k == FREE) break;
+			int home = hash(k) & this.mask;
+			if (((j - home) & this.mask) >= ((j - i) & this.mask)) {
+				this.keys[i] = k;
+				i = j;
+			}
+		}
+		this.keys[i] = FREE;
+		return true;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, FREE);
+		this.size = 0;
+	}
+
+	/**
+	 * @return a new array with all the values in this set, in no particular order.
+	 */
+	public long[] toArray() {
+		long[] out = new long[this.size];
+		int j = 0;
+		for (long key : this.keys) {
+			if (key != FREE) out[j++] = key;
+		}
+		return out;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = this.keys;
+		this.allocate(capacity);
+		for (long key : old) {
+			if (key != FREE) {
+				this.keys[this.slot(key)] = key;
+				this.size++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package fol.database;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fol.Atom;
+import fol.Constant;
+import fol.Domain;
+import fol.Predicate;
+
+/**
+ * <p>A {@link RealDatabase} over read-only tables, usually mapped from a
+ * file. The table of a Predicate has the groundings with a value other
+ * than 0.0, each one by its mixed-radix index over the Domain sizes of
+ * the table, sorted, and their values. A value is found by binary
+ * search, no Atom is created to load the database.</p>
+ *
+ * <p>The values set are kept in memory and override the tables.</p>
+ */
+public class MappedRealDB extends RealDatabase {
+
+	private Table[] tables; // by predicate id
+	private final Map<Atom, Double> changes;
+
+	public MappedRealDB() {
+		this.tables = new Table[0];
+		this.changes = new HashMap<Atom, Double>();
+	}
+
+	/**
+	 * Sets the table of p.
+	 * @param sizes the size of each Domain of p for the indexes
+	 * @param indexes the mixed-radix indexes of the groundings, sorted
+	 * @param values the value of each grounding in indexes
+	 */
+	public void put(Predicate p, int[] sizes, LongBuffer indexes, DoubleBuffer values) {
+		if (indexes.remaining() != values.remaining() || sizes.length != p.getDomains().size()) {
+			throw new IllegalArgumentException("Invalid table of " + p);
+		}
+		int id = p.getId();
+		if (id >= this.tables.length) this.tables = Arrays.copyOf(this.tables, id + 1);
+		this.tables[id] = new Table(p, sizes, indexes, values);
+	}
+
+	@Override
+	public double valueOf(Atom key) {
+		if (Atom.TRUE == key) return 1.0d;
+		Double value = this.changes.get(key);
+		if (value != null) return value.doubleValue();
+		Table table = this.table(key.predicate);
+		if (table == null) return 0.0d;
+		List<Domain> domains = key.predicate.getDomains();
+		long index = 0;
+		for (int i = 0; i < table.sizes.length; i++) {
+			int c = domains.get(i).indexOf((Constant) key.terms[i]);
+			if (c < 0 || c >= table.sizes[i]) return 0.0d;
+			index = index*table.sizes[i] + c;
+		}
+		return table.valueOf(index);
+	}
+
+	@Override
+	public double valueOf(Predicate p, int[] constants) {
+		if (!this.changes.isEmpty()) return this.valueOf(p.getAtomTable().find(constants));
+		Table table = this.table(p);
+		if (table == null) return 0.0d;
+		long index = 0;
+		for (int i = 0; i < table.sizes.length; i++) {
+			if (constants[i] >= table.sizes[i]) return 0.0d;
+			index = index*table.sizes[i] + constants[i];
+		}
+		return table.valueOf(index);
+	}
+
+	private Table table(Predicate p) {
+		int id = p.getId();
+		return id < this.tables.length ? this.tables[id] : null;
+	}
+
+	@Override
+	public void set(Atom key, double value) {
+		if (Atom.TRUE == key) return;
+		Double v;
+		if (value == 0.0d) v = RealDB.FALSE;
+		else if (value == 1.0d) v = RealDB.TRUE;
+		else v = Double.valueOf(value);
+		this.changes.put(key, v);
+	}
+
+	@Override
+	public Map<Atom, Double> getValues() {
+		Map<Atom, Double> values = new HashMap<Atom, Double>();
+		for (Table table : this.tables) {
+			if (table == null) continue;
+			int[] constants = new int[table.sizes.length];
+			for (int i = 0; i < table.indexes.limit(); i++) {
+				long index = table.indexes.get(i);
+				for (int j = constants.length - 1; j >= 0; j--) {
+					constants[j] = (int) (index % table.sizes[j]);
+					index /= table.sizes[j];
+				}
+				values.put(table.predicate.getAtomTable().atom(constants), Double.valueOf(table.values.get(i)));
+			}
+		}
+		for (Map.Entry<Atom, Double> e : this.changes.entrySet()) {
+			if (e.getValue().doubleValue() == 0.0d) {
+				values.remove(e.getKey());
+			} else {
+				values.put(e.getKey(), e.getValue());
+			}
+		}
+		return Collections.unmodifiableMap(values);
+	}
+
+	private static final class Table {
+
+		final Predicate predicate;
+		final int[] sizes;
+		final LongBuffer indexes;
+		final DoubleBuffer values;
+
+		Table(Predicate predicate, int[] sizes, LongBuffer indexes, DoubleBuffer values) {
+			this.predicate = predicate;
+			this.sizes = sizes;
+			this.indexes = indexes.slice();
+			this.values = values.slice();
+		}
+
+		double valueOf(long index) {
+			int low = 0;
+			int high = this.indexes.limit() - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				long i = this.indexes.get(middle);
+				if (i < index) {
+					low = middle + 1;
+				} else if (i > index) {
+					high = middle - 1;
+				} else {
+					return this.values.get(middle);
+				}
+			}
+			return 0.0d;
+		}
+
+	}
+
+}
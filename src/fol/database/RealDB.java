@@ -1,6 +1,7 @@
 package fol.database;
 
 import fol.Atom;
+import fol.Predicate;
 
 public interface RealDB {
 	
@@ -9,6 +10,15 @@ public interface RealDB {
 	
 	public double valueOf(Atom a);
 	
+	/**
+	 * Gets the value of the grounding of Predicate p with the Constants
+	 * identified by <code>constants</code>, see {@link fol.AtomTable}.
+	 * 
+	 * @param p Predicate
+	 * @param constants the position of each Constant in its argument Domain
+	 */
+	public double valueOf(Predicate p, int[] constants);
+	
 	public void set(Atom a, double value);
 	/**
 	 * Allows one to set values without modifying the original Database.
@@ -1,8 +1,11 @@
 package fol.database;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 import fol.Atom;
+import fol.Predicate;
 
 public class RealDatabase implements RealDB {
 	
@@ -19,6 +22,11 @@ public class RealDatabase implements RealDB {
 		return value == null ? 0.0d : value.doubleValue();
 	}
 
+	@Override
+	public double valueOf(Predicate p, int[] constants) {
+		return this.valueOf(p.getAtomTable().find(constants));
+	}
+
 	@Override
 	public void set(Atom key, double value) {
 		if (Atom.TRUE == key) return;
@@ -38,6 +46,25 @@ public class RealDatabase implements RealDB {
 		}
 	}
 
+	/**
+	 * @return the values by Atom, unmodifiable, the missing Atoms are 0.0
+	 */
+	public Map<Atom, Double> getValues() {
+		return Collections.unmodifiableMap(this.db);
+	}
+
+	/**
+	 * @return the values of db, a RealDatabase or a 
+	 * {@link FloatArrayDatabase}, see {@link #getValues()}
+	 * @throws IllegalArgumentException if the values of db can not be 
+	 * listed
+	 */
+	public static Map<Atom, Double> getValues(RealDB db) {
+		if (db instanceof RealDatabase) return ((RealDatabase) db).getValues();
+		if (db instanceof FloatArrayDatabase) return ((FloatArrayDatabase) db).getValues();
+		throw new IllegalArgumentException("Cannot list the values of " + db.getClass().getName());
+	}
+
 	@Override
 	public RealDB getLocalCopy() {
 		return new RealLocalDB(this);
@@ -1,6 +1,8 @@
 package fol.database;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 import fol.Atom;
 
@@ -33,6 +35,19 @@ public class RealLocalDB extends RealDatabase {
 		this.local.put(key, v);
 	}
 	
+	@Override
+	public Map<Atom, Double> getValues() {
+		Map<Atom, Double> values = new HashMap<Atom, Double>(this.db.getValues());
+		for (Map.Entry<Atom, Double> e : this.local.entrySet()) {
+			if (e.getValue().doubleValue() == 0.0d) {
+				values.remove(e.getKey());
+			} else {
+				values.put(e.getKey(), e.getValue());
+			}
+		}
+		return Collections.unmodifiableMap(values);
+	}
+	
 	@Override
 	public RealDB getLocalCopy() {
 		return new RealLocalDB(this);
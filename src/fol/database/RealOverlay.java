@@ -0,0 +1,140 @@
+package fol.database;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import fol.Atom;
+import fol.AtomTable;
+import fol.Predicate;
+
+/**
+ * <p>A local copy of a {@link RealDB} that keeps only the values set in
+ * it, also used as a scratch world: set some values, evaluate and 
+ * {@link #reset()}. See {@link BinaryOverlay}.</p>
+ * 
+ * <p>The value of each Atom set is kept by its position in the
+ * {@link AtomTable.Layout} of the Predicate, without boxing, the Atoms
+ * that have no position are kept in a map. A reset takes time 
+ * proportional to the values set since the last one.</p>
+ *
+ * <p>The values are not quantized, a value set is read back
+ * exactly. Not thread-safe.</p>
+ */
+public class RealOverlay implements RealDB {
+
+	private final RealDB db;
+	private Slots[] slots; // indexed by Predicate id
+	private final Map<Atom, Double> atoms;
+
+	// the positions added to the slots since the last reset
+	private int[] changedPredicates;
+	private long[] changedIndexes;
+	private int changes;
+
+	public RealOverlay(RealDB db) {
+		this.db = db;
+		this.slots = new Slots[0];
+		this.atoms = new HashMap<Atom, Double>();
+		this.changedPredicates = new int[16];
+		this.changedIndexes = new long[16];
+		this.changes = 0;
+	}
+
+	private Slots slots(Predicate p) {
+		int id = p.getId();
+		return id < this.slots.length ? this.slots[id] : null;
+	}
+
+	@Override
+	public double valueOf(Atom key) {
+		if (Atom.TRUE == key) return 1.0d;
+		Slots slots = this.slots(key.predicate);
+		if (slots != null) {
+			long index = slots.layout.index(key);
+			if (index >= 0 && slots.values.containsKey(index)) {
+				return slots.values.get(index, 0.0d);
+			}
+		}
+		if (!this.atoms.isEmpty()) {
+			Double value = this.atoms.get(key);
+			if (value != null) return value.doubleValue();
+		}
+		return this.db.valueOf(key);
+	}
+
+	@Override
+	public double valueOf(Predicate p, int[] constants) {
+		Slots slots = this.slots(p);
+		if (slots != null) {
+			long index = slots.layout.index(constants);
+			if (index >= 0 && slots.values.containsKey(index)) {
+				return slots.values.get(index, 0.0d);
+			}
+		}
+		if (!this.atoms.isEmpty()) return this.valueOf(p.getAtomTable().find(constants));
+		return this.db.valueOf(p, constants);
+	}
+
+	@Override
+	public void set(Atom key, double value) {
+		if (Atom.TRUE == key) return;
+		Slots slots = this.slots(key.predicate);
+		if (slots == null) {
+			slots = new Slots(key.predicate.getAtomTable().layout());
+			int id = key.predicate.getId();
+			if (id >= this.slots.length) {
+				this.slots = Arrays.copyOf(this.slots, id + 1);
+			}
+			this.slots[id] = slots;
+		}
+		long index = slots.layout.index(key);
+		if (index < 0) {
+			this.atoms.put(key, Double.valueOf(value));
+			return;
+		}
+		if (!slots.values.containsKey(index)) {
+			if (this.changes == this.changedIndexes.length) {
+				this.changedPredicates = Arrays.copyOf(this.changedPredicates, this.changes << 1);
+				this.changedIndexes = Arrays.copyOf(this.changedIndexes, this.changes << 1);
+			}
+			this.changedPredicates[this.changes] = key.predicate.getId();
+			this.changedIndexes[this.changes] = index;
+			this.changes++;
+		}
+		slots.values.put(index, value);
+	}
+
+	/**
+	 * Discards all the values set, the values are again those of the
+	 * database.
+	 */
+	public void reset() {
+		for (int i = 0; i < this.changes; i++) {
+			this.slots[this.changedPredicates[i]].values.remove(this.changedIndexes[i]);
+		}
+		this.changes = 0;
+		if (!this.atoms.isEmpty()) this.atoms.clear();
+	}
+
+	@Override
+	public RealDB getLocalCopy() {
+		return new RealOverlay(this);
+	}
+
+	/**
+	 * The values set of a single Predicate.
+	 */
+	private static final class Slots {
+
+		final AtomTable.Layout layout;
+		final LongDoubleMap values;
+
+		Slots(AtomTable.Layout layout) {
+			this.layout = layout;
+			this.values = new LongDoubleMap();
+		}
+
+	}
+
+}
@@ -0,0 +1,162 @@
+package fol.database;
+
+/**
+ * <p>Iterates over the rows of an {@link AtomIndex} in increasing order.
+ * Rows are <code>int</code>s, {@link #END} marks the end of the
+ * iteration.</p>
+ *
+ * <p>The index must not change while iterating.</p>
+ */
+public abstract class RowIterator {
+
+	/**
+	 * Returned when there are no more rows, greater than any row.
+	 */
+	public static final int END = Integer.MAX_VALUE;
+
+	/**
+	 * @return the current row, -1 if the iteration has not started
+	 * or {@link #END}
+	 */
+	public abstract int current();
+
+	/**
+	 * Moves to the next row.
+	 * @return the new current row, or {@link #END}
+	 */
+	public abstract int next();
+
+	/**
+	 * Moves to the first row greater or equal to target. Does not move
+	 * if the current row is already greater or equal to target.
+	 * @return the new current row, or {@link #END}
+	 */
+	public abstract int advance(int target);
+
+	/**
+	 * @return the number of rows left, consumes this iterator
+	 */
+	public int count() {
+		int count = 0;
+		while (this.next() != END) count++;
+		return count;
+	}
+
+	static final RowIterator EMPTY = new RowIterator() {
+
+		@Override
+		public int current() {
+			return END;
+		}
+
+		@Override
+		public int next() {
+			return END;
+		}
+
+		@Override
+		public int advance(int target) {
+			return END;
+		}
+
+	};
+
+	/**
+	 * Iterates over the first <code>size</code> elements of a sorted
+	 * array of rows.
+	 */
+	static final class Sorted extends RowIterator {
+
+		private final int[] rows;
+		private final int size;
+		private int position;
+
+		Sorted(int[] rows, int size) {
+			this.rows = rows;
+			this.size = size;
+			this.position = -1;
+		}
+
+		@Override
+		public int current() {
+			if (this.position < 0) return -1;
+			return this.position < this.size ? this.rows[this.position] : END;
+		}
+
+		@Override
+		public int next() {
+			if (this.position < this.size) this.position++;
+			return this.current();
+		}
+
+		@Override
+		public int advance(int target) {
+			int current = this.current();
+			if (current >= target) return current;
+			// gallops from the current position, then binary search
+			int low = this.position + 1;
+			int step = 1;
+			int high = low;
+			while (high < this.size && this.rows[high] < target) {
+				low = high + 1;
+				high += step;
+				step <<= 1;
+			}
+			if (high > this.size) high = this.size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (this.rows[middle] < target) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			this.position = low;
+			return this.current();
+		}
+
+	}
+
+	/**
+	 * The rows present in all the iterators.
+	 */
+	static final class Intersection extends RowIterator {
+
+		private final RowIterator[] iterators;
+
+		Intersection(RowIterator ... iterators) {
+			this.iterators = iterators;
+		}
+
+		@Override
+		public int current() {
+			return this.iterators[0].current();
+		}
+
+		@Override
+		public int next() {
+			return this.align(this.iterators[0].next());
+		}
+
+		@Override
+		public int advance(int target) {
+			return this.align(this.iterators[0].advance(target));
+		}
+
+		private int align(int candidate) {
+			int i = 1;
+			while (candidate != END && i < this.iterators.length) {
+				int row = this.iterators[i].advance(candidate);
+				if (row == candidate) {
+					i++;
+				} else {
+					candidate = this.iterators[0].advance(row);
+					i = 1;
+				}
+			}
+			return candidate;
+		}
+
+	}
+
+}
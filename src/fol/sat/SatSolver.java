@@ -0,0 +1,350 @@
+package fol.sat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>The local search of {@link WalkSAT} over clauses of <code>int</code>
+ * literals. Atoms are numbered <code>0..atoms-1</code> and a literal is the
+ * signed <code>id+1</code> of its atom, negative for a negated atom. The
+ * clauses are given CSR-style: the literals of clause <code>c</code> are
+ * <code>literals[offsets[c] .. offsets[c+1]-1]</code>. An atom must not
+ * appear twice in the same clause.</p>
+ *
+ * <p>The solver keeps the number of true literals of each clause, the
+ * break and make counts of each atom and the unsatisfied clauses in an
+ * array, so each flip costs time proportional to the occurrences of the
+ * flipped atom.</p>
+ */
+public class SatSolver {
+
+	private final int atoms;
+	private final int[] offsets;
+	private final int[] literals;
+	private final int[] clauseOf; // clause of each literal position
+
+	// positions in literals of each atom, CSR
+	private final int[] occurrenceOffsets;
+	private final int[] occurrences;
+
+	private final boolean[] assignment;
+	private final int[] trueCount; // true literals of each clause
+	private final int[] trueXor;   // xor of the atoms of the true literals, the only one when trueCount is 1
+	private final int[] breakCount; // clauses where the atom is the only true literal
+	private final int[] makeCount;  // unsatisfied clauses with the atom
+	private final int[] unsatisfied;
+	private final int[] unsatisfiedIndex; // position in unsatisfied, -1 if satisfied
+	private int unsatisfiedSize;
+	private final boolean empty; // has an empty clause
+	private boolean[] active; // clauses in the search, null for all
+
+	private final Random random;
+
+	/**
+	 * Probability of choosing a random walk approach rather
+	 * than the greedy one.
+	 */
+	private final double p; // default = 0.5
+	private final double q; // default = 0.6
+	private final double temperature; // default = 0.5 (from paper Domingos)
+	private final int maxTries; // < 10
+	private final long maxFlips;
+
+	public SatSolver(int atoms, int[] offsets, int[] literals) {
+		this(atoms, offsets, literals, 0.5, 0.6, 0.5, 2, 2L*atoms*atoms, new Random());
+	}
+
+	/**
+	 * @param p probability of a random walk move rather than a metropolis move
+	 * @param q probability of flipping a random atom of the chosen clause
+	 * rather than the one with smaller break count
+	 * @param temperature of the metropolis moves
+	 * @param maxTries random restarts of {@link #sat()}
+	 * @param maxFlips moves of each search
+	 */
+	public SatSolver(int atoms, int[] offsets, int[] literals, double p, double q, 
+			double temperature, int maxTries, long maxFlips, Random random) {
+		this.atoms = atoms;
+		this.offsets = offsets;
+		this.literals = literals;
+		this.p = p;
+		this.q = q;
+		this.temperature = temperature;
+		this.random = random;
+		this.maxTries = maxTries;
+		this.maxFlips = maxFlips;
+		this.active = null;
+
+		int clauses = offsets.length - 1;
+		boolean empty = false;
+		this.clauseOf = new int[literals.length];
+		this.occurrenceOffsets = new int[atoms + 1];
+		for (int c = 0; c < clauses; c++) {
+			if (offsets[c] == offsets[c+1]) empty = true;
+			for (int i = offsets[c]; i < offsets[c+1]; i++) {
+				this.clauseOf[i] = c;
+				this.occurrenceOffsets[atom(literals[i]) + 1]++;
+			}
+		}
+		this.empty = empty;
+		for (int a = 0; a < atoms; a++) {
+			this.occurrenceOffsets[a+1] += this.occurrenceOffsets[a];
+		}
+		this.occurrences = new int[literals.length];
+		int[] next = Arrays.copyOf(this.occurrenceOffsets, atoms);
+		for (int i = 0; i < literals.length; i++) {
+			this.occurrences[next[atom(literals[i])]++] = i;
+		}
+
+		this.assignment = new boolean[atoms];
+		this.trueCount = new int[clauses];
+		this.trueXor = new int[clauses];
+		this.breakCount = new int[atoms];
+		this.makeCount = new int[atoms];
+		this.unsatisfied = new int[clauses];
+		this.unsatisfiedIndex = new int[clauses];
+		this.unsatisfiedSize = 0;
+	}
+
+	/**
+	 * Restricts the next searches to the clauses <code>c</code> with 
+	 * <code>active[c]</code> true, all the clauses if <code>active</code>
+	 * is null. The array is not copied.
+	 */
+	public void setActive(boolean[] active) {
+		this.active = active;
+	}
+
+	private boolean isActive(int c) {
+		return this.active == null || this.active[c];
+	}
+
+	private static int atom(int literal) {
+		return (literal < 0 ? -literal : literal) - 1;
+	}
+
+	private boolean isTrue(int literal) {
+		return literal > 0 ? this.assignment[literal-1] : !this.assignment[-literal-1];
+	}
+
+	private boolean hasEmptyClause() {
+		if (!this.empty) return false;
+		for (int c = 0; c < this.trueCount.length; c++) {
+			if (this.offsets[c] == this.offsets[c+1] && this.isActive(c)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the assignment and recomputes all counts.
+	 */
+	private void assign(boolean[] values) {
+		System.arraycopy(values, 0, this.assignment, 0, this.atoms);
+		Arrays.fill(this.breakCount, 0);
+		Arrays.fill(this.makeCount, 0);
+		this.unsatisfiedSize = 0;
+		for (int c = 0; c < this.trueCount.length; c++) {
+			if (!this.isActive(c)) {
+				this.unsatisfiedIndex[c] = -1;
+				continue;
+			}
+			int count = 0, xor = 0;
+			for (int i = this.offsets[c]; i < this.offsets[c+1]; i++) {
+				if (this.isTrue(this.literals[i])) {
+					count++;
+					xor ^= atom(this.literals[i]);
+				}
+			}
+			this.trueCount[c] = count;
+			this.trueXor[c] = xor;
+			if (count == 0) {
+				this.addUnsatisfied(c);
+			} else {
+				this.unsatisfiedIndex[c] = -1;
+				if (count == 1) this.breakCount[xor]++;
+			}
+		}
+	}
+
+	private void addUnsatisfied(int c) {
+		this.unsatisfiedIndex[c] = this.unsatisfiedSize;
+		this.unsatisfied[this.unsatisfiedSize++] = c;
+		for (int i = this.offsets[c]; i < this.offsets[c+1]; i++) {
+			this.makeCount[atom(this.literals[i])]++;
+		}
+	}
+
+	private void removeUnsatisfied(int c) {
+		int index = this.unsatisfiedIndex[c];
+		int last = this.unsatisfied[--this.unsatisfiedSize];
+		this.unsatisfied[index] = last;
+		this.unsatisfiedIndex[last] = index;
+		this.unsatisfiedIndex[c] = -1;
+		for (int i = this.offsets[c]; i < this.offsets[c+1]; i++) {
+			this.makeCount[atom(this.literals[i])]--;
+		}
+	}
+
+	/**
+	 * Flips the value of atom <code>a</code> and updates the counts of
+	 * the clauses where it occurs.
+	 */
+	private void flip(int a) {
+		boolean value = !this.assignment[a];
+		this.assignment[a] = value;
+		for (int j = this.occurrenceOffsets[a]; j < this.occurrenceOffsets[a+1]; j++) {
+			int i = this.occurrences[j];
+			int c = this.clauseOf[i];
+			if (!this.isActive(c)) continue;
+			if ((this.literals[i] > 0) == value) { // literal became true
+				int count = ++this.trueCount[c];
+				if (count == 1) {
+					this.removeUnsatisfied(c);
+					this.breakCount[a]++;
+				} else if (count == 2) {
+					this.breakCount[this.trueXor[c]]--;
+				}
+				this.trueXor[c] ^= a;
+			} else { // literal became false
+				int count = --this.trueCount[c];
+				this.trueXor[c] ^= a;
+				if (count == 0) {
+					this.breakCount[a]--;
+					this.addUnsatisfied(c);
+				} else if (count == 1) {
+					this.breakCount[this.trueXor[c]]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The break value counts how many clauses that are satisfied
+	 * would be unsatisfied flipping <code>a</code>.
+	 */
+	public int breakValue(int a) {
+		return this.breakCount[a];
+	}
+
+	/**
+	 * The delta cost is the number of unsatisfied clauses after flipping
+	 * <code>a</code> minus the number before.
+	 */
+	public int deltaCost(int a) {
+		return this.breakCount[a] - this.makeCount[a];
+	}
+
+	/**
+	 * Chooses an atom of the clause <code>c</code>, at random or
+	 * the one with the smaller break value.
+	 */
+	private int chooseVariable(int c) {
+		int start = this.offsets[c];
+		int end = this.offsets[c+1];
+		boolean greedy = (this.q < this.random.nextDouble());
+		if (!greedy) return atom(this.literals[start + this.random.nextInt(end - start)]);
+		int best = -1;
+		int min = Integer.MAX_VALUE;
+		for (int i = start; i < end; i++) {
+			int a = atom(this.literals[i]);
+			if (this.breakCount[a] < min) {
+				min = this.breakCount[a];
+				best = a;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Performs a metropolis move
+	 */
+	private void metropolis() {
+		int a = this.random.nextInt(this.atoms);
+		int delta = this.deltaCost(a);
+		if (delta < 1) {
+			this.flip(a);
+		} else {
+			double m = Math.exp(-delta/this.temperature);
+			if (this.random.nextDouble() < m) {
+				this.flip(a);
+			}
+		}
+	}
+
+	/**
+	 * Performs a randomWalk move
+	 */
+	private void randomWalk() {
+		if (this.unsatisfiedSize == 0) return;
+		int c = this.unsatisfied[this.random.nextInt(this.unsatisfiedSize)];
+		this.flip(this.chooseVariable(c));
+	}
+
+	/**
+	 * Solves the boolean satisfiability problem.<br>
+	 * Starts the local search with a random assignment.
+	 * @return true if a satisfying assignment was found,
+	 * see {@link #getAssignment()}
+	 */
+	public boolean sat() {
+		if (this.hasEmptyClause()) return false;
+		boolean[] values = new boolean[this.atoms];
+		for (int i = 0; i < this.maxTries; i++) {
+			for (int a = 0; a < this.atoms; a++) values[a] = this.random.nextBoolean();
+			if (this.sat(values)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Solves the boolean satisfiability problem.<br>
+	 * Starts the local search with the given assignment, indexed
+	 * by atom id.
+	 * @return true if a satisfying assignment was found,
+	 * see {@link #getAssignment()}
+	 */
+	public boolean sat(boolean[] initialAssignment) {
+		if (this.hasEmptyClause()) return false;
+		this.assign(initialAssignment);
+		for (long i = 0; i < this.maxFlips && this.unsatisfiedSize > 0; i++) {
+			boolean randomWalk = (this.random.nextDouble() < this.p);
+			if (randomWalk) {
+				this.randomWalk();
+			} else {
+				this.metropolis();
+			}
+		}
+		return this.unsatisfiedSize == 0;
+	}
+
+	/**
+	 * Random walk over the satisfying assignments: each step picks an
+	 * atom at random and flips it if no clause breaks. The moves are 
+	 * symmetric, so the walk tends to the uniform distribution over the 
+	 * solutions reachable by single flips. The current assignment must
+	 * satisfy all clauses.
+	 */
+	public void walk(long steps) {
+		if (this.atoms == 0) return;
+		for (long i = 0; i < steps; i++) {
+			int a = this.random.nextInt(this.atoms);
+			if (this.breakCount[a] == 0) this.flip(a);
+		}
+	}
+
+	/**
+	 * @return the current assignment, indexed by atom id.
+	 * Shared, must not be modified.
+	 */
+	public boolean[] getAssignment() {
+		return this.assignment;
+	}
+
+	/**
+	 * @return the number of clauses unsatisfied by the current assignment
+	 */
+	public int unsatisfied() {
+		return this.unsatisfiedSize;
+	}
+
+}
@@ -8,6 +8,7 @@ import java.util.List;
 
 import markovLogic.parse.ParseDataSet;
 import markovLogic.parse.ParseDomain;
+import fol.database.FloatArrayDatabase;
 
 public class Main {
 	
@@ -37,7 +38,11 @@ public class Main {
 	
 	private void parse(File f) {
 		try {
-			dataSet = new ParseDataSet(domain.getPredicates());
+			if (this.settings.bits == 0) {
+				dataSet = new ParseDataSet(domain.getPredicates());
+			} else {
+				dataSet = new ParseDataSet(domain.getPredicates(), new FloatArrayDatabase(this.settings.bits));
+			}
 			dataSet.parse(this.settings.db.toArray(new File[this.settings.db.size()]));
 		} catch (FileNotFoundException e) {
 			throw new RuntimeException(e);
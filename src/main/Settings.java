@@ -68,6 +68,8 @@ public class Settings {
 	public File mln;
 	public List<File> db;
 	public File out;
+	// bits of each evidence value, 0 for a RealDatabase, see FloatArrayDatabase
+	public int bits;
 
 	// Predicate parameter
 	public List<String> closedWorld;
@@ -103,6 +105,7 @@ public class Settings {
 		//itest = new DefaultTest<Predicate>(alpha);
 		maxAtoms = 6;
 		maxVar = 2;
+		bits = 0;
 	}
 
 
@@ -0,0 +1,355 @@
+package markovLogic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fol.Atom;
+import fol.CNF;
+import fol.Clause;
+import fol.Formula;
+import fol.Literal;
+import fol.WeightedFormula;
+import fol.operator.Negation;
+
+/**
+ * <p>A {@link GroundedMarkovNetwork} in primitive arrays, for the inference
+ * engines. Atoms are numbered <code>0..atoms()-1</code> and a world is a
+ * <code>boolean[]</code>, or a <code>long[]</code> bitset, indexed by
+ * atom id.</p>
+ *
+ * <p>Clauses are stored CSR-style: the literals of clause <code>c</code>
+ * are <code>getLiterals()[getClauseOffsets()[c] .. getClauseOffsets()[c+1]-1]</code>.
+ * A literal is the signed <code>id+1</code> of its atom, negative for a
+ * negated atom. Each weighted formula is the conjunction of a group of
+ * consecutive clauses, <code>getFormulaOffsets()[f] ..
+ * getFormulaOffsets()[f+1]-1</code>, with a positive weight. Formulas with
+ * negative weight are stored negated: <code>w*f == -w*!f + w</code>, the
+ * constant term goes to {@link #getOffset()}. Literals fixed by evidence
+ * (<code>Literal.TRUE</code> and <code>Literal.FALSE</code>) are removed.</p>
+ *
+ * <p>For each atom the clauses where it occurs are also kept in CSR
+ * form.</p>
+ *
+ * <p>Immutable. The arrays returned by the getters are shared and must
+ * not be modified.</p>
+ */
+public final class GroundNetwork {
+
+	private final Atom[] atoms;
+	private final Map<Atom, Integer> ids;
+
+	private final int[] clauseOffsets;
+	private final int[] literals;
+	private final int[] formulaOffsets;
+	private final int[] formulaOf; // formula of each clause
+	private final double[] weights;
+	private final double offset;
+
+	private final int[] occurrenceOffsets;
+	private final int[] occurrences;
+
+	public GroundNetwork(GroundedMarkovNetwork mrf) {
+		this.ids = new HashMap<Atom, Integer>();
+		List<Atom> atoms = new ArrayList<Atom>();
+		for (Atom a : mrf.getGroundings()) this.id(a, atoms);
+
+		Builder b = new Builder();
+		double offset = 0d;
+		for (WeightedFormula<?> wf : mrf.getformulas()) {
+			double w = wf.getWeight();
+			if (w == 0d) continue;
+			Formula f = wf.getFormula();
+			List<Clause> clauses;
+			if (w > 0) {
+				clauses = clauses(f);
+			} else {
+				clauses = negatedClauses(f);
+				offset += w;
+				w = -w;
+			}
+			// returns false if the formula is always false
+			if (!this.addFormula(clauses, b, atoms)) continue;
+			if (b.groupClauses == 0) {
+				offset += w; // always true
+			} else {
+				b.endFormula(w);
+			}
+		}
+
+		this.atoms = atoms.toArray(new Atom[atoms.size()]);
+		this.clauseOffsets = Arrays.copyOf(b.clauseOffsets, b.clauses + 1);
+		this.literals = Arrays.copyOf(b.literals, b.size);
+		this.formulaOffsets = Arrays.copyOf(b.formulaOffsets, b.formulas + 1);
+		this.formulaOf = Arrays.copyOf(b.formulaOf, b.clauses);
+		this.weights = Arrays.copyOf(b.weights, b.formulas);
+		this.offset = offset;
+
+		// occurrences, counting sort by atom
+		int n = this.atoms.length;
+		this.occurrenceOffsets = new int[n + 1];
+		for (int c = 0; c < b.clauses; c++) {
+			for (int i = this.clauseOffsets[c]; i < this.clauseOffsets[c+1]; i++) {
+				this.occurrenceOffsets[atom(this.literals[i]) + 1]++;
+			}
+		}
+		for (int a = 0; a < n; a++) {
+			this.occurrenceOffsets[a+1] += this.occurrenceOffsets[a];
+		}
+		this.occurrences = new int[this.literals.length];
+		int[] next = Arrays.copyOf(this.occurrenceOffsets, n);
+		for (int c = 0; c < b.clauses; c++) {
+			for (int i = this.clauseOffsets[c]; i < this.clauseOffsets[c+1]; i++) {
+				this.occurrences[next[atom(this.literals[i])]++] = c;
+			}
+		}
+	}
+
+	private int id(Atom a, List<Atom> atoms) {
+		Integer id = this.ids.get(a);
+		if (id == null) {
+			id = Integer.valueOf(atoms.size());
+			this.ids.put(a, id);
+			atoms.add(a);
+		}
+		return id.intValue();
+	}
+
+	private static List<Clause> clauses(Formula f) {
+		if (f instanceof Clause) return Collections.singletonList((Clause) f);
+		if (f instanceof CNF) return ((CNF) f).getClauses();
+		return f.toCNF().getClauses();
+	}
+
+	private static List<Clause> negatedClauses(Formula f) {
+		if (f instanceof Clause) { // a conjunction of unit clauses
+			List<Literal> literals = ((Clause) f).getLiterals();
+			List<Clause> clauses = new ArrayList<Clause>(literals.size());
+			for (Literal l : literals) {
+				clauses.add(new Clause(new Literal(l.atom, !l.signal)));
+			}
+			return clauses;
+		}
+		return Negation.OPERATOR.apply(f).toCNF().getClauses();
+	}
+
+	/**
+	 * Adds the clauses of a formula, without the literals fixed by evidence.
+	 * @return false if some clause is always false, nothing is added
+	 */
+	private boolean addFormula(List<Clause> clauses, Builder b, List<Atom> atoms) {
+		int clausesMark = b.clauses;
+		int sizeMark = b.size;
+		b.groupClauses = 0;
+		for (Clause clause : clauses) {
+			int start = b.size;
+			boolean satisfied = false;
+			for (Literal l : clause.getLiterals()) {
+				if (l.atom == Atom.TRUE) {
+					if (l.signal) {
+						satisfied = true;
+						break;
+					}
+					continue;
+				}
+				int id = this.id(l.atom, atoms);
+				b.addLiteral(l.signal ? id + 1 : -(id + 1));
+			}
+			if (satisfied) {
+				b.size = start;
+			} else if (b.size == start) { // empty clause
+				b.clauses = clausesMark;
+				b.size = sizeMark;
+				b.groupClauses = 0;
+				return false;
+			} else {
+				b.endClause();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the atom id of literal
+	 */
+	public static int atom(int literal) {
+		return (literal < 0 ? -literal : literal) - 1;
+	}
+
+	/**
+	 * @return the number of atoms
+	 */
+	public int atoms() {
+		return this.atoms.length;
+	}
+
+	/**
+	 * @return the number of clauses
+	 */
+	public int clauses() {
+		return this.clauseOffsets.length - 1;
+	}
+
+	/**
+	 * @return the number of weighted formulas
+	 */
+	public int formulas() {
+		return this.weights.length;
+	}
+
+	public Atom getAtom(int id) {
+		return this.atoms[id];
+	}
+
+	/**
+	 * @return the id of atom, or -1 if it is not in this network
+	 */
+	public int getId(Atom atom) {
+		Integer id = this.ids.get(atom);
+		return id == null ? -1 : id.intValue();
+	}
+
+	public int[] getClauseOffsets() {
+		return this.clauseOffsets;
+	}
+
+	public int[] getLiterals() {
+		return this.literals;
+	}
+
+	public int[] getFormulaOffsets() {
+		return this.formulaOffsets;
+	}
+
+	/**
+	 * @return the formula of clause
+	 */
+	public int getFormula(int clause) {
+		return this.formulaOf[clause];
+	}
+
+	/**
+	 * @return the weight of each formula, all positive
+	 */
+	public double[] getWeights() {
+		return this.weights;
+	}
+
+	/**
+	 * @return the sum of weights of the formulas always true
+	 * and of the constant terms of the negated formulas
+	 */
+	public double getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * The clauses where atom <code>a</code> occurs are
+	 * <code>getOccurrences()[getOccurrenceOffsets()[a] .. getOccurrenceOffsets()[a+1]-1]</code>.
+	 */
+	public int[] getOccurrenceOffsets() {
+		return this.occurrenceOffsets;
+	}
+
+	public int[] getOccurrences() {
+		return this.occurrences;
+	}
+
+	public boolean isSatisfied(int clause, boolean[] world) {
+		for (int i = this.clauseOffsets[clause]; i < this.clauseOffsets[clause+1]; i++) {
+			int l = this.literals[i];
+			if (l > 0 ? world[l-1] : !world[-l-1]) return true;
+		}
+		return false;
+	}
+
+	public boolean isSatisfied(int clause, long[] world) {
+		for (int i = this.clauseOffsets[clause]; i < this.clauseOffsets[clause+1]; i++) {
+			int l = this.literals[i];
+			int a = (l < 0 ? -l : l) - 1;
+			boolean value = (world[a >>> 6] & (1L << a)) != 0;
+			if (value == l > 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the sum of weights of the formulas true in world,
+	 * equals to {@link GroundedMarkovNetwork#sumWeights(fol.database.BinaryDB)}
+	 */
+	public double sumWeights(boolean[] world) {
+		double sum = this.offset;
+		formulas: for (int f = 0; f < this.weights.length; f++) {
+			for (int c = this.formulaOffsets[f]; c < this.formulaOffsets[f+1]; c++) {
+				if (!this.isSatisfied(c, world)) continue formulas;
+			}
+			sum += this.weights[f];
+		}
+		return sum;
+	}
+
+	/**
+	 * @param world bit <code>a</code> of the bitset is the value of atom
+	 * <code>a</code>
+	 * @see #sumWeights(boolean[])
+	 */
+	public double sumWeights(long[] world) {
+		double sum = this.offset;
+		formulas: for (int f = 0; f < this.weights.length; f++) {
+			for (int c = this.formulaOffsets[f]; c < this.formulaOffsets[f+1]; c++) {
+				if (!this.isSatisfied(c, world)) continue formulas;
+			}
+			sum += this.weights[f];
+		}
+		return sum;
+	}
+
+	/**
+	 * Growable arrays.
+	 */
+	private static final class Builder {
+
+		int[] clauseOffsets = new int[16];
+		int[] literals = new int[64];
+		int[] formulaOffsets = new int[16];
+		int[] formulaOf = new int[16];
+		double[] weights = new double[16];
+		int clauses = 0;
+		int size = 0;
+		int formulas = 0;
+		int groupClauses = 0;
+
+		void addLiteral(int literal) {
+			if (this.size == this.literals.length) {
+				this.literals = Arrays.copyOf(this.literals, this.size << 1);
+			}
+			this.literals[this.size++] = literal;
+		}
+
+		void endClause() {
+			if (this.clauses + 1 == this.clauseOffsets.length) {
+				this.clauseOffsets = Arrays.copyOf(this.clauseOffsets, this.clauseOffsets.length << 1);
+				this.formulaOf = Arrays.copyOf(this.formulaOf, this.clauseOffsets.length);
+			}
+			this.formulaOf[this.clauses] = this.formulas;
+			this.clauses++;
+			this.clauseOffsets[this.clauses] = this.size;
+			this.groupClauses++;
+		}
+
+		void endFormula(double weight) {
+			if (this.formulas + 1 == this.formulaOffsets.length) {
+				this.formulaOffsets = Arrays.copyOf(this.formulaOffsets, this.formulaOffsets.length << 1);
+				this.weights = Arrays.copyOf(this.weights, this.formulaOffsets.length);
+			}
+			this.weights[this.formulas] = weight;
+			this.formulas++;
+			this.formulaOffsets[this.formulas] = this.clauses;
+		}
+
+	}
+
+}
@@ -2,22 +2,32 @@ package markovLogic;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 
 import markovLogic.inference.Evidence;
 import fol.Atom;
+import fol.Clause;
 import fol.Constant;
+import fol.Domain;
 import fol.Formula;
 import fol.Literal;
+import fol.Predicate;
+import fol.Term;
 import fol.Variable;
 import fol.WeightedFormula;
+import fol.database.AtomIndex;
 import fol.database.BinaryDB;
+import fol.database.IndexedBinaryDB;
+import fol.database.RowIterator;
 
 public class Grounder {
 	
@@ -28,6 +38,8 @@ public class Grounder {
 	private final Map<Atom,Literal> cache;
 	private final Map<Atom,Atom> queued;
 	
+	private AtomIndex index; // of the true evidence atoms, lazy
+	
 	public Grounder(MarkovLogicNetwork mln, Evidence evidence) {
 		this.mln = mln;
 		this.db = evidence.getDatabase();
@@ -38,12 +50,23 @@ public class Grounder {
 	}
 	
 	public GroundedMarkovNetwork ground(Atom query) {
+		return this.ground(Collections.singleton(query));
+	}
+	
+	/**
+	 * Grounds the network of all the query atoms at once, each 
+	 * ground formula is produced only once.
+	 */
+	public GroundedMarkovNetwork ground(Collection<Atom> queries) {
 		
 		List<WeightedFormula<?>> grounds = new ArrayList<WeightedFormula<?>>();
 		
 		Queue<Atom> queue = new LinkedList<Atom>();
-		queue.offer(query);
-		this.cache.put(query, new Literal(query, true));
+		for (Atom query : queries) {
+			if (this.cache.containsKey(query)) continue;
+			queue.offer(query);
+			this.cache.put(query, new Literal(query, true));
+		}
 		
 		// Main loop, ground all formulas
 		while (!queue.isEmpty()) {
@@ -54,7 +77,7 @@ public class Grounder {
 				double w = wf.getWeight();
 				if (f.hasPredicate(ground.predicate)) {
 					List<Formula> partialGrounds = Grounder.replaceVars(ground, f);
-					List<Formula> formulas = Grounder.getGroundings(partialGrounds); // ground all other variables
+					List<Formula> formulas = this.getGroundings(partialGrounds); // ground all other variables
 					formulas = processFormulas(formulas, queue);
 					double[] weights = new double[formulas.size()];
 					Arrays.fill(weights, w);
@@ -67,13 +90,16 @@ public class Grounder {
 		return new GroundedMarkovNetwork(grounds, this.cache.keySet());
 	}
 	
+	// drop the formulas satisfied by evidence
 	// check if any new ground has been produced, if has add to queue
 	// replace all the evidences
 	// replace all atoms for cached atoms
 	private List<Formula> processFormulas(List<Formula> formulas, Queue<Atom> queue) {
-		List<Formula> out = new ArrayList<Formula>(formulas.size());
+		Set<Formula> out = new LinkedHashSet<Formula>();
 		
-		formulas: for (Formula formula : formulas) { 
+		formulas: for (Formula formula : formulas) {
+			if (this.isSatisfied(formula)) continue formulas;
+			
 			List<Atom> atoms = formula.getAtoms();
 			for (Atom atom : atoms) {
 				if (this.queued.containsKey(atom)) continue formulas; // formula already exists
@@ -95,10 +121,50 @@ public class Grounder {
 				}
 			}
 			
-			out.add(formula);
+			if (formula instanceof Clause) {
+				formula = Grounder.removeFalse((Clause) formula);
+				if (formula == null) continue formulas; // false by evidence
+			}
+			out.add(formula); // formulas equal after the replacements are kept once
 		}
 		
-		return out;
+		return new ArrayList<Formula>(out);
+	}
+	
+	/**
+	 * @return clause without the literals false by evidence, or null 
+	 * if no literal is left
+	 */
+	private static Clause removeFalse(Clause clause) {
+		List<Literal> literals = clause.getLiterals();
+		List<Literal> kept = new ArrayList<Literal>(literals.size());
+		for (Literal l : literals) {
+			if (!Literal.FALSE.equals(l)) kept.add(l);
+		}
+		if (kept.size() == literals.size()) return clause;
+		return kept.isEmpty() ? null : new Clause(kept);
+	}
+	
+	/**
+	 * @return true if the grounded formula is true whatever the value of
+	 * the non evidence atoms: a Clause with a Literal satisfied by the
+	 * evidence, or a formula with only evidence atoms that is true.
+	 */
+	private boolean isSatisfied(Formula formula) {
+		if (formula instanceof Clause) {
+			for (Literal l : ((Clause) formula).getLiterals()) {
+				if (l.atom == Atom.TRUE) {
+					if (l.signal) return true;
+				} else if (this.evidence.isEvidence(l.atom) && this.db.valueOf(l.atom) == l.signal) {
+					return true;
+				}
+			}
+			return false;
+		}
+		for (Atom atom : formula.getAtoms()) {
+			if (atom != Atom.TRUE && !this.evidence.isEvidence(atom)) return false;
+		}
+		return formula.getValue(this.db);
 	}
 	
 	/**
@@ -115,10 +181,19 @@ public class Grounder {
 		
 		int terms = grounded.terms.length;
 		List<Formula> formulas = new ArrayList<Formula>();
-		for (Atom target : formulaAtom) {
+		targets: for (Atom target : formulaAtom) {
 			Map<Variable, Constant> groundings = new HashMap<Variable, Constant>(terms*2);
 			for (int i = 0; i < terms; i++) {
-				groundings.put((Variable) target.terms[i], (Constant) grounded.terms[i]);
+				Term t = target.terms[i];
+				Constant c = (Constant) grounded.terms[i];
+				if (t instanceof Constant) {
+					if (t != c) continue targets; // target does not match grounded
+				} else {
+					Variable v = (Variable) t;
+					if (!v.inDomain(c)) continue targets;
+					Constant previous = groundings.put(v, c);
+					if (previous != null && previous != c) continue targets;
+				}
 			}
 			formulas.add(formula.ground(groundings));
 		}
@@ -128,86 +203,237 @@ public class Grounder {
 	
 	/**
 	 * <p>
-	 * Replace all variables in formulas, if there is more than one constant to 
-	 * replace one variable, duplicate the formula, thus creating all possible 
-	 * groundings for formulas.</p>
+	 * Replace all variables in formulas, creating all possible groundings 
+	 * for formulas, each grounding only once.</p>
+	 * 
+	 * <p>Clauses are grounded by a join: the negative literals of evidence 
+	 * predicates are only false for the true atoms in the evidence, so their 
+	 * variables are bound from the {@link AtomIndex} of the true atoms 
+	 * instead of every constant of the domain. The positive literals of 
+	 * evidence predicates are checked as soon as their variables are bound, 
+	 * and the binding dropped if the literal is true. The remaining 
+	 * variables are replaced by every constant in their domain. Other 
+	 * formulas are fully expanded.</p>
 	 * @param formulas List<Formula> to be grounded
-	 * @return a List of all possible grounds for f
+	 * @return a List of all possible grounds for f, but the Clauses already 
+	 * satisfied by the evidence
 	 */
-	private static List<Formula> getGroundings(List<Formula> formulas) {
-		List<Formula> out = new ArrayList<Formula>();
+	private List<Formula> getGroundings(List<Formula> formulas) {
+		Set<Formula> out = new LinkedHashSet<Formula>();
 		
 		for (Formula f : formulas) {
-			List<Formula> grounds = new LinkedList<Formula>();
-			grounds.add(f);
 			for (Variable v : f.getVariables()) {
-				List<Formula> newFormulas = new LinkedList<Formula>();
 				if (v.getConstants().isEmpty()) {
 					v.getDomain().newConstant();
 				}
-				List<Constant> constants = new LinkedList<Constant>(v.getConstants());
-				for (Formula aux : grounds) {
-					for (Constant c : constants) {
-						newFormulas.add(aux.ground(Collections.singletonMap(v, c)));
-					}
+			}
+			if (f instanceof Clause) {
+				Clause clause = (Clause) f;
+				Step[] plan = this.plan(clause);
+				if (plan != null) {
+					this.join(clause, plan, 0, new HashMap<Variable, Constant>(), out);
 				}
-				grounds = newFormulas;
+			} else {
+				List<Variable> variables = new ArrayList<Variable>(f.getVariables());
+				this.expand(f, variables, 0, new HashMap<Variable, Constant>(), out);
 			}
-			out.addAll(grounds);
 		}
 		
-		return Grounder.removeDuplicates(out);
+		return new ArrayList<Formula>(out);
 	}
 	
 	/**
-	 * Does not guarantee uniqueness, but eliminate some duplicate formulas.
-	 * @param formulas a List of formulas
-	 * @return Ordered formulas with fewer duplicates
+	 * Plans the join order of clause: first the negative literals of evidence 
+	 * predicates, the one with more bound arguments (and then fewer true 
+	 * atoms) first, then the variables left. Each positive literal of an 
+	 * evidence predicate is checked at the first step that binds all its 
+	 * variables.
+	 * @return the steps, or null if clause is satisfied by the evidence
 	 */
-	private static List<Formula> removeDuplicates(List<Formula> formulas) {
-		if (formulas.isEmpty()) return formulas;
-				
-		Collections.sort(formulas, new SimpleFormulaComparator());	
-
-		int size = formulas.size();
-		List<Formula> uniqueFormulas = new ArrayList<Formula>(size);
-		Formula previous = formulas.get(0);
-		uniqueFormulas.add(previous);
-		for (int i = 1; i < size; i++) {
-			Formula current = formulas.get(i);
-			if (!(previous.equals(current))) {
-				uniqueFormulas.add(current);
-				previous = current;
+	private Step[] plan(Clause clause) {
+		List<Literal> joins = new ArrayList<Literal>();
+		List<Literal> filters = new ArrayList<Literal>();
+		for (Literal l : clause.getLiterals()) {
+			Atom a = l.atom;
+			if (a == Atom.TRUE) {
+				if (l.signal) return null;
+			} else if (a.isGrounded()) {
+				if (this.evidence.isEvidence(a) && this.db.valueOf(a) == l.signal) {
+					return null;
+				}
+			} else if (this.evidence.isEvidence(a.predicate)) {
+				if (l.signal) {
+					filters.add(l);
+				} else {
+					joins.add(l);
+				}
+			}
+		}
+		
+		AtomIndex index = this.getIndex();
+		List<Step> steps = new ArrayList<Step>();
+		Set<Variable> bound = new HashSet<Variable>();
+		while (!joins.isEmpty()) {
+			Literal best = null;
+			int bestBound = -1;
+			int bestSize = Integer.MAX_VALUE;
+			for (Literal l : joins) {
+				int b = 0;
+				for (Term t : l.atom.terms) {
+					if (t instanceof Constant || bound.contains(t)) b++;
+				}
+				int size = index.size(l.atom.predicate);
+				if (b > bestBound || (b == bestBound && size < bestSize)) {
+					best = l;
+					bestBound = b;
+					bestSize = size;
+				}
+			}
+			joins.remove(best);
+			steps.add(new Step(best, null));
+			bound.addAll(best.getVariables());
+		}
+		for (Variable v : clause.getVariables()) {
+			if (bound.add(v)) steps.add(new Step(null, v));
+		}
+		
+		for (Literal filter : filters) {
+			Set<Variable> variables = filter.getVariables();
+			Set<Variable> seen = new HashSet<Variable>();
+			for (Step step : steps) {
+				if (step.literal != null) {
+					seen.addAll(step.literal.getVariables());
+				} else {
+					seen.add(step.variable);
+				}
+				if (seen.containsAll(variables)) {
+					step.filters.add(filter);
+					break;
+				}
 			}
 		}
 		
-		return uniqueFormulas;
+		return steps.toArray(new Step[steps.size()]);
 	}
 	
-	private static class SimpleFormulaComparator implements Comparator<Formula> {
-
-		@Override
-		public int compare(Formula o1, Formula o2) {
-			List<Atom> l1 = o1.getAtoms();
-			List<Atom> l2 = o2.getAtoms();			
-			
-			int length1 = l1.size();
-			int length2 = l2.size();
-
-			int min = Math.max(length1, length2);
-			for (int i = 0; i < min; i++) {
-				Atom a1 = l1.get(i);
-				Atom a2 = l2.get(i);
-				int diff = a1.compareTo(a2);
-				if (diff != 0) return diff;
+	private void join(Clause clause, Step[] plan, int i, Map<Variable, Constant> groundings, Set<Formula> out) {
+		if (i == plan.length) {
+			// rebuilt to sort the grounded literals, so equal groundings are equal Clauses
+			Clause ground = new Clause(clause.ground(groundings).getLiterals());
+			if (ground != Clause.TRUE && !ground.equals(Clause.TRUE)) out.add(ground);
+			return;
+		}
+		Step step = plan[i];
+		
+		if (step.variable != null) {
+			Variable v = step.variable;
+			for (Constant c : v.getConstants()) {
+				groundings.put(v, c);
+				if (this.check(step, groundings)) {
+					this.join(clause, plan, i+1, groundings, out);
+				}
 			}
-			
-			return length1 == length2 ? 0 : length1 < length2 ? -1 : 1;
+			groundings.remove(v);
+			return;
 		}
 		
+		Atom atom = step.literal.atom;
+		Predicate p = atom.predicate;
+		List<Domain> domains = p.getDomains();
+		int[] pattern = new int[atom.terms.length];
+		for (int j = 0; j < pattern.length; j++) {
+			Term t = atom.terms[j];
+			Constant c = (t instanceof Constant) ? (Constant) t : groundings.get(t);
+			if (c == null) {
+				pattern[j] = -1;
+			} else {
+				pattern[j] = domains.get(j).indexOf(c);
+				if (pattern[j] < 0) return; // no true atom with c
+			}
+		}
+		
+		AtomIndex index = this.getIndex();
+		List<Variable> binds = new ArrayList<Variable>(pattern.length);
+		RowIterator rows = index.iterator(p, pattern);
+		rows: for (int row = rows.next(); row != RowIterator.END; row = rows.next()) {
+			Atom ground = index.getAtom(p, row);
+			for (int j = 0; j < pattern.length; j++) {
+				if (pattern[j] >= 0) continue;
+				Variable v = (Variable) atom.terms[j];
+				Constant c = (Constant) ground.terms[j];
+				Constant previous = groundings.get(v);
+				if (previous == null) {
+					if (!v.inDomain(c)) {
+						this.unbind(binds, groundings);
+						continue rows;
+					}
+					groundings.put(v, c);
+					binds.add(v);
+				} else if (previous != c) { // repeated variable
+					this.unbind(binds, groundings);
+					continue rows;
+				}
+			}
+			if (this.check(step, groundings)) {
+				this.join(clause, plan, i+1, groundings, out);
+			}
+			this.unbind(binds, groundings);
+		}
+	}
+	
+	private void unbind(List<Variable> binds, Map<Variable, Constant> groundings) {
+		for (Variable v : binds) groundings.remove(v);
+		binds.clear();
+	}
+	
+	/**
+	 * @return false if some filter of step is satisfied by the evidence
+	 */
+	private boolean check(Step step, Map<Variable, Constant> groundings) {
+		for (Literal filter : step.filters) {
+			if (this.db.valueOf(filter.atom.ground(groundings))) return false;
+		}
+		return true;
+	}
+	
+	private void expand(Formula f, List<Variable> variables, int i, Map<Variable, Constant> groundings, Set<Formula> out) {
+		if (i == variables.size()) {
+			out.add(f.ground(groundings));
+			return;
+		}
+		Variable v = variables.get(i);
+		for (Constant c : v.getConstants()) {
+			groundings.put(v, c);
+			this.expand(f, variables, i+1, groundings, out);
+		}
+		groundings.remove(v);
+	}
+	
+	private AtomIndex getIndex() {
+		if (this.index == null) {
+			this.index = (this.db instanceof IndexedBinaryDB) ? 
+					((IndexedBinaryDB) this.db).getIndex() : 
+					new IndexedBinaryDB(this.db).getIndex();
+		}
+		return this.index;
+	}
+	
+	/**
+	 * A step of the join: binds the variables of a literal from the true 
+	 * atoms or a single variable from its domain, then checks the filters.
+	 */
+	private static class Step {
+		
+		final Literal literal;
+		final Variable variable;
+		final List<Literal> filters;
+		
+		Step(Literal literal, Variable variable) {
+			this.literal = literal;
+			this.variable = variable;
+			this.filters = new ArrayList<Literal>();
+		}
 		
 	}
-
-
 
 }
@@ -3,6 +3,7 @@ package markovLogic.benchmark;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import markovLogic.MarkovLogicNetwork;
 import markovLogic.inference.Evidence;
@@ -77,11 +78,15 @@ public class Benchmark {
 	 */
 	public Result predicate(Predicate predicate, Evidence evidence) {
 		Iterator<Atom> iterator = Groundings.iterator(predicate, true);
-		List<InputPoint> points = new ArrayList<InputPoint>();
+		List<Atom> grounds = new ArrayList<Atom>();
+		while (iterator.hasNext()) grounds.add(iterator.next());
+		
+		// a single grounding and chain for all the atoms
+		Map<Atom, Double> marginals = this.inference.prAll(grounds, evidence);
+		List<InputPoint> points = new ArrayList<InputPoint>(grounds.size());
 
-		while (iterator.hasNext()) {
-			Atom ground = iterator.next();
-			double observed = this.inference.pr(ground, evidence);
+		for (Atom ground : grounds) {
+			double observed = marginals.get(ground).doubleValue();
 			boolean expected = this.db.valueOf(ground);
 			InputPoint point = new InputPoint(observed, expected);
 			points.add(point);
@@ -3,6 +3,7 @@ package markovLogic.benchmark;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import markovLogic.MarkovLogicNetwork;
 import markovLogic.inference.Evidence;
@@ -14,7 +15,7 @@ import org.apache.commons.math.stat.descriptive.SummaryStatistics;
 
 import fol.Atom;
 import fol.Predicate;
-import fol.database.BinaryDatabase;
+import fol.database.BitsetDatabase;
 import fol.database.Groundings;
 import fol.database.RealDB;
 
@@ -53,7 +54,7 @@ public class RealBenchmark {
 		if (!predicates.remove(predicate)) 
 			throw new IllegalArgumentException("MLN does not contain predicate " + predicate);
 		
-		Evidence evidence = new Evidence(new BinaryDatabase());
+		Evidence evidence = new Evidence(new BitsetDatabase());
 		for (Predicate p : predicates) evidence.set(p, true);
 
 		
@@ -68,11 +69,14 @@ public class RealBenchmark {
 	 */
 	public Result predicate(Predicate predicate, Evidence evidence) {
 		Iterator<Atom> iterator = Groundings.iterator(predicate, true);
-		List<Double> points = new ArrayList<Double>();
+		List<Atom> grounds = new ArrayList<Atom>();
+		while (iterator.hasNext()) grounds.add(iterator.next());
+		
+		Map<Atom, Double> marginals = this.inference.prAll(grounds, evidence);
+		List<Double> points = new ArrayList<Double>(grounds.size());
 
-		while (iterator.hasNext()) {
-			Atom ground = iterator.next();
-			double observed = this.inference.pr(ground, evidence);
+		for (Atom ground : grounds) {
+			double observed = marginals.get(ground).doubleValue();
 			double expected = this.db.valueOf(ground);
 			points.add(Double.valueOf(observed-expected));
 		}
@@ -1,25 +1,44 @@
 package markovLogic.inference;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 import fol.Atom;
+import fol.AtomTable;
 import fol.Predicate;
-import fol.database.BinaryDatabase;
+import fol.database.BitsetDatabase;
 import fol.database.BinaryDB;
 
+/**
+ * <p>The Predicates and Atoms whose values in the database are known.</p>
+ *
+ * <p>The Predicates are kept as flags indexed by Predicate id, the Atoms
+ * of each Predicate as a bitset of their indexes in the
+ * {@link AtomTable.Layout} of the Predicate, so that a lookup takes
+ * constant time and allocates nothing. Atoms with a Constant that does not
+ * belong to the argument Domain of the Predicate, and the Atoms of
+ * Predicates with more than <code>2^31</code> positions, are kept in a
+ * set.</p>
+ *
+ * <p>Lookups are thread-safe while the evidence is not changed.</p>
+ */
 public class Evidence {
 	
-	public static final Evidence NO_EVIDENCE = new Evidence(new BinaryDatabase());
+	public static final Evidence NO_EVIDENCE = new Evidence(new BitsetDatabase());
 	
-	private final Map<Predicate, Boolean> predicates;
-	private final Map<Atom, Boolean> atoms;
+	private boolean[] predicates; // indexed by Predicate id
+	private Atoms[] atoms; // indexed by Predicate id
+	private final Set<Atom> others; // the atoms without a position
 	
 	private BinaryDB database;
 	
 	public Evidence(BinaryDB database) {
-		this.predicates = new HashMap<Predicate, Boolean>();
-		this.atoms = new HashMap<Atom, Boolean>();
+		this.predicates = new boolean[0];
+		this.atoms = new Atoms[0];
+		this.others = new HashSet<Atom>();
 		this.database = database;
 	}
 	
@@ -32,42 +51,212 @@ public class Evidence {
 	}
 	
 	public boolean flip(Predicate predicate) {
-		Boolean evidence = this.predicates.get(predicate);
-		boolean value = (evidence == null) || !evidence.booleanValue();
-		this.predicates.put(predicate, Boolean.valueOf(value));
+		boolean value = !this.isEvidence(predicate);
+		this.set(predicate, value);
 		return value;		
 	}
 	
 	public boolean flip(Atom atom) {
-		Boolean evidence = this.atoms.get(atom);
-		boolean value = (evidence == null) || !evidence.booleanValue();
-		this.atoms.put(atom, Boolean.valueOf(value));
+		boolean value = !this.isMarked(atom);
+		this.set(atom, value);
 		return value;		
 	}
 	
+	/**
+	 * Marks or unmarks all the Atoms of predicate.
+	 */
 	public void set(Predicate predicate, boolean value) {
-		this.predicates.put(predicate, Boolean.valueOf(value));
+		this.setPredicate(predicate.getId(), value);
+	}
+
+	private void setPredicate(int id, boolean value) {
+		if (id >= this.predicates.length) {
+			if (!value) return;
+			this.predicates = Arrays.copyOf(this.predicates, id + 1);
+		}
+		this.predicates[id] = value;
 	}
 	
 	public void set(Atom atom, boolean value) {
-		this.atoms.put(atom, Boolean.valueOf(value));
+		Atoms atoms = this.atoms(atom.predicate, value);
+		if (atoms != null && atoms.bits != null) {
+			long index = atoms.layout.index(atom);
+			if (index == AtomTable.OUTSIDE) {
+				if (!value) return;
+				this.relayout(atoms);
+				index = atoms.bits == null ? AtomTable.NONE : atoms.layout.index(atom);
+			}
+			if (index >= 0) {
+				atoms.bits.set((int) index, value);
+				return;
+			}
+		}
+		if (value) {
+			this.others.add(atom);
+		} else {
+			this.others.remove(atom);
+		}
+	}
+
+	/**
+	 * Marks or unmarks the Atoms of predicate with an index in
+	 * <code>[from, to)</code> in the current {@link AtomTable.Layout} of
+	 * the predicate. The indexes that are padding of the layout are
+	 * skipped.
+	 */
+	public void set(Predicate predicate, long from, long to, boolean value) {
+		AtomTable table = predicate.getAtomTable();
+		AtomTable.Layout layout = table.layout();
+		Atoms atoms = this.atoms(predicate, value);
+		if (atoms != null) this.relayout(atoms);
+		long end = Math.min(to, layout.capacity());
+		for (long index = Math.max(0, from); index < end; index++) {
+			if (!layout.isValid(index)) continue;
+			if (atoms != null && atoms.bits != null) {
+				atoms.bits.set((int) index, value);
+			} else if (value) {
+				this.others.add(table.atom(layout, index));
+			} else if (!this.others.isEmpty()) {
+				this.others.remove(table.atom(layout, index));
+			}
+		}
+	}
+
+	/**
+	 * Marks the Predicates and Atoms marked in other.
+	 */
+	public void addAll(Evidence other) {
+		for (int id = 0; id < other.predicates.length; id++) {
+			if (other.predicates[id]) this.setPredicate(id, true);
+		}
+		for (Atoms theirs : other.atoms) {
+			if (theirs == null || theirs.bits == null) continue;
+			Atoms atoms = this.atoms(theirs.predicate, true);
+			this.relayout(atoms);
+			if (atoms.layout == theirs.layout) {
+				atoms.bits.or(theirs.bits);
+				continue;
+			}
+			for (int i = theirs.bits.nextSetBit(0); i >= 0; i = theirs.bits.nextSetBit(i + 1)) {
+				if (atoms.bits != null) {
+					atoms.bits.set((int) theirs.layout.move(i, atoms.layout));
+				} else {
+					this.others.add(theirs.predicate.getAtomTable().atom(theirs.layout, i));
+				}
+			}
+		}
+		this.others.addAll(other.others);
+	}
+
+	/**
+	 * Unmarks the Predicates and Atoms marked in other. The Atoms of a
+	 * Predicate marked as a whole here stay evidence if other marks only
+	 * some of them.
+	 */
+	public void removeAll(Evidence other) {
+		for (int id = 0; id < other.predicates.length; id++) {
+			if (!other.predicates[id]) continue;
+			this.setPredicate(id, false);
+			if (id < this.atoms.length && this.atoms[id] != null && this.atoms[id].bits != null) {
+				this.atoms[id].bits.clear();
+			}
+			for (Iterator<Atom> it = this.others.iterator(); it.hasNext(); ) {
+				if (it.next().predicate.getId() == id) it.remove();
+			}
+		}
+		for (Atoms theirs : other.atoms) {
+			if (theirs == null || theirs.bits == null) continue;
+			Atoms atoms = this.atoms(theirs.predicate, false);
+			if (atoms == null) continue;
+			if (atoms.layout == theirs.layout) {
+				atoms.bits.andNot(theirs.bits);
+				continue;
+			}
+			for (int i = theirs.bits.nextSetBit(0); i >= 0; i = theirs.bits.nextSetBit(i + 1)) {
+				this.set(theirs.predicate.getAtomTable().atom(theirs.layout, i), false);
+			}
+		}
+		this.others.removeAll(other.others);
 	}
 	
 	public boolean isEvidence(Predicate p) {
-		Boolean evidence = this.predicates.get(p);
-		if (evidence != null && evidence.booleanValue()) return true;
-		
-		return false;
+		int id = p.getId();
+		return id < this.predicates.length && this.predicates[id];
 	}
 
 	public boolean isEvidence(Atom a) {
-		Boolean evidence = this.predicates.get(a.predicate);
-		if (evidence != null && evidence.booleanValue()) return true;
-		
-		evidence = this.atoms.get(a);
-		if (evidence != null && evidence.booleanValue()) return true;
-		
-		return false;
+		return this.isEvidence(a.predicate) || this.isMarked(a);
+	}
+
+	/**
+	 * @return true if a was marked by itself, not as an Atom of a
+	 * Predicate marked as a whole
+	 */
+	private boolean isMarked(Atom a) {
+		int id = a.predicate.getId();
+		Atoms atoms = id < this.atoms.length ? this.atoms[id] : null;
+		if (atoms != null && atoms.bits != null) {
+			long index = atoms.layout.index(a);
+			if (index >= 0) return atoms.bits.get((int) index);
+			if (index == AtomTable.OUTSIDE) return false;
+		}
+		return !this.others.isEmpty() && this.others.contains(a);
+	}
+
+	private Atoms atoms(Predicate p, boolean create) {
+		int id = p.getId();
+		Atoms atoms = id < this.atoms.length ? this.atoms[id] : null;
+		if (atoms == null && create) {
+			atoms = new Atoms(p);
+			if (id >= this.atoms.length) {
+				this.atoms = Arrays.copyOf(this.atoms, id + 1);
+			}
+			this.atoms[id] = atoms;
+		}
+		return atoms;
+	}
+
+	/**
+	 * Moves the marked Atoms to the current layout of their Predicate, if
+	 * its Domains have grown, or to the set of Atoms without a position
+	 * if the layout has become too large.
+	 */
+	private void relayout(Atoms atoms) {
+		AtomTable table = atoms.predicate.getAtomTable();
+		AtomTable.Layout layout = table.layout();
+		if (atoms.layout == layout || atoms.bits == null) return;
+		AtomTable.Layout old = atoms.layout;
+		BitSet bits = atoms.bits;
+		atoms.layout = layout;
+		atoms.bits = Atoms.fits(layout) ? new BitSet() : null;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			if (atoms.bits != null) {
+				atoms.bits.set((int) old.move(i, layout));
+			} else {
+				this.others.add(table.atom(old, i));
+			}
+		}
+	}
+
+	/**
+	 * The marked Atoms of a single Predicate.
+	 */
+	private static final class Atoms {
+
+		final Predicate predicate;
+		AtomTable.Layout layout;
+		BitSet bits; // null if the layout does not fit in a BitSet
+
+		Atoms(Predicate predicate) {
+			this.predicate = predicate;
+			this.layout = predicate.getAtomTable().layout();
+			this.bits = fits(this.layout) ? new BitSet() : null;
+		}
+
+		static boolean fits(AtomTable.Layout layout) {
+			return layout.bits() <= 31;
+		}
+
 	}
 
 }
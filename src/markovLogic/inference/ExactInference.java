@@ -1,16 +1,18 @@
 package markovLogic.inference;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import markovLogic.GroundedMarkovNetwork;
+import markovLogic.GroundNetwork;
 import markovLogic.Grounder;
 import markovLogic.MarkovLogicNetwork;
 import stat.sampling.CrossJoinSampler;
 import stat.sampling.Sampler;
 import fol.Atom;
-import fol.database.BinaryDatabase;
-import fol.database.BinaryDB;
 
 public class ExactInference implements Inference {
 	
@@ -36,32 +38,42 @@ public class ExactInference implements Inference {
 	 */
 	@Override
 	public double pr(Atom ground, Evidence evidence) {
+		return this.prAll(Collections.singleton(ground), evidence).get(ground).doubleValue();
+	}
+	
+	/**
+	 * Enumerates the worlds of the network of all <code>grounds</code>
+	 * once, see {@link #pr(Atom, Evidence)}.
+	 */
+	@Override
+	public Map<Atom, Double> prAll(Collection<Atom> grounds, Evidence evidence) {
 		Grounder grounder = new Grounder(this.mln, evidence);
-		GroundedMarkovNetwork mrf = grounder.ground(ground);
+		GroundNetwork network = new GroundNetwork(grounder.ground(grounds));
 		
-		List<Atom> variables = mrf.getGroundings();
-		Sampler<Boolean> sampler = this.getSampler(variables.size());
-		BinaryDB world = new BinaryDatabase();
+		int n = network.atoms();
+		if (n > 62) throw new IllegalStateException("Too many atoms for exact inference: " + n);
+		long[] world = new long[1]; // a bit for each atom
 		
-		double sumP = 0;  // usar bigDecimal?
-		double sumN = 0;
+		double[] sumP = new double[n];  // usar bigDecimal?
+		double pEvidence = 0;
 		
-		for (List<Boolean> values : sampler) {
-			boolean value = false;
-			for (int i = 0; i < variables.size(); i++) {
-				Atom atom = variables.get(i);
-				boolean b = values.get(i).booleanValue();
-				world.set(atom, b);
-				if (atom == ground) value = b;
+		for (long values = 0; values < (1L << n); values++) {
+			world[0] = values;
+			double p = Math.exp(network.sumWeights(world));
+			pEvidence += p;
+			for (long bits = values; bits != 0; bits &= bits - 1) {
+				sumP[Long.numberOfTrailingZeros(bits)] += p;
 			}
-			if (value) sumP += Math.exp(mrf.sumWeights(world));
-			else sumN += Math.exp(mrf.sumWeights(world));
 		}
 		
-		double pEvidence = sumP + sumN;
 		if (Math.abs(pEvidence) < 1e-15) throw new ArithmeticException("Probability of evidence is zero");
 		
-		return sumP / (pEvidence);
+		Map<Atom, Double> marginals = new HashMap<Atom, Double>();
+		for (Atom ground : grounds) {
+			int id = network.getId(ground);
+			marginals.put(ground, Double.valueOf(sumP[id] / pEvidence));
+		}
+		return marginals;
 	}
 	
 	public Sampler<Boolean> getSampler(int size) {
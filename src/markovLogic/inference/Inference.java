@@ -1,5 +1,8 @@
 package markovLogic.inference;
 
+import java.util.Collection;
+import java.util.Map;
+
 import fol.Atom;
 
 public interface Inference {
@@ -9,5 +12,11 @@ public interface Inference {
 	 * a <code>Set</code> of <code>Formula</code>.
 	 */
 	public double pr(Atom ground, Evidence evidence);
+	
+	/**
+	 * Returns the probability of each Atom in <code>grounds</code>,
+	 * computed together when the engine allows.
+	 */
+	public Map<Atom, Double> prAll(Collection<Atom> grounds, Evidence evidence);
 
 }
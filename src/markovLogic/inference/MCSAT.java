@@ -1,98 +1,324 @@
 package markovLogic.inference;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
-import markovLogic.GroundedMarkovNetwork;
+import markovLogic.GroundNetwork;
 import markovLogic.Grounder;
 import markovLogic.MarkovLogicNetwork;
+import stat.convergence.GelmanRubinTester;
 import fol.Atom;
-import fol.CNF;
-import fol.Clause;
-import fol.Formula;
-import fol.WeightedFormula;
-import fol.database.BinaryDatabase;
-import fol.database.BinaryDB;
-import fol.operator.Negation;
-import fol.sat.WalkSAT;
+import fol.sat.SatSolver;
 
+/**
+ * <p>MC-SAT, based on:<br>
+ * Poon and Domingos - Sound and Efficient Inference with Probabilistic 
+ * and Deterministic Dependencies (2006)<br>
+ * Wei et. al. - Towards Efficient Sampling: Exploiting Random Walk 
+ * Strategies (2004), for SampleSAT.</p>
+ * 
+ * <p>The network of all query atoms is grounded once. At each step each 
+ * formula satisfied by the current state is selected with probability 
+ * <code>1 - exp(-w)</code> and the next state is sampled from the states 
+ * that satisfy the selected formulas by SampleSAT: a single 
+ * {@link SatSolver}, restricted to the clauses of the selected formulas, 
+ * mixing WalkSAT moves and simulated annealing moves. Once a solution is 
+ * found a few annealing moves at zero temperature spread the sample over 
+ * the nearby solutions. The marginals of all atoms are counted in the 
+ * same chain.</p>
+ */
 public class MCSAT implements Inference {
 	
+	private static final int DEFAULT_SAMPLES = 1000;
+	private static final int DEFAULT_BURN_IN = 100;
+	private static final double SA_RATIO = 0.5;    // walksat moves rather than annealing
+	private static final double NOISE = 0.6;       // random atom rather than the greedy one
+	private static final double TEMPERATURE = 0.5;
+	private static final long MAX_FLIPS = 100000;
+	private static final long LATE_STEPS = 10;     // moves inside the solutions, for each atom
+	
+	private static final int CHECK_INTERVAL = 100; // samples between convergence checks
+	
 	private final MarkovLogicNetwork mln;
+	private final int samples;
+	private final int burnIn;
+	private final int chains;
+	private final double threshold;
+	private final long timeLimit;
 	
 	public MCSAT(MarkovLogicNetwork mln) {
+		this(mln, DEFAULT_SAMPLES, DEFAULT_BURN_IN);
+	}
+	
+	/**
+	 * @param samples number of counted samples
+	 * @param burnIn number of samples discarded at the start of the chain
+	 */
+	public MCSAT(MarkovLogicNetwork mln, int samples, int burnIn) {
+		this(mln, samples, burnIn, 1, 0, 0);
+	}
+	
+	/**
+	 * <p>Runs <code>chains</code> independent chains, each on its own thread, 
+	 * over the same ground network. Every {@value #CHECK_INTERVAL} samples 
+	 * the potential scale reduction factor of each query atom is computed 
+	 * ({@link GelmanRubinTester}), the inference stops when all are smaller 
+	 * than <code>threshold</code>, when each chain has <code>samples</code> 
+	 * samples or when <code>timeLimit</code> has passed. The first error in 
+	 * a chain stops all of them and is thrown by {@link #prAll}.</p>
+	 * @param samples maximum number of counted samples of each chain
+	 * @param burnIn number of samples discarded at the start of each chain
+	 * @param chains number of chains, at least one; convergence is only 
+	 * tested with at least two chains
+	 * @param threshold PSRF below which the chains have converged, 
+	 * usually 1.1
+	 * @param timeLimit wall-clock budget in milliseconds, 0 for no limit
+	 */
+	public MCSAT(MarkovLogicNetwork mln, int samples, int burnIn, int chains, double threshold, long timeLimit) {
+		if (chains < 1) throw new IllegalArgumentException("chains: " + chains);
 		this.mln = mln;
+		this.samples = samples;
+		this.burnIn = burnIn;
+		this.chains = chains;
+		this.threshold = threshold;
+		this.timeLimit = timeLimit;
 	}
 
 	@Override
 	public double pr(Atom ground, Evidence evidence) {
+		return this.prAll(Collections.singleton(ground), evidence).get(ground).doubleValue();
+	}
+	
+	@Override
+	public Map<Atom, Double> prAll(Collection<Atom> grounds, Evidence evidence) {
 		Grounder grounder = new Grounder(this.mln, evidence);
-		GroundedMarkovNetwork mrf = grounder.ground(ground);
-		
-		Random random = new Random();
-		List<Atom> variables = mrf.getGroundings();
-		BinaryDB world = getRandomAssignment(variables);
-		
-		int pSamples = 0;
-		int fSamples = 0;
-		int counter = 0;
-		
-		for (int i = 0; i < 1000; i++) {
-			List<Clause> choosen = new ArrayList<Clause>();
-			
-			for (WeightedFormula<?> wf : mrf.getformulas()) {
-				boolean value = wf.getFormula().getValue(world);
-				boolean signal = wf.getWeight() > 0;
-				
-				if (value == signal) { // satisfied formulas
-					double negWeight = signal ? - wf.getWeight() : wf.getWeight();
-					double add = 1.0 - Math.exp(negWeight);
-					
-					if (random.nextDouble() < add) {
-						Formula f = wf.getFormula();
-						CNF cnf = signal ? f.toCNF() : Negation.OPERATOR.apply(f).toCNF();
-						choosen.addAll(cnf.getClauses());
+		GroundNetwork network = new GroundNetwork(grounder.ground(grounds));
+		
+		List<Atom> queries = new ArrayList<Atom>(new LinkedHashSet<Atom>(grounds));
+		int[] ids = new int[queries.size()];
+		for (int i = 0; i < ids.length; i++) ids[i] = network.getId(queries.get(i));
+		
+		Runner[] runners = new Runner[this.chains];
+		for (int i = 0; i < this.chains; i++) {
+			runners[i] = new Runner(new Chain(network, new Random()), ids);
+		}
+		Monitor monitor = new Monitor(runners, ids.length);
+		CyclicBarrier barrier = new CyclicBarrier(this.chains, monitor);
+		CountDownLatch done = new CountDownLatch(this.chains);
+		for (Runner runner : runners) {
+			runner.start(barrier, monitor, done);
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			monitor.stop = true;
+			throw new RuntimeException(e);
+		}
+		Throwable t = monitor.error.get();
+		if (t != null) {
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new RuntimeException(t);
+		}
+		
+		int total = monitor.samples * this.chains;
+		Map<Atom, Double> marginals = new HashMap<Atom, Double>();
+		for (int i = 0; i < ids.length; i++) {
+			int count = 0;
+			for (Runner runner : runners) count += runner.counts[i];
+			marginals.put(queries.get(i), Double.valueOf(((double) count) / total));
+		}
+		return marginals;
+	}
+	
+	/**
+	 * Runs a chain in its own thread, in rounds of {@value #CHECK_INTERVAL} 
+	 * samples.
+	 */
+	private class Runner implements Runnable {
+		
+		private final Chain chain;
+		private final int[] ids;
+		private final int[] counts; // true samples of each query
+		private CyclicBarrier barrier;
+		private Monitor monitor;
+		private CountDownLatch done;
+		
+		Runner(Chain chain, int[] ids) {
+			this.chain = chain;
+			this.ids = ids;
+			this.counts = new int[ids.length];
+		}
+		
+		void start(CyclicBarrier barrier, Monitor monitor, CountDownLatch done) {
+			this.barrier = barrier;
+			this.monitor = monitor;
+			this.done = done;
+			new Thread(this).start();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < burnIn && !this.monitor.stop; i++) this.chain.step();
+				while (!this.monitor.stop) {
+					int steps = Math.min(CHECK_INTERVAL, samples - this.monitor.samples);
+					for (int i = 0; i < steps; i++) {
+						boolean[] state = this.chain.step();
+						for (int q = 0; q < this.ids.length; q++) {
+							if (state[this.ids[q]]) this.counts[q]++;
+						}
 					}
+					this.barrier.await(); // the monitor runs when all chains arrive
 				}
+			} catch (InterruptedException e) {
+				// the barrier is broken by the interrupted chain
+				this.monitor.stop = true;
+			} catch (BrokenBarrierException e) {
+				this.monitor.stop = true;
+			} catch (Throwable e) {
+				// also thrown by the monitor, in the last chain to arrive
+				this.monitor.error.compareAndSet(null, e);
+				this.monitor.stop = true;
+				this.breakBarrier();
+			} finally {
+				this.done.countDown();
 			}
-			
-			if (choosen.isEmpty()) {
-				world = getRandomAssignment(variables);
-				counter = -2;
-				continue;
-			} else {
-				counter++;
+		}
+		
+		/**
+		 * Breaks the barrier, for the chains waiting in it and for the ones 
+		 * still to arrive. A reset would release only the chains waiting.
+		 */
+		private void breakBarrier() {
+			try {
+				// the last chain to arrive trips it instead, the others see stop
+				this.barrier.await(0, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// broken
+			} catch (BrokenBarrierException e) {
+				// broken already
+			} catch (InterruptedException e) {
+				// broken
 			}
-			CNF model = new CNF(choosen);
-			WalkSAT walk = new WalkSAT(model);
-			boolean solution = false;
-			world = getRandomAssignment(variables);
-			for (int j = 0; j < 10; j++) {
-				BinaryDB sample = walk.sat(world);
-				if (sample != null) { 
-					world = sample;
-					solution = true;
-					break;
-				}
+		}
+		
+	}
+	
+	/**
+	 * Checks the stop conditions at the end of each round, while the 
+	 * chains wait in the barrier. Keeps the first error of the chains.
+	 */
+	private class Monitor implements Runnable {
+		
+		private final Runner[] runners;
+		private final int[] counts;
+		private final long deadline;
+		volatile boolean stop;
+		volatile int samples; // counted samples of each chain
+		final AtomicReference<Throwable> error;
+		
+		Monitor(Runner[] runners, int queries) {
+			this.runners = runners;
+			this.counts = new int[runners.length];
+			this.deadline = timeLimit > 0 ? System.currentTimeMillis() + timeLimit : Long.MAX_VALUE;
+			this.stop = MCSAT.this.samples <= 0;
+			this.samples = 0;
+			this.error = new AtomicReference<Throwable>();
+		}
+		
+		@Override
+		public void run() {
+			if (this.stop) return; // a chain failed
+			this.samples += Math.min(CHECK_INTERVAL, MCSAT.this.samples - this.samples);
+			if (this.samples >= MCSAT.this.samples || System.currentTimeMillis() >= this.deadline) {
+				this.stop = true;
+			} else if (this.runners.length > 1) {
+				if (this.hasConverged()) this.stop = true;
 			}
-			
-			if (solution && counter > 0) {
-				boolean value = world.valueOf(ground);
-				if (value) pSamples++; else fSamples++;
+		}
+		
+		private boolean hasConverged() {
+			int queries = this.runners[0].counts.length;
+			for (int q = 0; q < queries; q++) {
+				for (int i = 0; i < this.runners.length; i++) {
+					this.counts[i] = this.runners[i].counts[q];
+				}
+				if (!(GelmanRubinTester.psrf(this.counts, this.samples) < threshold)) return false;
 			}
+			return true;
 		}
 		
-		int total = pSamples + fSamples;		
-		return ((double) pSamples) / total;
 	}
 	
-	private static BinaryDB getRandomAssignment(List<Atom> variables) {
-		Random r = new Random();
-		BinaryDB database = new BinaryDatabase();
-		for (Atom atom : variables) database.set(atom, r.nextBoolean());
-		return database;
+	/**
+	 * A MC-SAT Markov chain over a GroundNetwork.
+	 */
+	static class Chain {
+		
+		private final GroundNetwork network;
+		private final SatSolver solver;
+		private final Random random;
+		private final boolean[] state;
+		private final boolean[] active; // clauses of the selected formulas
+		private final double[] keep;    // 1 - exp(-w) for each formula
+		private final long walk;        // late annealing steps
+		
+		Chain(GroundNetwork network, Random random) {
+			this.network = network;
+			this.random = random;
+			int n = network.atoms();
+			long maxFlips = Math.max(MAX_FLIPS, 10L*n);
+			this.solver = new SatSolver(n, network.getClauseOffsets(), network.getLiterals(), 
+					SA_RATIO, NOISE, TEMPERATURE, 1, maxFlips, random);
+			this.active = new boolean[network.clauses()];
+			this.solver.setActive(this.active);
+			double[] weights = network.getWeights();
+			this.keep = new double[weights.length];
+			for (int f = 0; f < weights.length; f++) {
+				this.keep[f] = 1.0d - Math.exp(-weights[f]);
+			}
+			this.walk = LATE_STEPS*n;
+			this.state = new boolean[n];
+			for (int a = 0; a < n; a++) this.state[a] = random.nextBoolean();
+		}
+		
+		/**
+		 * @return the next state, shared and updated by the next step.
+		 */
+		boolean[] step() {
+			int[] formulas = this.network.getFormulaOffsets();
+			for (int f = 0; f < this.keep.length; f++) {
+				boolean satisfied = true;
+				for (int c = formulas[f]; c < formulas[f+1] && satisfied; c++) {
+					satisfied = this.network.isSatisfied(c, this.state);
+				}
+				boolean selected = satisfied && this.random.nextDouble() < this.keep[f];
+				for (int c = formulas[f]; c < formulas[f+1]; c++) {
+					this.active[c] = selected;
+				}
+			}
+			// keeps the current state if SampleSAT does not find a solution
+			if (this.solver.sat()) {
+				this.solver.walk(this.walk);
+				boolean[] sample = this.solver.getAssignment();
+				System.arraycopy(sample, 0, this.state, 0, this.state.length);
+			}
+			return this.state;
+		}
+		
 	}
 	
-	
 }
@@ -1,13 +1,16 @@
 package markovLogic.inference;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 import fol.Atom;
 import fol.Predicate;
 import fol.database.BinaryDB;
-import fol.database.BinaryDatabase;
+import fol.database.BitsetDatabase;
 import fol.database.Groundings;
 import fol.database.RealDB;
 import markovLogic.MarkovLogicNetwork;
@@ -42,12 +45,37 @@ public class RealInference implements Inference {
 		return expected / sum;
 	}
 	
+	@Override
+	public Map<Atom, Double> prAll(Collection<Atom> grounds, Evidence evidence) {
+
+		double sum = 0.0d;
+		Map<Atom, Double> expected = new HashMap<Atom, Double>();
+		for (Atom ground : grounds) expected.put(ground, Double.valueOf(0.0d));
+		
+		int i = 0;
+		while (sum < 0.5d && (i++ < 100)) {
+			Sample sample = this.getSample(evidence);
+			evidence.setDatabase(sample.values);
+			Map<Atom, Double> infer = this.inference.prAll(grounds, evidence);
+			sum += sample.probability;
+			for (Map.Entry<Atom, Double> e : infer.entrySet()) {
+				double value = expected.get(e.getKey()).doubleValue();
+				expected.put(e.getKey(), Double.valueOf(value + sample.probability*e.getValue().doubleValue()));
+			}
+		}
+		
+		for (Map.Entry<Atom, Double> e : expected.entrySet()) {
+			e.setValue(Double.valueOf(e.getValue().doubleValue() / sum));
+		}
+		return expected;
+	}
+	
 	private Sample getSample(Evidence evidence) {
 		Set<Predicate> predicates = this.mln.getPredicates();
 		
 		double pr = 1.0d;
 		Random random = new Random();
-		BinaryDB binaryValues = new BinaryDatabase();
+		BinaryDB binaryValues = new BitsetDatabase();
 
 		for (Predicate p : predicates) {
 			Iterator<Atom> grounds = Groundings.iterator(p, true);
@@ -1,21 +1,29 @@
 package markovLogic.parse;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import fol.Atom;
 import fol.Constant;
 import fol.Domain;
 import fol.Predicate;
 import fol.Term;
+import fol.database.FloatArrayDatabase;
 import fol.database.RealDB;
 import fol.database.RealDatabase;
 
@@ -27,10 +35,19 @@ public class ParseDataSet {
 	private final RealDB db;
 	
 	public ParseDataSet(Set<Predicate> predicates) {
+		this(predicates, new RealDatabase());
+	}
+	
+	/**
+	 * @param db the database filled with the values parsed, e.g. a 
+	 * {@link FloatArrayDatabase} to keep the values in primitive arrays, 
+	 * or quantized in 16 or 8 bits
+	 */
+	public ParseDataSet(Set<Predicate> predicates, RealDB db) {
 		this.predicateMap = Parse.toMap(predicates);
 		this.constants = getConstants(predicates);
 		this.constantMap = Parse.toMap(constants);		
-		this.db = new RealDatabase();
+		this.db = db;
 	}
 	
 	// Get all constants already defined in the domain, if any.
@@ -48,66 +65,87 @@ public class ParseDataSet {
 		return cSet;
 	}
 	
+	/**
+	 * Parses the files in order. The files are read and broken into 
+	 * tokens in parallel, each one by a thread, and handed over in 
+	 * batches of lines to this thread, which adds them to the database 
+	 * in the order of the files. A thread scans at most a few batches 
+	 * ahead of this one, so the tokens of a file are never all in 
+	 * memory.
+	 */
 	public void parse(File ... dbFiles) throws FileNotFoundException, IOException {
-		for (File dbFile : dbFiles) {
-			this.parse(dbFile);
+		Scanner[] scanners = new Scanner[dbFiles.length];
+		for (int i = 0; i < dbFiles.length; i++) {
+			scanners[i] = new Scanner(dbFiles[i]);
+		}
+		Thread[] threads = new Thread[Math.min(dbFiles.length, Runtime.getRuntime().availableProcessors())];
+		AtomicInteger next = new AtomicInteger();
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Worker(scanners, next), "parse");
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		try {
+			for (Scanner scanner : scanners) {
+				this.parse(scanner);
+			}
+		} finally {
+			// stops the threads still scanning after an error
+			for (Thread thread : threads) thread.interrupt();
 		}
 	}
 
-	// TODO: Check file/lines format?
 	public void parse(File dbFile) throws IOException, FileNotFoundException {
-		int lineNumber = 0;
-		BufferedReader bf = new BufferedReader(new FileReader(dbFile));
-		String line = bf.readLine();
-		while(line != null) {
-			lineNumber++;
-			parseLine(line, lineNumber);
-			line = bf.readLine();
-		}
-		bf.close();		
+		this.parse(new File[] { dbFile });
+	}
+	
+	private void parse(Scanner scanner) throws IOException {
+		for (Batch batch = scanner.take(); batch != Batch.END; batch = scanner.take()) {
+			for (int i = 0; i < batch.lines; i++) {
+				this.parseLine(batch, i);
+			}
+		}
+		scanner.rethrow();
 	}
 	
 	// TODO: Check line format?
 	// line format: [!?]PredicateName(Constant0[,Constant1,...,ConstantN])[ floatValue]
-	private void parseLine(String line, int lineNumber) {
+	private void parseLine(Batch batch, int index) {
 		double value = 1.0d;
 		boolean negated = false;
 		boolean unknown = false;
 		Constant c;
 		Predicate p;
 		List<Domain> domains;
-		String mline = line;
+		int lineNumber = batch.numbers[index];
 		List<Constant> constantList = new ArrayList<Constant>();
 		
 		// check the first character of line
-		switch (line.charAt(0)) {
+		switch (batch.flags[index]) {
 		case '!':
 			negated = true;
-			mline = line.substring(1);
 			value = 0.0d;
 			break;
 		case '?':
 			unknown = true;
-			mline = line.substring(1);
 			value = Double.NaN;
 			break;
 		}
 		
-		// break into tokens
-		String[] tokens = mline.replaceAll("\\s","").split("[(,)]");
+		// tokens, without spaces, split by '(', ',' and ')'
+		String[] tokens = batch.tokens[index];
 		int length = tokens.length;
 		
 		// get the predicate
-		String predicateName = tokens[0];
+		String predicateName = length == 0 ? "" : tokens[0];
 		p = predicateMap.get(predicateName);
 		
 		// Check if this predicate has been declared in domain.
-		try {
-			domains = p.getDomains();
-		} catch (NullPointerException e) {
-			throw new RuntimeException("Error. Line " + lineNumber + ": " + line + 
+		if (p == null) {
+			throw new RuntimeException("Error. Line " + lineNumber + ": " + batch.line(index) + 
 					"\nPredicate \"" + predicateName + "\" not declared in domain.");
 		}
+		domains = p.getDomains();
 		
 		if (tokens.length > domains.size() +1) {
 			// check if the last token is a float
@@ -116,7 +154,7 @@ public class ParseDataSet {
 				// make sure the value lies between 0 and 1;
 				if (Double.compare(d, 0) < 0 || Double.compare(d, 1) > 0) {
 					throw new RuntimeException("Format error. Line " + 
-							lineNumber + ": " + line + "\nProbability outside range [0,1]");
+							lineNumber + ": " + batch.line(index) + "\nProbability outside range [0,1]");
 				}
 				if(negated) {
 					value = 1.0d - d;
@@ -133,9 +171,9 @@ public class ParseDataSet {
 		for (int i = 1; i < length; i++) {
 			
 			// if this constant already exists:
-			if (constantMap.containsKey(tokens[i])) {
+			c = constantMap.get(tokens[i]);
+			if (c != null) {
 				// add to constantList and check domain.
-				c = constantMap.get(tokens[i]);
 				constantList.add(c);
 				if (!Domain.in(c, domains.get(i-1))) {
 					// TODO: Warning, two domains for the same constant.
@@ -155,7 +193,7 @@ public class ParseDataSet {
 		}
 		
 		Term[] terms = constantList.toArray(new Term[constantList.size()]);
-		Atom at = new Atom(p, terms);
+		Atom at = new Atom(p, terms).intern();
 		this.db.set(at, value);
 	}
 	
@@ -170,4 +208,274 @@ public class ParseDataSet {
 		return this.db;
 	}
 	
+	/**
+	 * Writes the predicates and the database parsed so far, to be 
+	 * loaded by {@link Snapshot#load(File)}.
+	 */
+	public void writeSnapshot(File file) throws IOException {
+		Snapshot.write(file, this.predicateMap.values(), this.db);
+	}
+	
+	/**
+	 * Scans the files not taken by the other workers, until it is 
+	 * interrupted.
+	 */
+	private static final class Worker implements Runnable {
+		
+		private final Scanner[] scanners;
+		private final AtomicInteger next;
+		
+		Worker(Scanner[] scanners, AtomicInteger next) {
+			this.scanners = scanners;
+			this.next = next;
+		}
+		
+		@Override
+		public void run() {
+			int i;
+			while (!Thread.currentThread().isInterrupted() && 
+					(i = this.next.getAndIncrement()) < this.scanners.length) {
+				this.scanners[i].run();
+			}
+		}
+		
+	}
+	
+	/**
+	 * <p>Breaks a memory-mapped file into lines and the lines into tokens, 
+	 * without regular expressions. The names are interned in a table of 
+	 * the file, so each name is decoded once.</p>
+	 * 
+	 * <p>As with <code>BufferedReader.readLine()</code>, the lines end 
+	 * with <code>\n</code>, <code>\r</code> or <code>\r\n</code>; 
+	 * empty lines are skipped. The tokens are the same of 
+	 * <code>replaceAll("\\s","").split("[(,)]")</code> after the first 
+	 * character, if it is <code>!</code> or <code>?</code>. The 
+	 * delimiters and spaces are ASCII, so the bytes are split before 
+	 * decoding them with the default charset.</p>
+	 * 
+	 * <p>The lines are put in a bounded queue in batches of 
+	 * {@value #BATCH_LINES}, followed by {@link Batch#END}. The first 
+	 * error is kept and thrown by {@link #rethrow()} after the end.</p>
+	 */
+	private static final class Scanner implements Runnable {
+		
+		private static final String[] EMPTY = new String[0];
+		private static final int BATCH_LINES = 4096;
+		private static final int QUEUED_BATCHES = 4; // scanned ahead of the parser
+		
+		private final File file;
+		private final BlockingQueue<Batch> batches;
+		private Throwable error; // published by Batch.END
+		
+		Scanner(File file) {
+			this.file = file;
+			this.batches = new ArrayBlockingQueue<Batch>(QUEUED_BATCHES);
+		}
+		
+		/**
+		 * @return the next batch of lines, {@link Batch#END} after the last
+		 */
+		Batch take() {
+			try {
+				return this.batches.take();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		void rethrow() throws IOException {
+			Throwable e = this.error;
+			if (e == null) return;
+			if (e instanceof IOException) throw (IOException) e;
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			if (e instanceof Error) throw (Error) e;
+			throw new RuntimeException(e);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				try {
+					this.scan(map(this.file));
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable e) {
+					this.error = e;
+				}
+				this.batches.put(Batch.END);
+			} catch (InterruptedException e) {
+				// the lines are not parsed anymore
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private static ByteBuffer map(File file) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE) throw new IOException("File too large: " + file);
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} finally {
+				in.close();
+			}
+		}
+		
+		private void scan(ByteBuffer b) throws InterruptedException {
+			int size = b.limit();
+			Batch batch = new Batch(b, BATCH_LINES);
+			
+			Map<Name, String> names = new HashMap<Name, String>();
+			List<String> lineTokens = new ArrayList<String>();
+			Name name = new Name(new byte[64]);
+			Charset charset = Charset.defaultCharset();
+			int number = 0;
+			int position = 0;
+			while (position < size) {
+				// find the end of the line
+				int start = position;
+				int end = start;
+				while (end < size && b.get(end) != '\n' && b.get(end) != '\r') end++;
+				position = end + 1;
+				if (end < size && b.get(end) == '\r' && position < size && b.get(position) == '\n') {
+					position++;
+				}
+				number++;
+				if (end == start) continue;
+				
+				// the flag and the tokens
+				byte flag = b.get(start);
+				int i = (flag == '!' || flag == '?') ? start + 1 : start;
+				lineTokens.clear();
+				name.length = 0;
+				for (; i < end; i++) {
+					byte c = b.get(i);
+					if (c == '(' || c == ',' || c == ')') {
+						lineTokens.add(intern(name, names, charset));
+						name.length = 0;
+					} else if (!isSpace(c)) {
+						name.append(c);
+					}
+				}
+				lineTokens.add(intern(name, names, charset));
+				int n = lineTokens.size(); // trailing empty tokens are removed
+				while (n > 0 && lineTokens.get(n-1).length() == 0) n--;
+				
+				if (batch.lines == BATCH_LINES) {
+					this.batches.put(batch);
+					batch = new Batch(b, BATCH_LINES);
+				}
+				batch.numbers[batch.lines] = number;
+				batch.starts[batch.lines] = start;
+				batch.ends[batch.lines] = end;
+				batch.flags[batch.lines] = flag;
+				batch.tokens[batch.lines] = n == 0 ? EMPTY : lineTokens.subList(0, n).toArray(new String[n]);
+				batch.lines++;
+			}
+			if (batch.lines > 0) this.batches.put(batch);
+		}
+		
+		private static boolean isSpace(byte c) {
+			return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+		}
+		
+		/**
+		 * @return the string of name, the same for equal names
+		 */
+		private static String intern(Name name, Map<Name, String> names, Charset charset) {
+			String s = names.get(name);
+			if (s == null) {
+				s = new String(name.bytes, 0, name.length, charset);
+				names.put(name.copy(), s);
+			}
+			return s;
+		}
+		
+	}
+	
+	/**
+	 * Lines of a file scanned by a {@link Scanner}, with their tokens.
+	 */
+	private static final class Batch {
+		
+		static final Batch END = new Batch(null, 0);
+		
+		private final ByteBuffer buffer;
+		private int lines;
+		private final int[] numbers;
+		private final int[] starts;
+		private final int[] ends;
+		private final byte[] flags;
+		private final String[][] tokens;
+		
+		Batch(ByteBuffer buffer, int capacity) {
+			this.buffer = buffer;
+			this.numbers = new int[capacity];
+			this.starts = new int[capacity];
+			this.ends = new int[capacity];
+			this.flags = new byte[capacity];
+			this.tokens = new String[capacity][];
+		}
+		
+		/**
+		 * @return the text of line <code>index</code>
+		 */
+		String line(int index) {
+			byte[] bytes = new byte[this.ends[index] - this.starts[index]];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = this.buffer.get(this.starts[index] + i);
+			}
+			return new String(bytes, Charset.defaultCharset());
+		}
+		
+	}
+	
+	/**
+	 * A name in bytes, the key of the intern table.
+	 */
+	private static final class Name {
+		
+		byte[] bytes;
+		int length;
+		
+		Name(byte[] bytes) {
+			this.bytes = bytes;
+			this.length = bytes.length;
+		}
+		
+		void append(byte c) {
+			if (this.length == this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, this.length << 1);
+			}
+			this.bytes[this.length++] = c;
+		}
+		
+		Name copy() {
+			return new Name(Arrays.copyOf(this.bytes, this.length));
+		}
+		
+		@Override
+		public int hashCode() {
+			int hash = 1;
+			for (int i = 0; i < this.length; i++) {
+				hash = 31*hash + this.bytes[i];
+			}
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Name)) return false;
+			Name o = (Name) obj;
+			if (this.length != o.length) return false;
+			for (int i = 0; i < this.length; i++) {
+				if (this.bytes[i] != o.bytes[i]) return false;
+			}
+			return true;
+		}
+		
+	}
+	
 }
@@ -0,0 +1,231 @@
+package markovLogic.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fol.Atom;
+import fol.Constant;
+import fol.Domain;
+import fol.Predicate;
+import fol.database.FloatArrayDatabase;
+import fol.database.MappedRealDB;
+import fol.database.RealDB;
+import fol.database.RealDatabase;
+
+/**
+ * <p>A binary copy of the predicates, domains and database parsed by
+ * {@link ParseDomain} and {@link ParseDataSet}, to start faster the next
+ * time. See {@link #write(File, Collection, RealDB)} and
+ * {@link #load(File)}.</p>
+ *
+ * <p>The file has, after the magic number and the version:</p>
+ * <ul>
+ * <li>the domains, each one with its name and the names of its
+ * constants, in order;</li>
+ * <li>the predicates, each one with its name, the index of each domain,
+ * the size of each domain when written and the groundings with a value
+ * other than 0.0: their mixed-radix indexes, sorted, and their values,
+ * as arrays of <code>long</code> and <code>double</code> aligned to 8
+ * bytes.</li>
+ * </ul>
+ *
+ * <p>The loaded database reads the values from the mapped file, see
+ * {@link MappedRealDB}, so the cost of loading is the creation of the
+ * Predicates, Domains and Constants.</p>
+ */
+public class Snapshot {
+
+	private static final int MAGIC = 0x4D4C4E53; // MLNS
+	private static final int VERSION = 1;
+
+	private final Set<Predicate> predicates;
+	private final Set<Domain> domains;
+	private final Set<Constant> constants;
+	private final MappedRealDB db;
+
+	private Snapshot(Set<Predicate> predicates, Set<Domain> domains, Set<Constant> constants, MappedRealDB db) {
+		this.predicates = predicates;
+		this.domains = domains;
+		this.constants = constants;
+		this.db = db;
+	}
+
+	/**
+	 * Writes the predicates, their domains and the values of their
+	 * groundings in db, a {@link RealDatabase} or a 
+	 * {@link FloatArrayDatabase}.
+	 */
+	public static void write(File file, Collection<Predicate> predicates, RealDB db) throws IOException {
+		List<Predicate> sorted = new ArrayList<Predicate>(predicates);
+		sorted.remove(Predicate.EQUALS);
+		Collections.sort(sorted);
+		List<Domain> domains = new ArrayList<Domain>();
+		Map<Domain, Integer> domainIndex = new HashMap<Domain, Integer>();
+		for (Predicate p : sorted) {
+			for (Domain d : p.getDomains()) {
+				if (domainIndex.containsKey(d)) continue;
+				domainIndex.put(d, Integer.valueOf(domains.size()));
+				domains.add(d);
+			}
+		}
+
+		// the values of each predicate
+		Map<Predicate, List<Atom>> atoms = new HashMap<Predicate, List<Atom>>();
+		for (Predicate p : sorted) atoms.put(p, new ArrayList<Atom>());
+		Map<Atom, Double> values = RealDatabase.getValues(db);
+		for (Map.Entry<Atom, Double> e : values.entrySet()) {
+			List<Atom> list = atoms.get(e.getKey().predicate);
+			if (list != null && e.getValue().doubleValue() != 0.0d) list.add(e.getKey());
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(domains.size());
+			for (Domain d : domains) {
+				writeString(out, d.toString());
+				out.writeInt(d.size());
+				for (int i = 0; i < d.size(); i++) {
+					Constant c = d.getConstant(i);
+					if (c.getDomain() != d) {
+						throw new IllegalArgumentException("Constant " + c + " of sub-domain " + c.getDomain() + " in " + d);
+					}
+					writeString(out, c.toString());
+				}
+			}
+			out.writeInt(sorted.size());
+			for (Predicate p : sorted) {
+				List<Domain> pDomains = p.getDomains();
+				writeString(out, p.toString());
+				out.writeInt(pDomains.size());
+				for (Domain d : pDomains) out.writeInt(domainIndex.get(d).intValue());
+				for (Domain d : pDomains) out.writeInt(d.size());
+
+				List<Atom> pAtoms = atoms.get(p);
+				long[] indexes = new long[pAtoms.size()];
+				Map<Long, Double> byIndex = new HashMap<Long, Double>();
+				for (int i = 0; i < indexes.length; i++) {
+					Atom a = pAtoms.get(i);
+					indexes[i] = index(pDomains, a);
+					byIndex.put(Long.valueOf(indexes[i]), values.get(a));
+				}
+				Arrays.sort(indexes);
+				out.writeInt(indexes.length);
+				while (out.size() % 8 != 0) out.writeByte(0);
+				for (long index : indexes) out.writeLong(index);
+				for (long index : indexes) out.writeDouble(byIndex.get(Long.valueOf(index)).doubleValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long index(List<Domain> domains, Atom a) {
+		long index = 0;
+		for (int i = 0; i < domains.size(); i++) {
+			Domain d = domains.get(i);
+			index = index*d.size() + d.indexOf((Constant) a.terms[i]);
+		}
+		return index;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Creates new Predicates, Domains and Constants, as parsing the
+	 * files again would.
+	 */
+	public static Snapshot load(File file) throws IOException {
+		ByteBuffer in;
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			stream.close();
+		}
+		if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+			throw new IOException("Not a snapshot: " + file);
+		}
+
+		Domain[] domains = new Domain[in.getInt()];
+		Set<Constant> constants = new HashSet<Constant>();
+		for (int i = 0; i < domains.length; i++) {
+			Domain d = new Domain(readString(in));
+			domains[i] = d;
+			int size = in.getInt();
+			for (int j = 0; j < size; j++) {
+				constants.add(new Constant(readString(in), d));
+			}
+		}
+
+		MappedRealDB db = new MappedRealDB();
+		Set<Predicate> predicates = new HashSet<Predicate>();
+		int n = in.getInt();
+		for (int i = 0; i < n; i++) {
+			String name = readString(in);
+			Domain[] pDomains = new Domain[in.getInt()];
+			for (int j = 0; j < pDomains.length; j++) pDomains[j] = domains[in.getInt()];
+			int[] sizes = new int[pDomains.length];
+			for (int j = 0; j < sizes.length; j++) sizes[j] = in.getInt();
+			Predicate p = new Predicate(name, pDomains);
+			predicates.add(p);
+
+			int groundings = in.getInt();
+			while (in.position() % 8 != 0) in.get();
+			LongBuffer indexes = in.asLongBuffer();
+			indexes.limit(groundings);
+			in.position(in.position() + 8*groundings);
+			DoubleBuffer values = in.asDoubleBuffer();
+			values.limit(groundings);
+			in.position(in.position() + 8*groundings);
+			db.put(p, sizes, indexes, values);
+		}
+		return new Snapshot(predicates, new HashSet<Domain>(Arrays.asList(domains)), constants, db);
+	}
+
+	public Set<Predicate> getPredicates() {
+		return this.predicates;
+	}
+
+	public Set<Domain> getDomains() {
+		return this.domains;
+	}
+
+	public Set<Constant> getConstants() {
+		return this.constants;
+	}
+
+	public RealDB getDatabase() {
+		return this.db;
+	}
+
+}
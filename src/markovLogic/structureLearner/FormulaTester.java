@@ -1,5 +1,6 @@
 package markovLogic.structureLearner;
 
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.CountDownLatch;
 
@@ -45,13 +46,20 @@ public class FormulaTester implements Runnable {
 					return;
 				}
 				
+				double[] initial;
+				try {
+					initial = this.learner.learnCandidate(this.lastWeights, f);
+				} catch (Exception e) {
+					initial = Arrays.copyOf(this.lastWeights, this.lastWeights.length + 1);
+				}
+				
 				if (!this.learner.addFormula(f)) { continue; }
 				
 				double newScore;
 				double learnedWeight;
 				double[] nweights;
 				try {
-					nweights = this.learner.learn(this.lastWeights);
+					nweights = this.learner.learn(initial);
 					learnedWeight = nweights[nweights.length -1]; 
 					newScore = this.learner.score();
 				} catch (Exception e) {
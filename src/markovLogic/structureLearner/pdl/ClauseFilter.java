@@ -8,9 +8,13 @@ import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 
+import markovLogic.weightLearner.Score;
 import markovLogic.weightLearner.WeightLearner;
 import markovLogic.weightLearner.wpll.CountsGenerator;
+import math.DifferentiableFunction;
+import math.Newton;
 import math.OptimizationException;
+import math.TwiceDifferentiableFunction;
 import fol.Clause;
 import fol.FormulaFactory;
 import fol.WeightedFormula;
@@ -19,6 +23,10 @@ import fol.WeightedFormula.AbsoluteWeightComparator;
 public class ClauseFilter {
 	
 	private static final List<Clause> END = Collections.emptyList();
+	private static final double MIN_GAIN = 1e-4;       // estimated score gain to be learned
+	private static final double SCREEN_FRACTION = 0.3; // candidates learned, by estimated gain
+	private static final int NEWTON_STEPS = 10;
+	private static final double NEWTON_PRECISION = 1e-3;
 	
 	private final WeightLearner wlearner;
 	private final FormulaFactory factory;
@@ -33,11 +41,11 @@ public class ClauseFilter {
 	public List<Clause> filter(List<Clause> candidates) {
 		
 		List<Clause> all = new ArrayList<Clause>();
-		Queue<List<Clause>> flipQueue = new ConcurrentLinkedQueue<List<Clause>>();
+		List<List<Clause>> flipLists = new ArrayList<List<Clause>>(candidates.size());
 		
 		for (Clause candidate : candidates) {
 			List<Clause> flips = this.factory.flipSigns(candidate);
-			flipQueue.add(flips);
+			flipLists.add(flips);
 			all.addAll(flips);			
 		}
 		
@@ -51,6 +59,9 @@ public class ClauseFilter {
 		}
 		double score = this.wlearner.score();
 		
+		// screening
+		Queue<List<Clause>> flipQueue = new ConcurrentLinkedQueue<List<Clause>>(this.screen(flipLists, weights));
+		
 		// selection
 		int threads = Runtime.getRuntime().availableProcessors();
 		CountDownLatch done = new CountDownLatch(threads);
@@ -71,6 +82,72 @@ public class ClauseFilter {
 		return WeightedFormula.toFormulasAndWeights(clauses).formulas;
 	}
 	
+	/**
+	 * <p>Estimates the gain of each clause by the best score reached 
+	 * moving only its weight, with the other weights fixed, by a few 
+	 * Newton steps over the groundings of the clause 
+	 * ({@link Score#candidate}).</p>
+	 * 
+	 * <p>Keeps the flips with gain of at least {@value #MIN_GAIN} and, 
+	 * from the candidates with some flip left, the fraction 
+	 * {@value #SCREEN_FRACTION} with the largest gains.</p>
+	 * 
+	 * <p>If the score of some clause has no second derivative the 
+	 * candidates are not screened, all of them are returned.</p>
+	 */
+	private List<List<Clause>> screen(List<List<Clause>> flipLists, double[] weights) {
+		Score score = this.wlearner.getScore();
+		Newton newton = new Newton(NEWTON_STEPS, NEWTON_PRECISION);
+		List<Screened> screened = new ArrayList<Screened>(flipLists.size());
+		for (List<Clause> flips : flipLists) {
+			List<Clause> kept = new ArrayList<Clause>(flips.size());
+			double max = Double.NEGATIVE_INFINITY;
+			for (Clause clause : flips) {
+				DifferentiableFunction candidate = score.candidate(clause, weights);
+				if (!(candidate instanceof TwiceDifferentiableFunction)) return flipLists;
+				double initial = candidate.f(new double[1]);
+				newton.max(0, (TwiceDifferentiableFunction) candidate);
+				double gain = newton.getValue() - initial;
+				if (gain >= MIN_GAIN) {
+					kept.add(clause);
+					max = Math.max(max, gain);
+				}
+			}
+			if (!kept.isEmpty()) {
+				screened.add(new Screened(kept, max));
+			}
+		}
+		
+		Collections.sort(screened);
+		int size = (int) Math.ceil(SCREEN_FRACTION * screened.size());
+		List<List<Clause>> selected = new ArrayList<List<Clause>>(size);
+		for (Screened s : screened.subList(0, size)) {
+			selected.add(s.flips);
+		}
+		return selected;
+	}
+	
+	/**
+	 * The flips of a candidate that passed the screening, ordered by 
+	 * decreasing gain.
+	 */
+	private static class Screened implements Comparable<Screened> {
+		
+		final List<Clause> flips;
+		final double gain;
+		
+		Screened(List<Clause> flips, double gain) {
+			this.flips = flips;
+			this.gain = gain;
+		}
+		
+		@Override
+		public int compareTo(Screened o) {
+			return Double.compare(o.gain, this.gain);
+		}
+		
+	}
+	
 	private static class Runner implements Runnable {
 		
 		private final Queue<List<Clause>> queue;
@@ -102,8 +179,9 @@ public class ClauseFilter {
 					for (int i = 0; i < flips.size(); i++) {
 						Clause clause = flips.get(i);
 						try {
+							double[] initial = this.initialWeights(clause);
 							this.learner.addFormula(clause);
-							double w = this.learner.learn(this.weights)[this.weights.length];
+							double w = this.learner.learn(initial)[this.weights.length];
 							double score = (this.learner.score()-this.initialScore) * Math.abs(w);
 							if (score > max) {
 								max = score;
@@ -126,6 +204,17 @@ public class ClauseFilter {
 			
 		}
 		
+		/**
+		 * @return the weights followed by the weight of clause learned 
+		 * with the other weights fixed, or zero if that fails
+		 */
+		private double[] initialWeights(Clause clause) {
+			try {
+				return this.learner.learnCandidate(this.weights, clause);
+			} catch (OptimizationException e) {
+				return Arrays.copyOf(this.weights, this.weights.length + 1);
+			}
+		}
 		
 	}
 
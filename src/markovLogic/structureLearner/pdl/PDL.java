@@ -1,5 +1,8 @@
 package markovLogic.structureLearner.pdl;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -10,6 +13,7 @@ import markovLogic.weightLearner.L1RegularizedScore;
 import markovLogic.weightLearner.Score;
 import markovLogic.weightLearner.WeightLearner;
 import markovLogic.weightLearner.wpll.CountCache;
+import markovLogic.weightLearner.wpll.CountStore;
 import markovLogic.weightLearner.wpll.CountsGenerator;
 import markovLogic.weightLearner.wpll.WeightedPseudoLogLikelihood;
 import math.AutomatedLBFGS;
@@ -23,7 +27,7 @@ import fol.WeightedFormula;
 import fol.database.BinaryDB;
 import fol.database.RealDB;
 
-public class PDL implements StructureLearner {
+public class PDL implements StructureLearner, Closeable {
 	
 	// PARAMETERS !!!!!
 	private static final int MAX_VARS = 3;
@@ -42,6 +46,7 @@ public class PDL implements StructureLearner {
 	private final FormulaFactory factory;
 	private final List<Clause> atoms;
 	private final CountCache cache;
+	private final CountStore store; // may be null
 	
 	private final CountsGenerator preciseCounter;
 	private final CountsGenerator fastCounter;
@@ -51,20 +56,40 @@ public class PDL implements StructureLearner {
 	private WeightLearner l1Learner;
 	
 	public PDL(Set<Predicate> predicates, BinaryDB db) {
-		this(predicates, db, null);
+		this(predicates, db, null, null);
 	}
 	
 	public PDL(Set<Predicate> predicates, RealDB db) {
-		this(predicates, null, db);
+		this(predicates, null, db, null);
 	}
 	
-	private PDL(Set<Predicate> predicates, BinaryDB bin, RealDB real) {
+	/**
+	 * Reuses the counts saved in directory by previous runs over the 
+	 * same database, and saves the new ones. The store stays open until
+	 * {@link #close()}.
+	 * @see CountStore
+	 */
+	public PDL(Set<Predicate> predicates, BinaryDB db, File directory) throws IOException {
+		this(predicates, db, null, CountStore.open(directory, predicates, db));
+	}
+	
+	/**
+	 * @see #PDL(Set, BinaryDB, File)
+	 */
+	public PDL(Set<Predicate> predicates, RealDB db, File directory) throws IOException {
+		this(predicates, null, db, CountStore.open(directory, predicates, db));
+	}
+	
+	private PDL(Set<Predicate> predicates, BinaryDB bin, RealDB real, CountStore store) {
 		this.factory = new FormulaFactory(predicates, MAX_VARS);
 		this.atoms = this.factory.getUnitClauses();
-		this.cache = (bin == null) ? new CountCache(real) : new CountCache(bin);
+		this.store = store;
+		long budget = Runtime.getRuntime().maxMemory() / 4;
+		this.cache = (bin == null) ? new CountCache(real, budget, store) : new CountCache(bin, budget, store);
 		
 		Score fastScore = new WeightedPseudoLogLikelihood(predicates, this.cache, LOW_SAMPLE_SIZE);
-		Score preciseScore = new WeightedPseudoLogLikelihood(predicates, this.cache, HIGH_SAMPLE_SIZE);
+		WeightedPseudoLogLikelihood preciseScore = new WeightedPseudoLogLikelihood(predicates, this.cache, HIGH_SAMPLE_SIZE);
+		preciseScore.setThreads(THREADS); // the fast score is already copied to each thread of the filter
 		L1RegularizedScore l1Score = new L1RegularizedScore(fastScore).setConstantWeight(L1_WEIGHT);
 		
 		Optimizer fastOptimizer = new AutomatedLBFGS(LOW_LBFGS_PRECISION);
@@ -88,6 +113,7 @@ public class PDL implements StructureLearner {
 		// add unit clauses, learn weights and gets the score
 		this.l1Learner.addFormulas(this.atoms);
 		this.preciseLearner.addFormulas(this.atoms);
+		for (Clause atom : this.atoms) this.cache.pin(atom);
 		try {
 			this.l1Learner.learn(new double[this.atoms.size()]);
 			this.preciseLearner.learn(this.l1Learner.weights());
@@ -121,8 +147,6 @@ public class PDL implements StructureLearner {
 				}
 			}
 			
-			this.cache.clear();
-			
 			if (clauses.isEmpty()) break;
 			candidates = clauses;
 		}
@@ -138,6 +162,14 @@ public class PDL implements StructureLearner {
 		return mln;
 	}
 	
+	/**
+	 * Closes the count store, if any. The counts are no longer saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.store != null) this.store.close();
+	}
+	
 	private boolean addClause(Formula formula, double lastScore) {
 		try {
 			double[] weights = this.preciseLearner.weights();
@@ -145,6 +177,7 @@ public class PDL implements StructureLearner {
 			weights = Arrays.copyOf(weights, length+1);
 				
 			this.preciseLearner.addFormula(formula);
+			this.cache.pin(formula);
 			weights = this.preciseLearner.learn(weights);
 			double score = this.preciseLearner.score();
 			double min = Math.max(-MIN_IMPROVEMENT*lastScore, MIN_ABSOLUTE_IMPROVEMENT);
@@ -176,6 +209,7 @@ public class PDL implements StructureLearner {
 				return true;				
 			} else {
 				this.preciseLearner.removeFormula(formula);
+				this.cache.unpin(formula);
 				weights = Arrays.copyOf(weights, length);
 				this.preciseLearner.learn(weights);
 				return false;
@@ -2,6 +2,7 @@ package markovLogic.weightLearner;
 
 import java.util.List;
 
+import math.DifferentiableFunction;
 import math.L1RegularizedFunction;
 import fol.Formula;
 
@@ -39,6 +40,18 @@ public class L1RegularizedScore extends L1RegularizedFunction implements Score {
 		return super.f(weights);
 	}
 
+	/**
+	 * The penalty of the new weight is added, the penalty of the fixed 
+	 * weights is a constant and is left out.
+	 */
+	@Override
+	public DifferentiableFunction candidate(Formula formula, double[] weights) {
+		DifferentiableFunction candidate = this.score.candidate(formula, weights);
+		int index = weights.length;
+		boolean penalized = index >= this.getStart() && index < this.getEnd();
+		return new L1RegularizedFunction(candidate).setConstantWeight(penalized ? this.getWeight() : 0);
+	}
+
 	@Override
 	public Score copy() {
 		Score copy = this.score.copy();
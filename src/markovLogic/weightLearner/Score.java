@@ -20,6 +20,18 @@ public interface Score extends DifferentiableFunction {
 	
 	public double getScore(double[] weights);
 	
+	/**
+	 * <p>The score of the current formulas plus <code>formula</code> as a 
+	 * function of the weight of <code>formula</code>, with the weights of 
+	 * the current formulas fixed in <code>weights</code>. This score is 
+	 * not modified.</p>
+	 * 
+	 * <p>Used to screen candidates and to start the learning of the weights 
+	 * with them.</p>
+	 * @return a function with one argument, the weight of formula
+	 */
+	public DifferentiableFunction candidate(Formula formula, double[] weights);
+	
 	public Score copy();
 	
 	public List<Formula> getFormulas();
@@ -1,7 +1,9 @@
 package markovLogic.weightLearner;
 
+import java.util.Arrays;
 import java.util.List;
 
+import math.DifferentiableFunction;
 import math.OptimizationException;
 import math.Optimizer;
 import fol.Formula;
@@ -42,6 +44,24 @@ public class WeightLearner {
 		return this.optmizer.max(initialWeights, this.score);
 	}
 
+	/**
+	 * Learns the weight of formula as if it were added to the formulas, with 
+	 * the weights of the other formulas fixed, see {@link Score#candidate}. 
+	 * Only the groundings of formula are evaluated, the result is a good 
+	 * starting point to {@link #learn} after adding formula. The values 
+	 * returned by {@link #score()} and {@link #weights()} are not changed.
+	 * 
+	 * @param weights the weights of the current formulas
+	 * @return weights followed by the weight learned for formula
+	 */
+	public double[] learnCandidate(double[] weights, Formula formula) throws OptimizationException {
+		DifferentiableFunction candidate = this.score.candidate(formula, weights);
+		double[] w = this.optmizer.copy().max(new double[1], candidate);
+		double[] out = Arrays.copyOf(weights, weights.length + 1);
+		out[weights.length] = w[0];
+		return out;
+	}
+
 	public boolean removeFormula(Formula f) {
 		return this.score.removeFormula(f);
 	}
@@ -2,138 +2,334 @@ package markovLogic.weightLearner.wpll;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import fol.Atom;
+import fol.Clause;
+import fol.CompiledFormula;
 import fol.Constant;
 import fol.Formula;
 import fol.Predicate;
 import fol.Variable;
 import fol.database.BinaryDB;
+import fol.database.BinaryOverlay;
+import fol.database.ClauseCounter;
 import fol.database.RealDB;
+import fol.database.RealOverlay;
 import fol.database.Groundings;
 
+/**
+ * <p>Counts of formulas for the pseudo-likelihood, computed once and 
+ * shared by all the threads.</p>
+ * 
+ * <p>The counts of each formula and predicate are kept in an entry, 
+ * created atomically with <code>putIfAbsent</code>. An entry grows when 
+ * a larger sample is asked: only the new groundings are counted, while 
+ * the threads that need the same counts wait for them. The computed 
+ * counts are published as immutable lists, smaller samples are read 
+ * without locking. A {@link CountsGenerator} claims the groundings it 
+ * counts, the threads that need them wait as well.</p>
+ * 
+ * <p>The memory of the entries is bounded by a budget of bytes, estimated 
+ * from the number of counts. Over the budget the entries are evicted by 
+ * GreedyDual-Size, a LRU weighted by cost: each entry has priority 
+ * <code>L + cost/bytes</code>, with cost the time spent counting it, set 
+ * again at each access, the entry with smaller priority is evicted and 
+ * <code>L</code> becomes its priority. Entries of pinned formulas are 
+ * never evicted.</p>
+ * 
+ * <p>With a {@link CountStore} the samples and the counts are also saved 
+ * on disk: a later cache over the same database starts from the stored 
+ * sample and reads the stored counts instead of counting them again, 
+ * also after an entry was evicted.</p>
+ */
 public class CountCache {
 	
 	private final boolean binary;
 	private final BinaryDB bdb;
 	private final RealDB rdb;
-	private final ConcurrentHashMap<Formula, CountCache.CountData> cache;
-	private final ConcurrentHashMap<Predicate, List<Atom>> groundings;
+	private final ClauseCounter counter;
+	private final ConcurrentHashMap<Key, Entry> cache;
+	private final ConcurrentHashMap<Predicate, Sample> groundings;
+	private final CountStore store; // may be null
 	
+	private static final long COUNT_BYTES = 64;  // a Count and its reference
+	private static final long ENTRY_BYTES = 160; // an entry, its key and list
+	
+	private final long budget;
+	private final Map<Formula, Integer> pinned; // guarded by this
+	private long used;                          // guarded by this
+	private volatile double inflation;          // L, written holding this
+	
+	/**
+	 * Uses a quarter of the maximum heap size.
+	 */
 	public CountCache(RealDB db) {
+		this(db, Runtime.getRuntime().maxMemory() / 4);
+	}
+	
+	/**
+	 * Uses a quarter of the maximum heap size.
+	 */
+	public CountCache(BinaryDB db) {
+		this(db, Runtime.getRuntime().maxMemory() / 4);
+	}
+	
+	/**
+	 * @param budget bytes of memory of the counts
+	 */
+	public CountCache(RealDB db, long budget) {
+		this(db, budget, null);
+	}
+	
+	/**
+	 * @param budget bytes of memory of the counts
+	 * @param store counts saved on disk for db, may be null
+	 */
+	public CountCache(RealDB db, long budget, CountStore store) {
+		this.budget = budget;
+		this.store = store;
+		this.pinned = new HashMap<Formula, Integer>();
 		this.binary = false;
 		this.bdb = null;
 		this.rdb = db;
-		this.cache = new ConcurrentHashMap<Formula, CountCache.CountData>();
-		this.groundings = new ConcurrentHashMap<Predicate, List<Atom>>();
+		this.counter = null;
+		this.cache = new ConcurrentHashMap<Key, Entry>();
+		this.groundings = new ConcurrentHashMap<Predicate, Sample>();
 	}
 	
-	public CountCache(BinaryDB db) {
+	/**
+	 * @param budget bytes of memory of the counts
+	 */
+	public CountCache(BinaryDB db, long budget) {
+		this(db, budget, null);
+	}
+	
+	/**
+	 * @param budget bytes of memory of the counts
+	 * @param store counts saved on disk for db, may be null
+	 */
+	public CountCache(BinaryDB db, long budget, CountStore store) {
+		this.budget = budget;
+		this.store = store;
+		this.pinned = new HashMap<Formula, Integer>();
 		this.binary = true;
 		this.bdb = db;
 		this.rdb = null;
-		this.cache = new ConcurrentHashMap<Formula, CountCache.CountData>();
-		this.groundings = new ConcurrentHashMap<Predicate, List<Atom>>();
+		this.counter = new ClauseCounter(db);
+		this.cache = new ConcurrentHashMap<Key, Entry>();
+		this.groundings = new ConcurrentHashMap<Predicate, Sample>();
 	}
 	
+	/**
+	 * @return the counts of formula for the first <code>sampleSize</code> 
+	 * sampled groundings of each of its predicates
+	 */
 	public List<Count> getCounts(Formula formula, int sampleSize) {
-		CountData data = this.cache.get(formula);
-		if (data == null) {
-			data = new CountData(formula);
-			this.cache.put(formula, data);
-		}
-		
-		Set<Predicate> predicates = data.counts.keySet();
+		Set<Predicate> predicates = formula.getPredicates();
 		List<Count> counts = new ArrayList<Count>(predicates.size()*sampleSize);
 		for (Predicate p : predicates) {
 			if (p == Predicate.EQUALS) continue;
-			this.updateCache(p, data, formula, sampleSize);
-			List<Count> pCounts = data.counts.get(p);
-			for (int i = 0; i < Math.min(sampleSize,pCounts.size()); i++) {
-				counts.add(pCounts.get(i));
-			}
+			counts.addAll(this.getCounts(formula, p, sampleSize));
 		}
-		data.samples = sampleSize;
 		return counts;
 	}
+	
+	/**
+	 * @return the counts of formula for the first <code>sampleSize</code> 
+	 * sampled groundings of predicate p, unmodifiable
+	 */
+	public List<Count> getCounts(Formula formula, Predicate p, int sampleSize) {
+		return this.entry(formula, p).get(Math.min(p.totalGroundings(), sampleSize));
+	}
+	
+	private Entry entry(Formula formula, Predicate p) {
+		Key key = new Key(formula, p);
+		Entry entry = this.cache.get(key);
+		if (entry == null) {
+			Entry created = new Entry(key);
+			entry = this.cache.putIfAbsent(key, created);
+			if (entry == null) entry = created;
+		}
+		return entry;
+	}
+	
+	/**
+	 * Reads the stored counts of formula for the first 
+	 * <code>samples</code> groundings of p and claims the groundings 
+	 * left, to be counted by the caller and given to 
+	 * {@link #put(Formula, Predicate, int, List, long)}. Until then the 
+	 * threads that need them wait.
+	 * @return the first grounding to count, <code>samples</code> if 
+	 * there is none or they are claimed already
+	 * @see #release(Formula, Predicate)
+	 */
+	int claim(Formula formula, Predicate p, int samples) {
+		return this.entry(formula, p).claim(samples);
+	}
+	
+	/**
+	 * Gives up the claim of the groundings of formula and p that were 
+	 * not put, the threads that wait for them count them.
+	 */
+	void release(Formula formula, Predicate p) {
+		this.entry(formula, p).release();
+	}
+	
+	/**
+	 * @return the counts of formula for the groundings 
+	 * <code>from .. to-1</code> of p, not cached
+	 * @see #put(Formula, Predicate, int, List, long)
+	 */
+	List<Count> count(Formula formula, Predicate p, int from, int to) {
+		List<Count> counts = new ArrayList<Count>(to - from);
+		this.count(p, formula, from, to, counts);
+		return counts;
+	}
+	
+	/**
+	 * Caches the counts of formula for the groundings of p from 
+	 * <code>from</code>, computed in <code>nanos</code> nanoseconds.
+	 */
+	void put(Formula formula, Predicate p, int from, List<Count> counts, long nanos) {
+		this.entry(formula, p).put(from, counts, nanos);
+	}
 
-	private void updateCache(Predicate p, CountData data, Formula formula, int sampleSize) {
-
-		int samples = Math.min(p.totalGroundings(), sampleSize);
-		if (samples > data.samples) {
-			
-			List<Atom> atoms = updateGroundings(p, samples);			
-			RealDB localRDB = this.binary ? null : this.rdb.getLocalCopy();
-			BinaryDB localBDB = this.binary ? this.bdb.getLocalCopy() : null;
-			
-			// target atom and its variables
-			Atom target = this.getAtom(p, formula);
-			Variable[] vars = Arrays.copyOf(target.terms, target.terms.length, Variable[].class);
-			Map<Variable, Constant> groundings = new HashMap<Variable, Constant>();
+	/**
+	 * Appends the stored counts of the groundings from 
+	 * <code>counts.size()</code> up to <code>samples-1</code> of 
+	 * predicate p to counts.
+	 * @return the number of stored counts
+	 */
+	private int read(Predicate p, Formula formula, List<Count> counts, int samples) {
+		if (this.store == null) return 0;
+		double[] stored = this.store.getCounts(formula, p);
+		int n = Math.min(stored.length / 3, samples);
+		if (counts.size() >= n) return stored.length / 3;
+		List<Atom> atoms = this.getGroundings(p, n);
+		for (int i = counts.size(); i < n; i++) {
+			counts.add(new Count(atoms.get(i), formula, stored[3*i], stored[3*i+1], stored[3*i+2]));
+		}
+		return stored.length / 3;
+	}
+	
+	/**
+	 * Counts the groundings <code>from .. to-1</code> of predicate p 
+	 * and appends them to counts.
+	 */
+	private void count(Predicate p, Formula formula, int from, int to, List<Count> counts) {
+		if (from >= to) return;
+		List<Atom> atoms = this.getGroundings(p, to);			
+		// scratch worlds, each grounded atom is changed and reset
+		RealOverlay localRDB = this.binary ? null : new RealOverlay(this.rdb);
+		BinaryOverlay localBDB = this.binary ? new BinaryOverlay(this.bdb) : null;
+		
+		// target atom and its variables
+		Atom target = this.getAtom(p, formula);
+		Variable[] vars = Arrays.copyOf(target.terms, target.terms.length, Variable[].class);
+		Map<Variable, Constant> groundings = new HashMap<Variable, Constant>();
+		
+		// a formula grounded by the target atom is compiled once for all the samples
+		List<Variable> variables = new ArrayList<Variable>(new LinkedHashSet<Variable>(Arrays.asList(vars)));
+		CompiledFormula compiled = variables.containsAll(formula.getVariables()) ? 
+				new CompiledFormula(formula, variables) : null;
+		int[] bindings = new int[variables.size()];
+		
+		// add formula counts for more samples (groundings)
+		for (int i = from; i < to; i++) {
 			
-			// list to be updated
-			List<Count> counts = data.counts.get(p);
+			// grounds atoms and formula
+			Atom groundedAtom = atoms.get(i);
+			for (int j = 0; j < vars.length; j++) {
+				Variable v = vars[j];
+				Constant c = (Constant) groundedAtom.terms[j];
+				groundings.put(v, c);
+			}
+			Formula grounded = bind(compiled, groundings, bindings) ? null : formula.ground(groundings);
 			
-			// add formula counts for more samples (groundings)
-			for (int i = data.samples; i < samples; i++) {
-				
-				// grounds atoms and formula
-				Atom groundedAtom = atoms.get(i);
-				for (int j = 0; j < vars.length; j++) {
-					Variable v = vars[j];
-					Constant c = (Constant) groundedAtom.terms[j];
-					groundings.put(v, c);
-				}
-				Formula grounded = formula.ground(groundings);
+			if (this.binary) {
+				// make counts
+				boolean value = this.bdb.valueOf(groundedAtom);
+				localBDB.flip(groundedAtom);
+				double trueCount = this.trueCount(grounded, compiled, bindings, value ? this.bdb : localBDB);
+				double falseCount = this.trueCount(grounded, compiled, bindings, value ? localBDB : this.bdb);
+				localBDB.reset();
+				double count = value ? trueCount : falseCount;
 				
-				if (this.binary) {
-					// make counts
-					boolean value = this.bdb.valueOf(groundedAtom);
-					localBDB.flip(groundedAtom);
-					double trueCount = grounded.trueCount(value ? this.bdb : localBDB);
-					double falseCount = grounded.trueCount(value ? localBDB : this.bdb);
-					localBDB.flip(groundedAtom);
-					double count = value ? trueCount : falseCount;
-					
-					// add to cache
-					counts.add(new Count(groundedAtom, formula, falseCount, trueCount, count));
-				} else {
-					// make counts
-					double value = this.rdb.valueOf(groundedAtom);
-					localRDB.set(groundedAtom, 1.0d);
-					double trueCount = grounded.trueCount(localRDB);
-					localRDB.set(groundedAtom, 0.0d);
-					double falseCount = grounded.trueCount(localRDB);
-					localRDB.set(groundedAtom, value);
-					double count = value*(trueCount-falseCount) + falseCount;
+				// add to cache
+				counts.add(new Count(groundedAtom, formula, falseCount, trueCount, count));
+			} else {
+				// make counts
+				double value = this.rdb.valueOf(groundedAtom);
+				localRDB.set(groundedAtom, 1.0d);
+				double trueCount = trueCount(grounded, compiled, bindings, localRDB);
+				localRDB.set(groundedAtom, 0.0d);
+				double falseCount = trueCount(grounded, compiled, bindings, localRDB);
+				localRDB.reset();
+				double count = value*(trueCount-falseCount) + falseCount;
 
-					// add to cache
-					counts.add(new Count(groundedAtom, formula, falseCount, trueCount, count));
-				}
+				// add to cache
+				counts.add(new Count(groundedAtom, formula, falseCount, trueCount, count));
 			}
-			
 		}
 	}
 	
-	private List<Atom> updateGroundings(Predicate p, int samples) {
-		List<Atom> atoms = this.groundings.get(p);
-		if (atoms == null) {
-			atoms = new ArrayList<Atom>();
-			this.groundings.put(p, atoms);
+	/**
+	 * Sets the bindings of compiled to the ids of the constants in 
+	 * groundings.
+	 * @return false if compiled is null or some constant is not in the 
+	 * Domain of its Variable, then the formula is grounded instead
+	 */
+	private static boolean bind(CompiledFormula compiled, Map<Variable, Constant> groundings, int[] bindings) {
+		if (compiled == null) return false;
+		List<Variable> variables = compiled.getVariables();
+		for (int i = 0; i < bindings.length; i++) {
+			Variable v = variables.get(i);
+			bindings[i] = v.getDomain().indexOf(groundings.get(v));
+			if (bindings[i] < 0) return false;
 		}
-		if (samples > atoms.size()) {
-			Iterator<Atom> iterator = Groundings.iterator(p);
-			for (int i = atoms.size(); i < samples; i++) {
-				atoms.add(iterator.next());
-			}
+		return true;
+	}
+	
+	/**
+	 * Clauses are counted exactly, reusing the true tuples indexed by 
+	 * the counter. A null grounded formula is the compiled formula with 
+	 * the given bindings.
+	 */
+	private double trueCount(Formula grounded, CompiledFormula compiled, int[] bindings, BinaryDB db) {
+		if (grounded == null) {
+			return compiled.getValue(db, bindings) ? 1.0d : 0.0d;
+		}
+		if (grounded instanceof Clause) {
+			return this.counter.trueCount((Clause) grounded, db);
 		}
-		return atoms;
+		return grounded.trueCount(db);
+	}
+	
+	private static double trueCount(Formula grounded, CompiledFormula compiled, int[] bindings, RealDB db) {
+		if (grounded == null) return compiled.getValue(db, bindings);
+		return grounded.trueCount(db);
+	}
+	
+	/**
+	 * @return the first <code>samples</code> sampled groundings of p, the 
+	 * same for all formulas
+	 */
+	private List<Atom> getGroundings(Predicate p, int samples) {
+		Sample sample = this.groundings.get(p);
+		if (sample == null) {
+			Sample created = new Sample(p, this.store);
+			sample = this.groundings.putIfAbsent(p, created);
+			if (sample == null) sample = created;
+		}
+		return sample.get(samples);
 	}
 	
 	private Atom getAtom(Predicate p, Formula formula) {
@@ -145,26 +341,254 @@ public class CountCache {
 		throw new RuntimeException();
 	}
 	
-	public void clear() {
-		this.cache.clear();
+	/**
+	 * The counts of formula are kept until it is unpinned as many 
+	 * times as it was pinned.
+	 */
+	public synchronized void pin(Formula formula) {
+		Integer pins = this.pinned.get(formula);
+		this.pinned.put(formula, Integer.valueOf(pins == null ? 1 : pins.intValue() + 1));
 	}
 	
+	public synchronized void unpin(Formula formula) {
+		Integer pins = this.pinned.get(formula);
+		if (pins == null) return;
+		if (pins.intValue() == 1) {
+			this.pinned.remove(formula);
+		} else {
+			this.pinned.put(formula, Integer.valueOf(pins.intValue() - 1));
+		}
+	}
+	
+	/**
+	 * @return the estimated bytes used by the counts
+	 */
+	public synchronized long getUsedBytes() {
+		return this.used;
+	}
+	
+	public long getBudget() {
+		return this.budget;
+	}
+	
+	/**
+	 * Accounts the counts just added to entry and evicts entries 
+	 * while over the budget.
+	 */
+	private synchronized void added(Entry entry, int counts, long nanos) {
+		if (entry.removed) return;
+		long bytes = counts*COUNT_BYTES + (entry.bytes == 0 ? ENTRY_BYTES : 0);
+		entry.bytes += bytes;
+		entry.cost += nanos;
+		entry.touch();
+		this.used += bytes;
+		
+		while (this.used > this.budget) {
+			Entry victim = null;
+			for (Entry e : this.cache.values()) {
+				if (e == entry || e.removed || this.pinned.containsKey(e.formula)) continue;
+				if (victim == null || e.priority < victim.priority) victim = e;
+			}
+			if (victim == null) return;
+			this.remove(victim);
+			this.inflation = victim.priority;
+		}
+	}
+	
+	private void remove(Entry entry) {
+		this.cache.remove(entry.key, entry);
+		entry.removed = true;
+		this.used -= entry.bytes;
+	}
+	
+	public synchronized void clear() {
+		for (Entry e : this.cache.values()) {
+			this.remove(e);
+		}
+		this.inflation = 0;
+	}
+	
+	private static final class Key {
+		
+		final Formula formula;
+		final Predicate predicate;
+		
+		Key(Formula formula, Predicate predicate) {
+			this.formula = formula;
+			this.predicate = predicate;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31*this.formula.hashCode() + this.predicate.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key o = (Key) obj;
+			return this.predicate == o.predicate && this.formula.equals(o.formula);
+		}
+		
+	}
 
-	private static final class CountData {
+	/**
+	 * The counts of a formula for the groundings of a predicate.
+	 */
+	private final class Entry {
+		
+		private final Key key;
+		private final Formula formula;
+		private final Predicate predicate;
+		private volatile List<Count> counts; // never modified once published
+		private int claimed; // groundings being counted by a generator, guarded by this
 		
-		final Map<Predicate, List<Count>> counts;
-		int samples;
+		// guarded by the cache
+		private long bytes;
+		private long cost;
+		private boolean removed;
+		private volatile double priority;
 		
-		public CountData(Formula formula) {
-			this.counts = new HashMap<Predicate, List<Count>>();
-			this.samples = 0;
-			Set<Predicate> predicates = formula.getPredicates();
-			for (Predicate p : predicates) {
-				this.counts.put(p, new ArrayList<Count>());
+		Entry(Key key) {
+			this.key = key;
+			this.formula = key.formula;
+			this.predicate = key.predicate;
+			this.counts = Collections.emptyList();
+		}
+		
+		List<Count> get(int samples) {
+			List<Count> counts = this.counts;
+			if (counts.size() < samples) {
+				synchronized (this) {
+					while (this.claimed > this.counts.size() && this.counts.size() < samples) {
+						try {
+							this.wait();
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+					}
+					counts = this.counts;
+					if (counts.size() < samples) {
+						long start = System.nanoTime();
+						List<Count> extended = new ArrayList<Count>(samples);
+						extended.addAll(counts);
+						int stored = read(this.predicate, this.formula, extended, samples);
+						count(this.predicate, this.formula, extended.size(), samples, extended);
+						if (store != null && extended.size() > stored) {
+							store.putCounts(this.formula, this.predicate, extended);
+						}
+						this.counts = Collections.unmodifiableList(extended);
+						added(this, samples - counts.size(), System.nanoTime() - start);
+						counts = this.counts;
+					}
+				}
+			} else {
+				this.touch();
 			}
+			return counts.size() == samples ? counts : counts.subList(0, samples);
 		}
-
+		
+		/**
+		 * Reads the stored counts up to <code>samples</code> and claims 
+		 * the groundings left.
+		 * @return the first grounding to count, or <code>samples</code>
+		 */
+		synchronized int claim(int samples) {
+			List<Count> counts = this.counts;
+			if (counts.size() >= samples || this.claimed > counts.size()) return samples;
+			if (store != null) {
+				List<Count> extended = new ArrayList<Count>(counts);
+				read(this.predicate, this.formula, extended, samples);
+				if (extended.size() > counts.size()) {
+					this.counts = Collections.unmodifiableList(extended);
+					added(this, extended.size() - counts.size(), 0);
+					counts = this.counts;
+				}
+			}
+			if (counts.size() >= samples) return samples;
+			this.claimed = samples;
+			return counts.size();
+		}
+		
+		synchronized void release() {
+			this.claimed = 0;
+			this.notifyAll();
+		}
+		
+		/**
+		 * Appends the counts of the groundings from <code>from</code>, 
+		 * those not counted meanwhile by another thread.
+		 */
+		synchronized void put(int from, List<Count> more, long nanos) {
+			this.claimed = 0;
+			this.notifyAll();
+			List<Count> counts = this.counts;
+			int size = counts.size();
+			if (from > size || from + more.size() <= size) return;
+			List<Count> extended = new ArrayList<Count>(from + more.size());
+			extended.addAll(counts);
+			extended.addAll(more.subList(size - from, more.size()));
+			this.counts = Collections.unmodifiableList(extended);
+			if (store != null) store.putCounts(this.formula, this.predicate, extended);
+			added(this, extended.size() - size, nanos);
+		}
+		
+		/**
+		 * Updates the priority on access, the race with the eviction 
+		 * only delays or anticipates it.
+		 */
+		void touch() {
+			long bytes = this.bytes;
+			if (bytes > 0) this.priority = inflation + ((double) this.cost) / bytes;
+		}
+		
+	}
+	
+	/**
+	 * The sampled groundings of a predicate, starting with the stored 
+	 * ones. When the groundings are enumerated exactly, the stored ones 
+	 * are skipped.
+	 */
+	private static final class Sample {
+		
+		private final Predicate predicate;
+		private final CountStore store;
+		private Groundings<Atom> iterator;
+		private Set<Atom> stored; // skipped by an exact iterator, or null
+		private volatile List<Atom> atoms; // never modified once published
+		
+		Sample(Predicate predicate, CountStore store) {
+			this.predicate = predicate;
+			this.store = store;
+			this.atoms = store == null ? Collections.<Atom>emptyList() : store.getSample(predicate);
+		}
+		
+		List<Atom> get(int samples) {
+			List<Atom> atoms = this.atoms;
+			if (atoms.size() < samples) {
+				synchronized (this) {
+					atoms = this.atoms;
+					if (atoms.size() < samples) {
+						if (this.iterator == null) {
+							this.iterator = Groundings.iterator(this.predicate);
+							if (this.iterator.isExact() && !atoms.isEmpty()) this.stored = new HashSet<Atom>(atoms);
+						}
+						List<Atom> extended = new ArrayList<Atom>(samples);
+						extended.addAll(atoms);
+						while (extended.size() < samples) {
+							Atom a = this.iterator.next();
+							if (this.stored == null || !this.stored.contains(a)) extended.add(a);
+						}
+						atoms = Collections.unmodifiableList(extended);
+						this.atoms = atoms;
+						if (this.store != null) this.store.putSample(this.predicate, atoms);
+					}
+				}
+			}
+			return atoms;
+		}
+		
 	}
-
 
 }
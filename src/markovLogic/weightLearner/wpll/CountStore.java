@@ -0,0 +1,413 @@
+package markovLogic.weightLearner.wpll;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fol.Atom;
+import fol.Constant;
+import fol.Domain;
+import fol.Formula;
+import fol.Predicate;
+import fol.database.BinaryDB;
+import fol.database.RealDB;
+import fol.database.RealDatabase;
+
+/**
+ * <p>Counts saved on disk, to be reused by later runs over the same
+ * database. See {@link CountCache#CountCache(BinaryDB, long, CountStore)}.</p>
+ *
+ * <p>The store is an append-only file named by a fingerprint of the
+ * database: the predicates, the constants of their domains and the
+ * groundings with a value other than false. A database with different
+ * contents has another fingerprint and does not see the counts of this
+ * one. The values of a record are read from the file when used.</p>
+ *
+ * <p>The file has a sequence of records, each with a type, a key,
+ * <code>n</code> and the bytes of each value, followed by the 
+ * values:</p>
+ * <ul>
+ * <li>the sampled groundings of a predicate, keyed by the predicate,
+ * each grounding as the ids of its constants;</li>
+ * <li>the counts of a formula for the sampled groundings of a predicate,
+ * keyed by the predicate and the formula, in the canonical form given
+ * by <code>toString()</code> (the literals of a Clause are sorted), each
+ * count as the false count, the true count and the count.</li>
+ * </ul>
+ * <p>When a sample grows the whole record is appended again, the
+ * longest record of each key is used. A record cut by a crash is
+ * discarded when the file is opened.</p>
+ *
+ * <p>The store is open until {@link #close()}, whoever opens it closes
+ * it: a {@link CountCache} does not.</p>
+ */
+public class CountStore implements Closeable {
+
+	private static final int MAGIC = 0x4D4C4E43; // MLNC
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+	private static final byte SAMPLE = 'S';
+	private static final byte COUNTS = 'C';
+
+	private final String fingerprint;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Map<String, Record> index;
+	private long size;
+
+	private CountStore(File file, String fingerprint) throws IOException {
+		this.fingerprint = fingerprint;
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.index = new HashMap<String, Record>();
+		this.size = this.channel.size();
+		if (this.size < HEADER) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			this.channel.truncate(0);
+			this.channel.write(header, 0);
+			this.size = HEADER;
+		}
+		ByteBuffer header = this.read(0, HEADER);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			this.file.close();
+			throw new IOException("Not a count store: " + file);
+		}
+		this.load();
+	}
+
+	/**
+	 * Opens or creates the store of db in directory.
+	 * @param predicates the predicates of db
+	 */
+	public static CountStore open(File directory, Collection<Predicate> predicates, BinaryDB db) throws IOException {
+		return open(directory, fingerprint(predicates, db, null));
+	}
+
+	/**
+	 * Opens or creates the store of db in directory.
+	 * @param predicates the predicates of db
+	 */
+	public static CountStore open(File directory, Collection<Predicate> predicates, RealDB db) throws IOException {
+		return open(directory, fingerprint(predicates, null, db));
+	}
+
+	private static CountStore open(File directory, String fingerprint) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory);
+		}
+		return new CountStore(new File(directory, "counts-" + fingerprint + ".bin"), fingerprint);
+	}
+
+	/**
+	 * Indexes the records, truncating the file after the last
+	 * complete one.
+	 */
+	private void load() throws IOException {
+		long position = HEADER;
+		while (position < this.size) {
+			try {
+				ByteBuffer buffer = this.read(position, 3);
+				buffer.get(); // type, also the first char of the key
+				int length = buffer.getShort() & 0xFFFF;
+				buffer = this.read(position + 3, length + 8);
+				byte[] key = new byte[length];
+				buffer.get(key);
+				int n = buffer.getInt();
+				int width = buffer.getInt();
+				long offset = position + 3 + length + 8;
+				long end = offset + ((long) n) * width;
+				if (n < 0 || width < 0 || ((long) n) * width > Integer.MAX_VALUE || end > this.size) break;
+				this.put(new String(key, "UTF-8"), new Record(offset, n, width));
+				position = end;
+			} catch (EOFException e) {
+				break; // cut record
+			}
+		}
+		if (position < this.size) {
+			this.channel.truncate(position);
+			this.size = position;
+		}
+	}
+
+	/**
+	 * @return the length bytes at position, read from the file
+	 * @throws EOFException if the file ends before
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void put(String key, Record record) {
+		Record old = this.index.get(key);
+		if (old == null || old.n < record.n) this.index.put(key, record);
+	}
+
+	private static String key(Predicate p) {
+		return (char) SAMPLE + "\t" + p;
+	}
+
+	private static String key(Formula formula, Predicate p) {
+		return (char) COUNTS + "\t" + p + "\t" + formula;
+	}
+
+	public String getFingerprint() {
+		return this.fingerprint;
+	}
+
+	/**
+	 * @return the stored sample of groundings of p, empty if there is none
+	 */
+	public synchronized List<Atom> getSample(Predicate p) {
+		Record record = this.channel.isOpen() ? this.index.get(key(p)) : null;
+		int arity = p.getDomains().size();
+		if (record == null || record.width != 4*arity) return Collections.emptyList();
+		ByteBuffer values = this.values(record);
+		int[] constants = new int[arity];
+		List<Atom> atoms = new ArrayList<Atom>(record.n);
+		for (int i = 0; i < record.n; i++) {
+			for (int j = 0; j < arity; j++) {
+				constants[j] = values.getInt(4*(i*arity + j));
+			}
+			atoms.add(p.getAtomTable().atom(constants));
+		}
+		return atoms;
+	}
+
+	/**
+	 * Saves the sample of groundings of p, if it is longer than the
+	 * stored one.
+	 */
+	public synchronized void putSample(Predicate p, List<Atom> atoms) {
+		String key = key(p);
+		Record record = this.index.get(key);
+		if (!this.channel.isOpen() || (record != null && record.n >= atoms.size())) return;
+		try {
+			List<Domain> domains = p.getDomains();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int header = this.header(out, SAMPLE, key, atoms.size(), 4*domains.size());
+			for (Atom a : atoms) {
+				for (int j = 0; j < domains.size(); j++) {
+					out.writeInt(domains.get(j).indexOf((Constant) a.terms[j]));
+				}
+			}
+			out.flush();
+			this.append(key, bytes.toByteArray(), header, atoms.size(), 4*domains.size());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the stored counts of formula for the sample of p,
+	 * <code>false count, true count, count</code> for each grounding,
+	 * or an empty array
+	 */
+	public synchronized double[] getCounts(Formula formula, Predicate p) {
+		Record record = this.channel.isOpen() ? this.index.get(key(formula, p)) : null;
+		if (record == null || record.width != 24) return new double[0];
+		ByteBuffer values = this.values(record);
+		double[] counts = new double[3*record.n];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = values.getDouble(8*i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Saves the counts of formula for the sample of p, if there are more
+	 * than the stored ones.
+	 */
+	public synchronized void putCounts(Formula formula, Predicate p, List<Count> counts) {
+		String key = key(formula, p);
+		Record record = this.index.get(key);
+		if (!this.channel.isOpen() || (record != null && record.n >= counts.size())) return;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int header = this.header(out, COUNTS, key, counts.size(), 24);
+			for (Count c : counts) {
+				out.writeDouble(c.getFalseCount());
+				out.writeDouble(c.getTrueCount());
+				out.writeDouble(c.getCount());
+			}
+			out.flush();
+			this.append(key, bytes.toByteArray(), header, counts.size(), 24);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the length of the header
+	 */
+	private int header(DataOutputStream out, byte type, String key, int n, int width) throws IOException {
+		byte[] bytes = key.getBytes("UTF-8");
+		if (bytes.length > 0xFFFF) throw new IOException("Key too long: " + key);
+		out.writeByte(type);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+		out.writeInt(n);
+		out.writeInt(width);
+		return 1 + 2 + bytes.length + 4 + 4;
+	}
+
+	private void append(String key, byte[] bytes, int header, int n, int width) throws IOException {
+		if (((long) n) * width > Integer.MAX_VALUE) throw new IOException("Record too long: " + key);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long position = this.size;
+		while (buffer.hasRemaining()) {
+			position += this.channel.write(buffer, position);
+		}
+		this.put(key, new Record(this.size + header, n, width));
+		this.size = position;
+	}
+
+	/**
+	 * @return the values of record, read from the file. Records are 
+	 * small, a mapping for each would be kept until garbage collected.
+	 */
+	private ByteBuffer values(Record record) {
+		try {
+			return this.read(record.offset, record.n*record.width);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Closes the file. A closed store has no counts and saves none.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!this.channel.isOpen()) return;
+		this.channel.force(false);
+		this.file.close();
+	}
+
+	/**
+	 * @return a SHA-1 hash of the predicates, their domains and the
+	 * values of the groundings other than false, in hexadecimal
+	 */
+	private static String fingerprint(Collection<Predicate> predicates, BinaryDB bdb, RealDB rdb) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		List<Predicate> sorted = new ArrayList<Predicate>(predicates);
+		Collections.sort(sorted);
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		Map<Predicate, List<Atom>> atoms = new HashMap<Predicate, List<Atom>>();
+		Map<Atom, Double> values = null;
+		if (rdb != null) {
+			// the groundings with a value, grouped by predicate
+			values = RealDatabase.getValues(rdb);
+			for (Map.Entry<Atom, Double> e : values.entrySet()) {
+				if (e.getValue().doubleValue() == 0.0d) continue;
+				List<Atom> list = atoms.get(e.getKey().predicate);
+				if (list == null) {
+					list = new ArrayList<Atom>();
+					atoms.put(e.getKey().predicate, list);
+				}
+				list.add(e.getKey());
+			}
+		}
+		for (Predicate p : sorted) {
+			if (p == Predicate.EQUALS) continue;
+			update(digest, p.toString());
+			for (Domain d : p.getDomains()) {
+				update(digest, d.toString());
+				for (int i = 0; i < d.size(); i++) {
+					update(digest, d.getConstant(i).toString());
+				}
+			}
+			// the atoms, by their position in the groundings
+			List<Atom> pAtoms = bdb != null ? bdb.getTrueAtoms(p) : atoms.get(p);
+			if (pAtoms == null) pAtoms = Collections.emptyList();
+			long[] indexes = new long[pAtoms.size()];
+			Map<Long, Atom> byIndex = new HashMap<Long, Atom>();
+			for (int i = 0; i < indexes.length; i++) {
+				indexes[i] = index(p, pAtoms.get(i));
+				if (values != null) byIndex.put(Long.valueOf(indexes[i]), pAtoms.get(i));
+			}
+			Arrays.sort(indexes);
+			for (long index : indexes) {
+				buffer.clear();
+				digest.update(buffer.putLong(index).array());
+				if (values != null) {
+					buffer.clear();
+					digest.update(buffer.putDouble(values.get(byIndex.get(Long.valueOf(index)))).array());
+				}
+			}
+			update(digest, "");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		try {
+			digest.update(s.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * @return the position of atom in the groundings of p, mixed radix
+	 * over the sizes of its domains
+	 */
+	private static long index(Predicate p, Atom atom) {
+		List<Domain> domains = p.getDomains();
+		long index = 0;
+		for (int i = 0; i < domains.size(); i++) {
+			Domain d = domains.get(i);
+			index = index*d.size() + d.indexOf((Constant) atom.terms[i]);
+		}
+		return index;
+	}
+
+	private static final class Record {
+
+		final long offset; // of the first value
+		final int n;
+		final int width;  // bytes of each value
+
+		Record(long offset, int n, int width) {
+			this.offset = offset;
+			this.n = n;
+			this.width = width;
+		}
+
+	}
+
+}
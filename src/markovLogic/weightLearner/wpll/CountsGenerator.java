@@ -1,72 +1,271 @@
 package markovLogic.weightLearner.wpll;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import fol.Atom;
 import fol.Formula;
+import fol.Predicate;
 
+/**
+ * <p>Fills the {@link CountCache} with the counts of many formulas in
+ * parallel.</p>
+ *
+ * <p>The counts of each formula and predicate are split in tasks of at
+ * most {@value #CHUNK_SAMPLES} groundings, so a formula over a predicate
+ * with many groundings is counted by many threads. The threads take the
+ * next task from a shared index until there are none left; the last task
+ * of a formula and predicate puts its counts in the cache. The threads
+ * come from a pool shared by all the generators, the calling thread is
+ * one of them. The groundings are claimed in the cache before counting,
+ * so they are counted once, also when other threads need them
+ * meanwhile.</p>
+ *
+ * <p>The time spent in each task of the last call is kept, see
+ * {@link #getTasks()}.</p>
+ */
 public class CountsGenerator {
-	
-	private static final Formula END = Atom.TRUE;
+
+	private static final int CHUNK_SAMPLES = 64; // groundings counted by each task
+	private static ExecutorService pool; // shared by all instances
 
 	private final CountCache cache;
 	private final int samples;
 	private final int threads;
-	
+	private volatile List<Task> tasks;
+
 	public CountsGenerator(CountCache cache, int samples, int threads) {
+		if (threads < 1) throw new IllegalArgumentException("threads: " + threads);
 		this.cache = cache;
 		this.samples = samples;
 		this.threads = threads;
+		this.tasks = Collections.emptyList();
 	}
-	
+
 	public void count(List<? extends Formula> formulas) {
-		BlockingQueue<Formula> queue = new LinkedBlockingQueue<Formula>(formulas);
-		queue.add(END);
-		CountDownLatch done = new CountDownLatch(threads);
-		for (int i = 0; i < threads; i++) {
-			Runnable counter = new Runner(queue, done);
-			Thread thread = new Thread(counter);
-			thread.start();
+		List<Task> tasks = new ArrayList<Task>();
+		List<Group> groups = new ArrayList<Group>();
+		for (Formula formula : formulas) {
+			for (Predicate p : formula.getPredicates()) {
+				if (p == Predicate.EQUALS) continue;
+				int samples = Math.min(p.totalGroundings(), this.samples);
+				int from = this.cache.claim(formula, p, samples);
+				if (from >= samples) continue;
+				int chunks = (samples - from + CHUNK_SAMPLES - 1) / CHUNK_SAMPLES;
+				Group group = new Group(formula, p, from, chunks);
+				groups.add(group);
+				for (int i = 0; i < chunks; i++) {
+					int start = from + i*CHUNK_SAMPLES;
+					tasks.add(new Task(group, i, start, Math.min(start + CHUNK_SAMPLES, samples)));
+				}
+			}
+		}
+
+		int workers = Math.min(this.threads, tasks.size());
+		AtomicInteger next = new AtomicInteger();
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		CountDownLatch done = new CountDownLatch(Math.max(workers - 1, 0));
+		ExecutorService pool = getPool();
+		for (int i = 1; i < workers; i++) {
+			pool.execute(new Worker(tasks, next, error, done));
 		}
+		new Worker(tasks, next, error, null).run();
 		try {
 			done.await();
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			throw new RuntimeException(e);
 		}
-	}
-	
-	private class Runner implements Runnable {
+		this.tasks = Collections.unmodifiableList(tasks);
 		
-		private final BlockingQueue<Formula> queue;
+		Throwable t = error.get();
+		if (t != null) {
+			// the groundings not counted are counted by the threads that need them
+			for (Group group : groups) {
+				if (!group.isPut()) this.cache.release(group.formula, group.predicate);
+			}
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * @return the tasks of the last call to {@link #count(List)}, in
+	 * the order of the formulas
+	 */
+	public List<Task> getTasks() {
+		return this.tasks;
+	}
+
+	/**
+	 * @return the sum of the time spent in the tasks of the last call,
+	 * in nanoseconds
+	 */
+	public long getNanos() {
+		long nanos = 0;
+		for (Task task : this.tasks) nanos += task.nanos;
+		return nanos;
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "counts");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * The tasks of a formula and predicate.
+	 */
+	private final class Group {
+
+		private final Formula formula;
+		private final Predicate predicate;
+		private final int from;
+		private final List<List<Count>> parts;
+		private final AtomicInteger remaining;
+		private final AtomicLong nanos;
+		private volatile boolean put;
+
+		Group(Formula formula, Predicate predicate, int from, int chunks) {
+			this.formula = formula;
+			this.predicate = predicate;
+			this.from = from;
+			this.parts = new ArrayList<List<Count>>(Collections.<List<Count>>nCopies(chunks, null));
+			this.remaining = new AtomicInteger(chunks);
+			this.nanos = new AtomicLong();
+		}
+
+		/**
+		 * Puts the counts in the cache when all the parts are done.
+		 */
+		void done(int part, List<Count> counts, long nanos) {
+			this.parts.set(part, counts);
+			this.nanos.addAndGet(nanos);
+			if (this.remaining.decrementAndGet() > 0) return;
+			List<Count> all = new ArrayList<Count>();
+			for (List<Count> c : this.parts) all.addAll(c);
+			cache.put(this.formula, this.predicate, this.from, all, this.nanos.get());
+			this.put = true;
+		}
+
+		/**
+		 * @return true if the counts were put in the cache
+		 */
+		boolean isPut() {
+			return this.put;
+		}
+
+	}
+
+	/**
+	 * The counts of a formula for a range of groundings of a predicate.
+	 */
+	public final class Task {
+
+		private final Group group;
+		private final int part;
+		private final int from;
+		private final int to;
+		private volatile long nanos;
+
+		Task(Group group, int part, int from, int to) {
+			this.group = group;
+			this.part = part;
+			this.from = from;
+			this.to = to;
+		}
+
+		void run() {
+			long start = System.nanoTime();
+			List<Count> counts = cache.count(this.group.formula, this.group.predicate, this.from, this.to);
+			this.nanos = System.nanoTime() - start;
+			this.group.done(this.part, counts, this.nanos);
+		}
+
+		public Formula getFormula() {
+			return this.group.formula;
+		}
+
+		public Predicate getPredicate() {
+			return this.group.predicate;
+		}
+
+		/**
+		 * @return the first grounding counted
+		 */
+		public int getFrom() {
+			return this.from;
+		}
+
+		/**
+		 * @return the grounding after the last one counted
+		 */
+		public int getTo() {
+			return this.to;
+		}
+
+		/**
+		 * @return the time spent counting, in nanoseconds
+		 */
+		public long getNanos() {
+			return this.nanos;
+		}
+
+		@Override
+		public String toString() {
+			return this.group.formula + " " + this.group.predicate + " [" +
+				this.from + ", " + this.to + "): " + this.nanos/1000 + "us";
+		}
+
+	}
+
+	/**
+	 * Runs the tasks not taken by the other workers. The first error stops
+	 * all the workers and is thrown by {@link CountsGenerator#count(List)}.
+	 */
+	private static final class Worker implements Runnable {
+
+		private final List<Task> tasks;
+		private final AtomicInteger next;
+		private final AtomicReference<Throwable> error;
 		private final CountDownLatch done;
-		
-		public Runner(BlockingQueue<Formula> queue, CountDownLatch done) {
-			this.queue = queue;
+
+		Worker(List<Task> tasks, AtomicInteger next, AtomicReference<Throwable> error, CountDownLatch done) {
+			this.tasks = tasks;
+			this.next = next;
+			this.error = error;
 			this.done = done;
 		}
-		
+
 		@Override
 		public void run() {
 			try {
-				while (true) {
-					Formula formula;
-					formula = this.queue.take();
-					if (formula == END) {
-						this.queue.put(formula);
-						break;
-					}
-					cache.getCounts(formula, samples);
+				int t;
+				while (this.error.get() == null && (t = this.next.getAndIncrement()) < this.tasks.size()) {
+					this.tasks.get(t).run();
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			} catch (Throwable e) {
+				this.error.compareAndSet(null, e);
 			} finally {
-				this.done.countDown();
+				if (this.done != null) this.done.countDown();
 			}
 		}
-		
+
 	}
-	
+
 }
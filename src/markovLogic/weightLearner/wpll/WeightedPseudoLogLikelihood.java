@@ -1,47 +1,76 @@
 package markovLogic.weightLearner.wpll;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import markovLogic.weightLearner.Score;
+import math.TwiceDifferentiableFunction;
 import fol.Atom;
 import fol.Formula;
 import fol.Predicate;
 
+/**
+ * <p>The weighted pseudo-log-likelihood of the formulas, see 
+ * {@link LogConditionalProbability}.</p>
+ * 
+ * <p>The counts are a sparse matrix with a row for each grounding and a 
+ * column for each formula. Each formula keeps its column, that is 
+ * immutable and shared by the copies, and the score is computed over a 
+ * CSR matrix with the rows grouped by predicate, rebuilt lazily when the 
+ * formulas change.</p>
+ */
 public class WeightedPseudoLogLikelihood implements Score {
 	
 	private final List<Formula> formulas;
+	private final List<Column> columns; // column of each formula
 	private final List<Predicate> predicates;
-	private final Map<Atom, List<Count>> countsMap;
+	private final Map<Atom, Integer> rows;
+	private int[] rowPredicate; // predicate index of each row
 	private final CountCache cache;
 	private final int sampleLimit;
 	
 	private final int[] samples;
+	private Matrix matrix; // null when the formulas changed
+	private Base base; // row sums of the last candidate evaluation
+	private int threads;
+	private Partial[] partials; // results of each chunk
 	private double[] grad = new double[0];
+	private double[] predicateGrad = new double[0];
+	
+	private static final int CHUNK_ROWS = 256; // rows evaluated by each task
+	private static ExecutorService pool; // shared by all instances
 	
 	public WeightedPseudoLogLikelihood(Collection<Predicate> predicates, CountCache cache, int sampleLimit) {
-		this.countsMap = new HashMap<Atom, List<Count>>();
+		this.rows = new HashMap<Atom, Integer>();
+		this.rowPredicate = new int[16];
 		this.predicates = new ArrayList<Predicate>(predicates);
 		this.formulas = new LinkedList<Formula>();
+		this.columns = new ArrayList<Column>();
 		this.cache = cache;
 		this.sampleLimit = sampleLimit;
 		this.samples = new int[this.predicates.size()];
 		this.computeSamples();
+		this.threads = 1;
 	}
 
 	@Override
 	public boolean addFormula(Formula formula) {
-		int index = this.formulas.size();
 		List<Count> counts = this.cache.getCounts(formula, this.sampleLimit);
-		for (Count count : counts) {
-			this.store(count, index);
-			
-		}
+		this.columns.add(this.column(counts));
+		this.matrix = null;
 		return this.formulas.add(formula);
 	}
 
@@ -75,10 +104,11 @@ public class WeightedPseudoLogLikelihood implements Score {
 	public WeightedPseudoLogLikelihood copy() {
 		WeightedPseudoLogLikelihood copy = new WeightedPseudoLogLikelihood(this.predicates, this.cache, this.sampleLimit);
 		copy.formulas.addAll(this.formulas);
-		for (Atom key : this.countsMap.keySet()) {
-			List<Count> value = this.countsMap.get(key);
-			copy.countsMap.put(key, new ArrayList<Count>(value));			
-		}
+		copy.columns.addAll(this.columns);
+		copy.rows.putAll(this.rows);
+		copy.rowPredicate = Arrays.copyOf(this.rowPredicate, this.rowPredicate.length);
+		copy.matrix = this.matrix;
+		copy.threads = this.threads;
 		return copy;
 	}
 	
@@ -87,6 +117,10 @@ public class WeightedPseudoLogLikelihood implements Score {
 		return this.getScore(x);
 	}
 
+	/**
+	 * @return the gradient computed by the last call to {@link #f(double[])}, 
+	 * a new array that the caller may modify.
+	 */
 	@Override
 	public double[] g(double[] x) {
 		return this.grad;
@@ -113,45 +147,252 @@ public class WeightedPseudoLogLikelihood implements Score {
 	@Override
 	public double getScore(double[] weights) {
 		this.checkInput(weights);
+		Matrix m = this.getMatrix();
 		
-		double[] predicatePll = new double[this.predicates.size()];
-		double[][] predicateGrad = new double[this.predicates.size()][weights.length];
-		Predicate previous = null;
-		int index = -1;
+		int n = weights.length;
+		int chunks = m.chunkPredicate.length;
+		if (this.predicateGrad.length != n) {
+			this.predicateGrad = new double[n];
+			this.partials = null;
+		} else {
+			// sums left by a call that failed
+			Arrays.fill(this.predicateGrad, 0);
+		}
 		
 		// all the work is done here
-		LogConditionalProbability prob = new LogConditionalProbability(weights);
-		Collection<List<Count>> counts = this.countsMap.values();
-		for (List<Count> count : counts) {
-			// for each grounding, update pll and its gradient
-			DataPll data = prob.evaluate(count);
-			Predicate predicate = data.grounding.predicate;
+		boolean parallel = this.threads > 1 && chunks > 1;
+		Partial[] partials;
+		if (parallel) {
+			partials = this.getPartials(chunks, n);
+			this.evaluate(m, weights, partials);
+		} else {
+			partials = this.getPartials(1, n);
+		}
+		
+		// sums the chunks in order, then applies the weight for each predicate
+		double[] predicateGrad = this.predicateGrad;
+		double[] grad = new double[n];
+		double pll = 0;
+		double predicatePll = 0;
+		for (int c = 0; c < chunks; c++) {
+			Partial partial;
+			if (parallel) {
+				partial = partials[c];
+			} else {
+				partial = partials[0];
+				evaluate(m, weights, c, partial);
+			}
+			predicatePll += partial.pll;
+			for (int j = 0; j < n; j++) {
+				predicateGrad[j] += partial.grad[j];
+			}
+			int p = m.chunkPredicate[c];
+			if (c+1 == chunks || m.chunkPredicate[c+1] != p) {
+				double samples = this.samples[p];
+				pll += predicatePll / samples;
+				for (int j = 0; j < n; j++) {
+					grad[j] += predicateGrad[j] / samples;
+					predicateGrad[j] = 0;
+				}
+				predicatePll = 0;
+			}
+		}
+
+		this.grad = grad;
+		return pll;
+	}
+	
+	private Partial[] getPartials(int size, int n) {
+		if (this.partials == null || this.partials.length != size) {
+			this.partials = new Partial[size];
+			for (int i = 0; i < size; i++) {
+				this.partials[i] = new Partial(n);
+			}
+		}
+		return this.partials;
+	}
+	
+	/**
+	 * Evaluates all the chunks, in this thread and in 
+	 * <code>threads-1</code> threads of the pool. The first error of 
+	 * the workers is thrown here, and the partials are dropped.
+	 */
+	private void evaluate(Matrix m, double[] weights, Partial[] partials) {
+		int workers = Math.min(this.threads, partials.length);
+		AtomicInteger next = new AtomicInteger();
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		CountDownLatch done = new CountDownLatch(workers - 1);
+		ExecutorService pool = getPool();
+		for (int i = 1; i < workers; i++) {
+			pool.execute(new Worker(m, weights, partials, next, error, done));
+		}
+		new Worker(m, weights, partials, next, error, null).run();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			this.partials = null;
+			throw new RuntimeException(e);
+		}
+		
+		Throwable t = error.get();
+		if (t != null) {
+			// some chunks were not evaluated, or only in part
+			this.partials = null;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new RuntimeException(t);
+		}
+	}
+	
+	/**
+	 * Computes the pll and its gradient over the rows of chunk 
+	 * <code>c</code>, without the weight of the predicate.
+	 */
+	private static void evaluate(Matrix m, double[] weights, int c, Partial partial) {
+		double[] grad = partial.grad;
+		Arrays.fill(grad, 0);
+		double pll = 0;
+		for (int r = m.chunkOffsets[c]; r < m.chunkOffsets[c+1]; r++) {
+			int start = m.rowOffsets[r];
+			int end = m.rowOffsets[r+1];
 			
-			if (predicate != previous) {
-				previous = predicate;
-				index = this.predicates.indexOf(predicate);
+			double wx = 0, a = 0, b = 0;
+			for (int i = start; i < end; i++) {
+				double weight = weights[m.columns[i]];
+				wx += weight*m.counts[i];
+				a  += weight*m.trueCounts[i];
+				b  += weight*m.falseCounts[i];
 			}
 			
-			predicatePll[index] += data.pll;
-			for (int i = 0; i < weights.length; i++) {
-				predicateGrad[index][i] += data.grad[i];
+			// exp = e^(abs(a-b)), invexp = exp^-1
+			// if invexp ~ 0, ignore it.
+			boolean ignoreExp = false;
+			double exp = 0, invexp = 0;
+			double diff = Math.abs(a - b);
+			if (Double.compare(diff, 20) > -1) {
+				ignoreExp = true;
+			} else {
+				exp = Math.exp(diff);
+				invexp = Math.exp(-diff);
 			}
+			
+			double groundPll = wx - Math.max(a, b);
+			if (!ignoreExp) groundPll += - Math.log(1+invexp);
+			double multiplicity = m.multiplicity[r];
+			pll += multiplicity*groundPll;
+			
+			// compute the partial derivative with respect to w_i
+			// if a > b then the derivative = 
+			// n_i[x] - n_i[true] + (n_i[true] - n_i[false])/(1+exp)
+			boolean trueGreater = a > b;
+			for (int i = start; i < end; i++) {
+				double x  = m.counts[i];
+				double tc = m.trueCounts[i];
+				double fc = m.falseCounts[i];
+				double d;
+				if (trueGreater) {
+					d = x - tc;
+					if (!ignoreExp) d += (tc-fc)/(exp+1.0);
+				} else {
+					d = x - fc;
+					if (!ignoreExp) d += (fc-tc)/(exp+1.0);
+				}
+				grad[m.columns[i]] += multiplicity*d;
+			}
+		}
+		partial.pll = pll;
+	}
+	
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "wpll");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
+		return pool;
+	}
+	
+	/**
+	 * Sets the number of threads that evaluate the score, 1 by default.
+	 * The result does not depend on the number of threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("threads: " + threads);
+		this.threads = threads;
+	}
+	
+	public int getThreads() {
+		return this.threads;
+	}
+	
+	/**
+	 * <p>The sums of each row for the current weights are kept, so 
+	 * the candidate only evaluates the rows where <code>formula</code> 
+	 * has counts.</p>
+	 * @see Score#candidate(Formula, double[])
+	 */
+	@Override
+	public TwiceDifferentiableFunction candidate(Formula formula, double[] weights) {
+		this.checkInput(weights);
+		Base base = this.getBase(weights);
+		Column column = this.column(this.cache.getCounts(formula, this.sampleLimit));
+		int[] position = base.matrix.position;
 		
-		// applies the weight for each predicate 
-		double[] grad = new double[weights.length];
-		double pll = 0;
-		for (int i = 0; i < this.samples.length; i++) {
-			double samples = this.samples[i];
-			pll += predicatePll[i] / samples;
-			for (int j = 0; j < grad.length; j++) {
-				grad[j] += predicateGrad[i][j] / samples;
+		int size = column.rows.length;
+		double[] samples = new double[size];
+		double[] wx = new double[size];
+		double[] a = new double[size];
+		double[] b = new double[size];
+		double[] pll = new double[size];
+		for (int k = 0; k < size; k++) {
+			int row = column.rows[k];
+			samples[k] = this.samples[this.rowPredicate[row]];
+			int r = row < position.length ? position[row] : -1;
+			if (r >= 0) { // rows without counts are out of the score
+				wx[k] = base.wx[r];
+				a[k] = base.a[r];
+				b[k] = base.b[r];
+				pll[k] = base.pll[r];
 			}
 		}
-
-		this.grad = grad;
+		return new Candidate(base.score, column, samples, wx, a, b, pll);
+	}
+	
+	/**
+	 * @return the row sums for weights, reusing the last ones if possible
+	 */
+	private Base getBase(double[] weights) {
+		Matrix m = this.getMatrix();
+		if (this.base == null || this.base.matrix != m || !Arrays.equals(this.base.weights, weights)) {
+			this.base = new Base(m, weights, this.samples);
+		}
+		return this.base;
+	}
+	
+	/**
+	 * @return the pll of a grounding
+	 */
+	private static double pll(double wx, double a, double b) {
+		double diff = Math.abs(a - b);
+		double pll = wx - Math.max(a, b);
+		if (Double.compare(diff, 20) < 0) pll += - Math.log(1+Math.exp(-diff));
 		return pll;
 	}
+	
+	/**
+	 * @return the CSR matrix of the current formulas, building it if needed
+	 */
+	private Matrix getMatrix() {
+		if (this.matrix == null) {
+			this.matrix = new Matrix(this.columns, this.rowPredicate, this.rows.size(), this.samples.length);
+		}
+		return this.matrix;
+	}
 
 	@Override
 	public int lengthInput() {
@@ -163,15 +404,6 @@ public class WeightedPseudoLogLikelihood implements Score {
 		return this.formulas.size();
 	}
 	
-	private void remove(int index) {
-		for (Atom key : this.countsMap.keySet()) {
-			List<Count> value = this.countsMap.get(key);
-			if (index < value.size()) {
-				value.remove(index);
-			}
-		}
-	}
-	
 	@Override
 	public boolean removeFormula(Formula f) {
 		int i = this.formulas.size();
@@ -180,25 +412,488 @@ public class WeightedPseudoLogLikelihood implements Score {
 			i--;
 			if (iterator.previous().equals(f)) {
 				iterator.remove();
-				this.remove(i);
+				this.columns.remove(i);
+				this.matrix = null;
 				return true;
 			}
 		}
 		return false;
 	}
 	
-	private void store(Count count, int index) {
-		Atom key = count.getAtom();
-		List<Count> counts = this.countsMap.get(key);
-		if (counts == null) {
-			counts = new ArrayList<Count>();
-			this.countsMap.put(key, counts);
+	/**
+	 * The groundings are sampled with replacement, an atom sampled more 
+	 * than once has a single entry.
+	 */
+	private Column column(List<Count> list) {
+		int size = list.size();
+		BitSet seen = new BitSet();
+		int[] rows = new int[size];
+		double[] counts = new double[size];
+		double[] trueCounts = new double[size];
+		double[] falseCounts = new double[size];
+		int k = 0;
+		for (Count count : list) {
+			int row = this.row(count.getAtom());
+			if (row < 0 || seen.get(row)) continue;
+			seen.set(row);
+			rows[k] = row;
+			counts[k] = count.getCount();
+			trueCounts[k] = count.getTrueCount();
+			falseCounts[k] = count.getFalseCount();
+			k++;
+		}
+		return new Column(
+				Arrays.copyOf(rows, k), 
+				Arrays.copyOf(counts, k), 
+				Arrays.copyOf(trueCounts, k), 
+				Arrays.copyOf(falseCounts, k)
+			);
+	}
+	
+	/**
+	 * @return the row of atom, -1 if its predicate is not scored
+	 */
+	private int row(Atom atom) {
+		Integer row = this.rows.get(atom);
+		if (row != null) return row.intValue();
+		int p = this.predicates.indexOf(atom.predicate);
+		if (p < 0) return -1;
+		int index = this.rows.size();
+		if (index == this.rowPredicate.length) {
+			this.rowPredicate = Arrays.copyOf(this.rowPredicate, index << 1);
+		}
+		this.rowPredicate[index] = p;
+		this.rows.put(atom, Integer.valueOf(index));
+		return index;
+	}
+	
+	/**
+	 * The sums of each row of a matrix and the score, for fixed weights.
+	 */
+	private static final class Base {
+		
+		final Matrix matrix;
+		final double[] weights;
+		final double[] wx;
+		final double[] a;
+		final double[] b;
+		final double[] pll;
+		final double score;
+		
+		Base(Matrix m, double[] weights, int[] samples) {
+			this.matrix = m;
+			this.weights = Arrays.copyOf(weights, weights.length);
+			int rows = m.rowOffsets.length - 1;
+			this.wx = new double[rows];
+			this.a = new double[rows];
+			this.b = new double[rows];
+			this.pll = new double[rows];
+			double score = 0;
+			for (int p = 0; p < samples.length; p++) {
+				double predicatePll = 0;
+				for (int r = m.predicateOffsets[p]; r < m.predicateOffsets[p+1]; r++) {
+					double wx = 0, a = 0, b = 0;
+					for (int i = m.rowOffsets[r]; i < m.rowOffsets[r+1]; i++) {
+						double weight = weights[m.columns[i]];
+						wx += weight*m.counts[i];
+						a  += weight*m.trueCounts[i];
+						b  += weight*m.falseCounts[i];
+					}
+					this.wx[r] = wx;
+					this.a[r] = a;
+					this.b[r] = b;
+					this.pll[r] = pll(wx, a, b);
+					predicatePll += m.multiplicity[r]*this.pll[r];
+				}
+				if (m.predicateOffsets[p+1] > m.predicateOffsets[p]) {
+					score += predicatePll / samples[p];
+				}
+			}
+			this.score = score;
+		}
+		
+	}
+	
+	/**
+	 * The score as a function of the weight of a new formula, only over 
+	 * the rows where the formula has counts.
+	 */
+	private static final class Candidate implements TwiceDifferentiableFunction {
+		
+		private final double score;
+		private final Column column;
+		private final double[] samples;
+		private final double[] wx;
+		private final double[] a;
+		private final double[] b;
+		private final double[] pll;
+		private final double[] grad;
+		private final double[] hessian;
+		
+		Candidate(double score, Column column, double[] samples, 
+				double[] wx, double[] a, double[] b, double[] pll) {
+			this.score = score;
+			this.column = column;
+			this.samples = samples;
+			this.wx = wx;
+			this.a = a;
+			this.b = b;
+			this.pll = pll;
+			this.grad = new double[1];
+			this.hessian = new double[1];
+		}
+		
+		@Override
+		public double f(double[] x) {
+			double w = x[0];
+			double score = this.score;
+			double grad = 0;
+			double hessian = 0;
+			for (int k = 0; k < this.samples.length; k++) {
+				double counts = this.column.counts[k];
+				double tc = this.column.trueCounts[k];
+				double fc = this.column.falseCounts[k];
+				double a = this.a[k] + w*tc;
+				double b = this.b[k] + w*fc;
+				double pll = pll(this.wx[k] + w*counts, a, b);
+				score += (pll - this.pll[k]) / this.samples[k];
+				
+				// d2 = -(tc-fc)^2 * p(1-p), p = 1/(1+e^(b-a))
+				double diff = Math.abs(a - b);
+				double d;
+				if (Double.compare(diff, 20) < 0) {
+					double exp = Math.exp(diff);
+					d = (a > b) ? counts - tc + (tc-fc)/(exp+1.0) : counts - fc + (fc-tc)/(exp+1.0);
+					double delta = tc - fc;
+					hessian -= delta*delta*exp/((exp+1.0)*(exp+1.0)) / this.samples[k];
+				} else {
+					d = (a > b) ? counts - tc : counts - fc;
+				}
+				grad += d / this.samples[k];
+			}
+			this.grad[0] = grad;
+			this.hessian[0] = hessian;
+			return score;
+		}
+		
+		/**
+		 * @return the derivative computed by the last call to 
+		 * {@link #f(double[])}, a new array.
+		 */
+		@Override
+		public double[] g(double[] x) {
+			return new double[] {this.grad[0]};
+		}
+		
+		/**
+		 * @return the second derivative computed by the last call to 
+		 * {@link #f(double[])}, a new array.
+		 */
+		@Override
+		public double[] h(double[] x) {
+			return new double[] {this.hessian[0]};
+		}
+		
+		@Override
+		public int lengthInput() {
+			return 1;
+		}
+		
+		@Override
+		public int lengthOutput() {
+			return 1;
+		}
+		
+	}
+	
+	/**
+	 * The pll and gradient of a chunk.
+	 */
+	private static final class Partial {
+		
+		double pll;
+		final double[] grad;
+		
+		Partial(int n) {
+			this.pll = 0;
+			this.grad = new double[n];
+		}
+		
+	}
+	
+	/**
+	 * Evaluates the chunks not taken by the other workers. The first error 
+	 * stops all the workers.
+	 */
+	private static final class Worker implements Runnable {
+		
+		private final Matrix matrix;
+		private final double[] weights;
+		private final Partial[] partials;
+		private final AtomicInteger next;
+		private final AtomicReference<Throwable> error;
+		private final CountDownLatch done;
+		
+		Worker(Matrix matrix, double[] weights, Partial[] partials, AtomicInteger next, AtomicReference<Throwable> error, CountDownLatch done) {
+			this.matrix = matrix;
+			this.weights = weights;
+			this.partials = partials;
+			this.next = next;
+			this.error = error;
+			this.done = done;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				int c;
+				while (this.error.get() == null && (c = this.next.getAndIncrement()) < this.partials.length) {
+					evaluate(this.matrix, this.weights, c, this.partials[c]);
+				}
+			} catch (Throwable e) {
+				this.error.compareAndSet(null, e);
+			} finally {
+				if (this.done != null) this.done.countDown();
+			}
 		}
-		for (int i = counts.size(); i < index+1; i++) {
-			counts.add(null);
+		
+	}
+	
+	/**
+	 * The counts of a formula, one entry for each grounding.
+	 */
+	private static final class Column {
+		
+		final int[] rows;
+		final double[] counts;
+		final double[] trueCounts;
+		final double[] falseCounts;
+		
+		Column(int[] rows, double[] counts, double[] trueCounts, double[] falseCounts) {
+			this.rows = rows;
+			this.counts = counts;
+			this.trueCounts = trueCounts;
+			this.falseCounts = falseCounts;
+		}
+		
+	}
+	
+	/**
+	 * <p>The counts in CSR form: the entries of row <code>r</code> are 
+	 * <code>rowOffsets[r] .. rowOffsets[r+1]-1</code>, ordered by column, 
+	 * and the rows of predicate <code>p</code> are 
+	 * <code>predicateOffsets[p] .. predicateOffsets[p+1]-1</code>. Rows 
+	 * without counts are left out.</p>
+	 * 
+	 * <p>Groundings of the same predicate with the same counts in all 
+	 * formulas have the same pll and gradient, they are stored once as a 
+	 * row with multiplicity. With sparse data most groundings are false 
+	 * and share a few signatures.</p>
+	 * 
+	 * <p>The rows are split in chunks of at most {@value #CHUNK_ROWS} rows 
+	 * of the same predicate, the unit of work of the parallel evaluation.
+	 * The chunks are fixed, so the sums do not depend on the threads.</p>
+	 */
+	private static final class Matrix {
+		
+		final int[] position; // row of each row id, -1 if the row is left out
+		final int[] predicateOffsets;
+		final int[] chunkOffsets;
+		final int[] chunkPredicate;
+		final int[] rowOffsets;
+		final double[] multiplicity; // groundings of each row
+		final int[] columns;
+		final double[] counts;
+		final double[] trueCounts;
+		final double[] falseCounts;
+		
+		Matrix(List<Column> columns, int[] rowPredicate, int rows, int predicates) {
+			// entries of each row
+			int[] size = new int[rows];
+			int entries = 0;
+			for (Column column : columns) {
+				for (int r : column.rows) size[r]++;
+				entries += column.rows.length;
+			}
+			
+			// rows in the order of their predicates, counting sort
+			int[] predicateOffsets = new int[predicates + 1];
+			for (int r = 0; r < rows; r++) {
+				if (size[r] > 0) predicateOffsets[rowPredicate[r] + 1]++;
+			}
+			for (int p = 0; p < predicates; p++) {
+				predicateOffsets[p+1] += predicateOffsets[p];
+			}
+			int used = predicateOffsets[predicates];
+			int[] position = new int[rows]; // position of each row in the full matrix
+			int[] next = Arrays.copyOf(predicateOffsets, predicates);
+			for (int r = 0; r < rows; r++) {
+				position[r] = size[r] > 0 ? next[rowPredicate[r]]++ : -1;
+			}
+			
+			// full matrix, a row for each row id
+			Entries full = new Entries(entries);
+			int[] rowOffsets = new int[used + 1];
+			for (int r = 0; r < rows; r++) {
+				if (size[r] > 0) rowOffsets[position[r] + 1] = size[r];
+			}
+			for (int i = 0; i < used; i++) {
+				rowOffsets[i+1] += rowOffsets[i];
+			}
+			next = Arrays.copyOf(rowOffsets, used);
+			for (int j = 0; j < columns.size(); j++) {
+				Column column = columns.get(j);
+				for (int k = 0; k < column.rows.length; k++) {
+					full.set(next[position[column.rows[k]]]++, j, column, k);
+				}
+			}
+			
+			// unique rows of each predicate
+			Entries unique = new Entries(entries);
+			int[] uniqueOffsets = new int[used + 1];
+			double[] multiplicity = new double[used];
+			int[] uniqueRow = new int[used]; // unique row of each full row
+			this.predicateOffsets = new int[predicates + 1];
+			int u = 0;
+			for (int p = 0; p < predicates; p++) {
+				this.predicateOffsets[p] = u;
+				Map<Signature, Integer> signatures = new HashMap<Signature, Integer>();
+				for (int r = predicateOffsets[p]; r < predicateOffsets[p+1]; r++) {
+					Signature signature = new Signature(full, rowOffsets[r], rowOffsets[r+1]);
+					Integer row = signatures.get(signature);
+					if (row == null) {
+						row = Integer.valueOf(u);
+						signatures.put(signature, row);
+						int start = uniqueOffsets[u];
+						int length = rowOffsets[r+1] - rowOffsets[r];
+						unique.copy(start, full, rowOffsets[r], length);
+						uniqueOffsets[u+1] = start + length;
+						u++;
+					}
+					uniqueRow[r] = row.intValue();
+					multiplicity[row.intValue()]++;
+				}
+			}
+			this.predicateOffsets[predicates] = u;
+			for (int r = 0; r < rows; r++) {
+				if (position[r] >= 0) position[r] = uniqueRow[position[r]];
+			}
+			this.position = position;
+			
+			int stored = uniqueOffsets[u];
+			this.rowOffsets = Arrays.copyOf(uniqueOffsets, u + 1);
+			this.multiplicity = Arrays.copyOf(multiplicity, u);
+			this.columns = Arrays.copyOf(unique.columns, stored);
+			this.counts = Arrays.copyOf(unique.counts, stored);
+			this.trueCounts = Arrays.copyOf(unique.trueCounts, stored);
+			this.falseCounts = Arrays.copyOf(unique.falseCounts, stored);
+			
+			int chunks = 0;
+			for (int p = 0; p < predicates; p++) {
+				int length = this.predicateOffsets[p+1] - this.predicateOffsets[p];
+				chunks += (length + CHUNK_ROWS - 1) / CHUNK_ROWS;
+			}
+			this.chunkOffsets = new int[chunks + 1];
+			this.chunkPredicate = new int[chunks];
+			int c = 0;
+			for (int p = 0; p < predicates; p++) {
+				for (int r = this.predicateOffsets[p]; r < this.predicateOffsets[p+1]; r += CHUNK_ROWS) {
+					this.chunkPredicate[c] = p;
+					this.chunkOffsets[c] = r;
+					c++;
+				}
+			}
+			this.chunkOffsets[chunks] = u;
+		}
+		
+	}
+	
+	/**
+	 * The entries of a matrix being built.
+	 */
+	private static final class Entries {
+		
+		final int[] columns;
+		final double[] counts;
+		final double[] trueCounts;
+		final double[] falseCounts;
+		
+		Entries(int size) {
+			this.columns = new int[size];
+			this.counts = new double[size];
+			this.trueCounts = new double[size];
+			this.falseCounts = new double[size];
+		}
+		
+		void set(int i, int j, Column column, int k) {
+			this.columns[i] = j;
+			this.counts[i] = column.counts[k];
+			this.trueCounts[i] = column.trueCounts[k];
+			this.falseCounts[i] = column.falseCounts[k];
+		}
+		
+		void copy(int i, Entries from, int start, int length) {
+			System.arraycopy(from.columns, start, this.columns, i, length);
+			System.arraycopy(from.counts, start, this.counts, i, length);
+			System.arraycopy(from.trueCounts, start, this.trueCounts, i, length);
+			System.arraycopy(from.falseCounts, start, this.falseCounts, i, length);
+		}
+		
+	}
+	
+	/**
+	 * The columns and counts of a row, as a key.
+	 */
+	private static final class Signature {
+		
+		private final Entries entries;
+		private final int start;
+		private final int end;
+		private final int hash;
+		
+		Signature(Entries entries, int start, int end) {
+			this.entries = entries;
+			this.start = start;
+			this.end = end;
+			int hash = 1;
+			for (int i = start; i < end; i++) {
+				hash = 31*hash + entries.columns[i];
+				hash = 31*hash + hash(entries.counts[i]);
+				hash = 31*hash + hash(entries.trueCounts[i]);
+				hash = 31*hash + hash(entries.falseCounts[i]);
+			}
+			this.hash = hash;
+		}
+		
+		private static int hash(double d) {
+			long bits = Double.doubleToLongBits(d);
+			return (int) (bits ^ (bits >>> 32));
+		}
+		
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Signature)) return false;
+			Signature o = (Signature) obj;
+			if (this.hash != o.hash || this.end - this.start != o.end - o.start) return false;
+			Entries a = this.entries;
+			Entries b = o.entries;
+			for (int i = this.start, j = o.start; i < this.end; i++, j++) {
+				if (a.columns[i] != b.columns[j] || 
+						Double.compare(a.counts[i], b.counts[j]) != 0 ||
+						Double.compare(a.trueCounts[i], b.trueCounts[j]) != 0 ||
+						Double.compare(a.falseCounts[i], b.falseCounts[j]) != 0) {
+					return false;
+				}
+			}
+			return true;
 		}
 		
-		counts.set(index, count);
 	}
 	
 }
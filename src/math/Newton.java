@@ -0,0 +1,78 @@
+package math;
+
+/**
+ * <p>Newton's method to maximize concave functions of one argument. Each 
+ * step goes to <code>x - f'(x)/f''(x)</code>, the step is halved while 
+ * the function does not increase.</p>
+ */
+public class Newton {
+	
+	private static final int MAX_HALVINGS = 20;
+	
+	private final int maxSteps;
+	private final double precision;
+	private double lastArg;
+	private double lastValue;
+	
+	/**
+	 * @param maxSteps maximum number of Newton steps
+	 * @param precision stops when the step is smaller than precision
+	 */
+	public Newton(int maxSteps, double precision) {
+		this.maxSteps = maxSteps;
+		this.precision = precision;
+		this.lastArg = Double.NaN;
+		this.lastValue = Double.NaN;
+	}
+	
+	/**
+	 * @param x initial value
+	 * @param function a concave function with one argument
+	 * @return the argument that maximizes function
+	 */
+	public double max(double x, TwiceDifferentiableFunction function) {
+		double[] arg = {x};
+		double value = function.f(arg);
+		for (int i = 0; i < this.maxSteps; i++) {
+			double g = function.g(arg)[0];
+			double h = function.h(arg)[0];
+			if (g == 0 || !(h < 0)) break; // maximum, or flat
+			double step = -g/h;
+			double next = Double.NaN;
+			double[] nextArg = {x + step};
+			for (int j = 0; j < MAX_HALVINGS; j++) {
+				next = function.f(nextArg);
+				if (next >= value) break;
+				step = step/2;
+				nextArg[0] = x + step;
+			}
+			if (!(next >= value)) {
+				function.f(arg); // keeps the derivatives of x
+				break;
+			}
+			x = nextArg[0];
+			arg[0] = x;
+			value = next;
+			if (Math.abs(step) < this.precision) break;
+		}
+		this.lastArg = x;
+		this.lastValue = value;
+		return x;
+	}
+	
+	/**
+	 * @return the argument returned by the last call to max, 
+	 * or NaN if max was never called
+	 */
+	public double getArg() {
+		return this.lastArg;
+	}
+	
+	/**
+	 * @return the value of the function at {@link #getArg()}
+	 */
+	public double getValue() {
+		return this.lastValue;
+	}
+
+}
@@ -0,0 +1,13 @@
+package math;
+
+/**
+ * A function with its gradient and the diagonal of its Hessian matrix.
+ */
+public interface TwiceDifferentiableFunction extends DifferentiableFunction {
+	
+	/**
+	 * @return the second derivatives <code>d2f/dx_i^2</code> at x
+	 */
+	public double[] h(double[] x);
+
+}
@@ -0,0 +1,70 @@
+package stat.convergence;
+
+/**
+ * <p>Convergence of parallel Markov chains by the potential scale reduction
+ * factor (PSRF), see Gelman and Rubin - Inference from Iterative Simulation
+ * Using Multiple Sequences (1992).</p>
+ *
+ * <p>With <code>m</code> chains of <code>n</code> samples, <code>W</code> the
+ * mean of the variances within the chains and <code>B/n</code> the variance
+ * of the chain means, the PSRF is <code>sqrt(((n-1)/n W + B/n) / W)</code>.
+ * It tends to 1 as the chains forget their starting points, the chains
+ * have converged when it falls below a threshold, usually 1.1.</p>
+ *
+ * <p>Only the statistics are computed here, the caller keeps the means
+ * and variances of its chains.</p>
+ */
+public final class GelmanRubinTester {
+
+	private GelmanRubinTester() {
+	}
+
+	/**
+	 * @param means the mean of each chain
+	 * @param variances the (unbiased) variance of each chain
+	 * @param n the number of samples of each chain
+	 * @return the PSRF, 1 if all the samples are equal and
+	 * <code>Double.POSITIVE_INFINITY</code> if the chains are constant
+	 * but different or have less than 2 samples
+	 */
+	public static double psrf(double[] means, double[] variances, int n) {
+		int m = means.length;
+		if (n < 2 || m < 2) return Double.POSITIVE_INFINITY;
+		double mean = 0;
+		double w = 0;
+		for (int i = 0; i < m; i++) {
+			mean += means[i];
+			w += variances[i];
+		}
+		mean /= m;
+		w /= m;
+		double b = 0; // B/n
+		for (int i = 0; i < m; i++) {
+			double d = means[i] - mean;
+			b += d*d;
+		}
+		b /= (m - 1);
+		if (w == 0) return b == 0 ? 1.0d : Double.POSITIVE_INFINITY;
+		double v = (n - 1)*w/n + b;
+		return Math.sqrt(v / w);
+	}
+
+	/**
+	 * The PSRF of chains of boolean samples.
+	 * @param counts the number of true samples in each chain
+	 * @param n the number of samples of each chain
+	 * @see #psrf(double[], double[], int)
+	 */
+	public static double psrf(int[] counts, int n) {
+		int m = counts.length;
+		double[] means = new double[m];
+		double[] variances = new double[m];
+		for (int i = 0; i < m; i++) {
+			double p = ((double) counts[i]) / n;
+			means[i] = p;
+			variances[i] = n < 2 ? 0 : p*(1 - p)*n/(n - 1);
+		}
+		return psrf(means, variances, n);
+	}
+
+}